@@ -0,0 +1,80 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kitesdk.spring.hbase.example.controller;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.kitesdk.spring.hbase.example.service.SnapshotMetrics;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+/**
+ * Records the latency of every request in the SnapshotMetrics, tagged with
+ * the path of the endpoint that handled it.
+ *
+ * The start time is kept in a request attribute, so a request that's
+ * completed asynchronously, like /takeSnapshotDeferred, is timed from when it
+ * first arrived rather than from when it was dispatched again.
+ */
+public class EndpointMetricsInterceptor extends HandlerInterceptorAdapter {
+
+  private static final String START_ATTRIBUTE =
+      EndpointMetricsInterceptor.class.getName() + ".start";
+
+  private final SnapshotMetrics snapshotMetrics;
+
+  public EndpointMetricsInterceptor(SnapshotMetrics snapshotMetrics) {
+    this.snapshotMetrics = snapshotMetrics;
+  }
+
+  @Override
+  public boolean preHandle(HttpServletRequest request,
+      HttpServletResponse response, Object handler) {
+    if (request.getAttribute(START_ATTRIBUTE) == null) {
+      request.setAttribute(START_ATTRIBUTE, System.nanoTime());
+    }
+    return true;
+  }
+
+  @Override
+  public void afterCompletion(HttpServletRequest request,
+      HttpServletResponse response, Object handler, Exception ex) {
+    Long start = (Long) request.getAttribute(START_ATTRIBUTE);
+    String endpoint = endpoint(handler);
+    if (start == null || endpoint == null) {
+      return;
+    }
+    snapshotMetrics.recordEndpoint(endpoint, start,
+        ex != null || response.getStatus() >= 500);
+  }
+
+  /**
+   * The path an endpoint is mapped to, like /mostRecentContent, or null for
+   * requests that aren't handled by a controller method.
+   */
+  static String endpoint(Object handler) {
+    if (!(handler instanceof HandlerMethod)) {
+      return null;
+    }
+    RequestMapping mapping = ((HandlerMethod) handler)
+        .getMethodAnnotation(RequestMapping.class);
+    if (mapping == null || mapping.value().length == 0) {
+      return null;
+    }
+    return mapping.value()[0];
+  }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kitesdk.spring.hbase.example.controller;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.kitesdk.spring.hbase.example.service.RequestTrace;
+import org.kitesdk.spring.hbase.example.service.SlowRequestLog;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+/**
+ * Traces every request to a controller method, and hands the trace to the
+ * SlowRequestLog when the request completes.
+ *
+ * The trace is kept in a request attribute as well as on the thread, so a
+ * request that's completed asynchronously, like /takeSnapshotDeferred, keeps
+ * one trace across its dispatches. The trace is detached from the servlet
+ * thread while the request waits for its result.
+ */
+public class RequestTraceInterceptor extends HandlerInterceptorAdapter {
+
+  private static final String TRACE_ATTRIBUTE =
+      RequestTraceInterceptor.class.getName() + ".trace";
+
+  private final SlowRequestLog slowRequestLog;
+
+  public RequestTraceInterceptor(SlowRequestLog slowRequestLog) {
+    this.slowRequestLog = slowRequestLog;
+  }
+
+  @Override
+  public boolean preHandle(HttpServletRequest request,
+      HttpServletResponse response, Object handler) {
+    RequestTrace trace = (RequestTrace) request.getAttribute(TRACE_ATTRIBUTE);
+    if (trace != null) {
+      RequestTrace.attach(trace);
+      return true;
+    }
+    String endpoint = EndpointMetricsInterceptor.endpoint(handler);
+    if (endpoint != null) {
+      trace = slowRequestLog.begin(endpoint);
+      if (trace != null) {
+        request.setAttribute(TRACE_ATTRIBUTE, trace);
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void afterConcurrentHandlingStarted(HttpServletRequest request,
+      HttpServletResponse response, Object handler) {
+    RequestTrace.attach(null);
+  }
+
+  @Override
+  public void afterCompletion(HttpServletRequest request,
+      HttpServletResponse response, Object handler, Exception ex) {
+    RequestTrace trace = (RequestTrace) request.getAttribute(TRACE_ATTRIBUTE);
+    if (trace != null) {
+      request.removeAttribute(TRACE_ATTRIBUTE);
+      slowRequestLog.end(trace, ex != null ? 500 : response.getStatus());
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kitesdk.spring.hbase.example.controller;
+
+import com.google.common.io.CountingOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.kitesdk.spring.hbase.example.service.SnapshotMetrics;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.http.converter.json.MappingJacksonHttpMessageConverter;
+
+/**
+ * The JSON converter for @ResponseBody results, which records how long each
+ * result takes to serialize and how many bytes it's serialized to.
+ */
+public class TimedJacksonHttpMessageConverter
+    extends MappingJacksonHttpMessageConverter {
+
+  private final SnapshotMetrics snapshotMetrics;
+
+  public TimedJacksonHttpMessageConverter(SnapshotMetrics snapshotMetrics) {
+    this.snapshotMetrics = snapshotMetrics;
+  }
+
+  @Override
+  protected void writeInternal(Object object, HttpOutputMessage outputMessage)
+      throws IOException, HttpMessageNotWritableException {
+    long start = System.nanoTime();
+    CountingOutputMessage counting = new CountingOutputMessage(outputMessage);
+    super.writeInternal(object, counting);
+    snapshotMetrics.record(SnapshotMetrics.Stage.JSON, start,
+        counting.getCount());
+  }
+
+  /**
+   * An HttpOutputMessage that counts the bytes written to its body.
+   */
+  private static class CountingOutputMessage implements HttpOutputMessage {
+
+    private final HttpOutputMessage message;
+    private CountingOutputStream body = null;
+
+    private CountingOutputMessage(HttpOutputMessage message) {
+      this.message = message;
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+      return message.getHeaders();
+    }
+
+    @Override
+    public OutputStream getBody() throws IOException {
+      if (body == null) {
+        body = new CountingOutputStream(message.getBody());
+      }
+      return body;
+    }
+
+    private long getCount() {
+      return body != null ? body.getCount() : 0;
+    }
+  }
+}
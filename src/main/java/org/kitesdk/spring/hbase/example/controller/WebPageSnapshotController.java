@@ -18,30 +18,71 @@ package org.kitesdk.spring.hbase.example.controller;
 import com.sun.jersey.core.util.Base64;
 import java.io.IOException;
 import java.util.List;
+import javax.servlet.http.HttpServletResponse;
 
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.jsoup.HttpStatusException;
+import org.kitesdk.spring.hbase.example.model.frontend.CrawlJob;
+import org.kitesdk.spring.hbase.example.model.frontend.SnapshotJob;
+import org.kitesdk.spring.hbase.example.model.frontend.SnapshotRequest;
+import org.kitesdk.spring.hbase.example.model.frontend.SnapshotResult;
+import org.kitesdk.spring.hbase.example.model.frontend.WatchedUrl;
 import org.kitesdk.spring.hbase.example.model.frontend.WebPageSnapshotContent;
 import org.kitesdk.spring.hbase.example.model.frontend.WebPageSnapshotMeta;
+import org.kitesdk.spring.hbase.example.service.CrawlService;
+import org.kitesdk.spring.hbase.example.service.SnapshotHandler;
+import org.kitesdk.spring.hbase.example.service.SnapshotJobService;
+import org.kitesdk.spring.hbase.example.service.SnapshotMetrics;
+import org.kitesdk.spring.hbase.example.service.SnapshotWatchService;
 import org.kitesdk.spring.hbase.example.service.WebPageSnapshotService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.servlet.ModelAndView;
 
 @Controller
 @RequestMapping("")
 public class WebPageSnapshotController {
 
+  private static final String DEFAULT_PAGE_SIZE = "100";
+  private static final int MAX_PAGE_SIZE = 1000;
+  private static final int MAX_BATCH_SIZE = 1000;
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  /**
+   * How long a /takeSnapshotDeferred request waits for its snapshot before
+   * the container times it out.
+   */
+  private static final long DEFERRED_SNAPSHOT_TIMEOUT_MS = 60000;
+
   @Autowired
   private WebPageSnapshotService webPageSnapshotService;
 
+  @Autowired
+  private SnapshotJobService snapshotJobService;
+
+  @Autowired
+  private SnapshotWatchService snapshotWatchService;
+
+  @Autowired
+  private CrawlService crawlService;
+
+  @Autowired
+  private SnapshotMetrics snapshotMetrics;
+
   @RequestMapping(value = "/home", method = RequestMethod.GET)
   public ModelAndView getHome() {
     ModelAndView mav = new ModelAndView();
@@ -56,10 +97,100 @@ public class WebPageSnapshotController {
       @RequestHeader("Authorization") String authorization)
       throws IOException {
     String user = getUser(authorization);
-    String contentKey = isPublic ? "public" : user;
+    String contentKey = WebPageSnapshotService.contentKey(isPublic, user);
     return webPageSnapshotService.takeSnapshot(url, contentKey, user);
   }
 
+  @RequestMapping(value = "/takeSnapshots", method = RequestMethod.POST)
+  @ResponseBody
+  public List<SnapshotResult> takeSnapshots(
+      @RequestBody List<SnapshotRequest> requests,
+      @RequestHeader("Authorization") String authorization)
+      throws IOException {
+    if (requests.size() > MAX_BATCH_SIZE) {
+      throw new InvalidRequestException("At most " + MAX_BATCH_SIZE
+          + " URLs can be snapshotted in one batch");
+    }
+    String user = getUser(authorization);
+    return webPageSnapshotService.takeSnapshots(requests, user);
+  }
+
+  @RequestMapping(value = "/takeSnapshotAsync", method = RequestMethod.POST)
+  @ResponseBody
+  public SnapshotJob takeSnapshotAsync(@RequestParam("url") String url,
+      @RequestParam("public") boolean isPublic,
+      @RequestHeader("Authorization") String authorization) {
+    String user = getUser(authorization);
+    String contentKey = WebPageSnapshotService.contentKey(isPublic, user);
+    return snapshotJobService.submit(url, contentKey, user);
+  }
+
+  @RequestMapping(value = "/takeSnapshotDeferred", method = RequestMethod.POST)
+  @ResponseBody
+  public DeferredResult<WebPageSnapshotMeta> takeSnapshotDeferred(
+      @RequestParam("url") String url,
+      @RequestParam("public") boolean isPublic,
+      @RequestHeader("Authorization") String authorization) {
+    String user = getUser(authorization);
+    String contentKey = WebPageSnapshotService.contentKey(isPublic, user);
+    DeferredResult<WebPageSnapshotMeta> deferredResult =
+        new DeferredResult<WebPageSnapshotMeta>(DEFERRED_SNAPSHOT_TIMEOUT_MS);
+    snapshotJobService.submit(url, contentKey, user, deferredResult);
+    return deferredResult;
+  }
+
+  @RequestMapping(value = "/snapshotJob", method = RequestMethod.GET)
+  @ResponseBody
+  public SnapshotJob getSnapshotJob(@RequestParam("id") String id,
+      @RequestHeader("Authorization") String authorization) {
+    String user = getUser(authorization);
+    return snapshotJobService.getJob(id, user);
+  }
+
+  @RequestMapping(value = "/crawl", method = RequestMethod.POST)
+  @ResponseBody
+  public CrawlJob crawl(@RequestParam("url") String url,
+      @RequestParam("public") boolean isPublic,
+      @RequestParam(value = "depth", defaultValue = "1") int depth,
+      @RequestParam(value = "scope", defaultValue = CrawlService.SCOPE_HOST) String scope,
+      @RequestHeader("Authorization") String authorization) {
+    if (!CrawlService.SCOPE_HOST.equals(scope)
+        && !CrawlService.SCOPE_DOMAIN.equals(scope)
+        && !CrawlService.SCOPE_ANY.equals(scope)) {
+      throw new InvalidRequestException("Unknown crawl scope: " + scope);
+    }
+    if (depth < 0) {
+      throw new InvalidRequestException("Invalid crawl depth: " + depth);
+    }
+    String user = getUser(authorization);
+    return crawlService.submit(url, isPublic, depth, scope, user);
+  }
+
+  @RequestMapping(value = "/crawlJob", method = RequestMethod.GET)
+  @ResponseBody
+  public CrawlJob getCrawlJob(@RequestParam("id") String id,
+      @RequestHeader("Authorization") String authorization) {
+    String user = getUser(authorization);
+    return crawlService.getJob(id, user);
+  }
+
+  @RequestMapping(value = "/watch", method = RequestMethod.POST)
+  @ResponseBody
+  public WatchedUrl watch(@RequestParam("url") String url,
+      @RequestParam("public") boolean isPublic,
+      @RequestHeader("Authorization") String authorization) {
+    String user = getUser(authorization);
+    return snapshotWatchService.watch(url, isPublic, user);
+  }
+
+  @RequestMapping(value = "/unwatch", method = RequestMethod.POST)
+  @ResponseBody
+  public boolean unwatch(@RequestParam("url") String url,
+      @RequestHeader("Authorization") String authorization) {
+    String user = getUser(authorization);
+    return snapshotWatchService.unwatch(url, user);
+  }
+
   @RequestMapping(value = "/meta", method = RequestMethod.GET)
   @ResponseBody
   public WebPageSnapshotMeta getMostRecentMeta(@RequestParam("url") String url,
@@ -103,11 +234,133 @@ public class WebPageSnapshotController {
     return webPageSnapshotService.getSnapshotTimestamps(url, user);
   }
 
+  @RequestMapping(value = "/metaSince", method = RequestMethod.GET)
+  public void getMetaSince(@RequestParam("url") String url,
+      @RequestParam(value = "since", defaultValue = "0") long since,
+      @RequestParam(value = "cursor", required = false) String cursor,
+      @RequestParam(value = "limit", defaultValue = DEFAULT_PAGE_SIZE) int limit,
+      @RequestHeader("Authorization") String authorization,
+      HttpServletResponse response) throws IOException {
+    checkPageParams(since, cursor);
+    String user = getUser(authorization);
+    JsonGenerator generator = startPage(response);
+    String nextCursor = webPageSnapshotService.getWebPageSnapshotMetaSince(url,
+        since, cursor, pageSize(limit), user,
+        new JsonSnapshotHandler<WebPageSnapshotMeta>(generator,
+            snapshotMetrics));
+    endPage(generator, nextCursor);
+  }
+
+  @RequestMapping(value = "/contentSince", method = RequestMethod.GET)
+  public void getContentSince(@RequestParam("url") String url,
+      @RequestParam(value = "since", defaultValue = "0") long since,
+      @RequestParam(value = "cursor", required = false) String cursor,
+      @RequestParam(value = "limit", defaultValue = DEFAULT_PAGE_SIZE) int limit,
+      @RequestHeader("Authorization") String authorization,
+      HttpServletResponse response) throws IOException {
+    checkPageParams(since, cursor);
+    String user = getUser(authorization);
+    JsonGenerator generator = startPage(response);
+    String nextCursor = webPageSnapshotService.getWebPageSnapshotContentSince(
+        url, since, cursor, pageSize(limit), user,
+        new JsonSnapshotHandler<WebPageSnapshotContent>(generator,
+            snapshotMetrics));
+    endPage(generator, nextCursor);
+  }
+
+  /**
+   * The latencies and throughput of every stage and endpoint, in the
+   * Prometheus text format.
+   */
+  @RequestMapping(value = "/metrics", method = RequestMethod.GET)
+  public void getMetrics(HttpServletResponse response) throws IOException {
+    response.setContentType("text/plain;version=0.0.4;charset=UTF-8");
+    snapshotMetrics.writeText(response.getWriter());
+  }
+
   @ResponseStatus(value = HttpStatus.NOT_FOUND, reason = "Error fetching snapshot")
   @ExceptionHandler(HttpStatusException.class)
   public void httpStatusExceptionHandler() {
   }
 
+  @ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE, reason = "Too many pending snapshots")
+  @ExceptionHandler(TaskRejectedException.class)
+  public void taskRejectedExceptionHandler() {
+  }
+
+  @ResponseStatus(value = HttpStatus.BAD_REQUEST, reason = "Invalid request parameter")
+  @ExceptionHandler(InvalidRequestException.class)
+  public void invalidRequestExceptionHandler() {
+  }
+
+  /**
+   * Check the params of a page request. This has to be done before the page
+   * is started, since once its first bytes are written the response can't be
+   * turned into a 400.
+   */
+  private void checkPageParams(long since, String cursor) {
+    if (since < 0) {
+      throw new InvalidRequestException("Invalid since: " + since);
+    }
+    if (!WebPageSnapshotService.isValidCursor(cursor)) {
+      throw new InvalidRequestException("Invalid cursor: " + cursor);
+    }
+  }
+
+  private int pageSize(int limit) {
+    return Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+  }
+
+  /**
+   * Start a page of snapshots in the response. A page is a JSON object with a
+   * "snapshots" array, written as the snapshots are read, followed by the
+   * "nextCursor" to pass back to get the next page.
+   */
+  private JsonGenerator startPage(HttpServletResponse response)
+      throws IOException {
+    response.setContentType("application/json;charset=UTF-8");
+    JsonGenerator generator = MAPPER.getJsonFactory().createJsonGenerator(
+        response.getOutputStream(), JsonEncoding.UTF8);
+    generator.writeStartObject();
+    generator.writeArrayFieldStart("snapshots");
+    return generator;
+  }
+
+  private void endPage(JsonGenerator generator, String nextCursor)
+      throws IOException {
+    generator.writeEndArray();
+    if (nextCursor != null) {
+      generator.writeStringField("nextCursor", nextCursor);
+    } else {
+      generator.writeNullField("nextCursor");
+    }
+    generator.writeEndObject();
+    generator.close();
+  }
+
+  /**
+   * Writes each snapshot to the response as soon as it's read, and records
+   * how long each takes to serialize.
+   */
+  private static class JsonSnapshotHandler<T> implements SnapshotHandler<T> {
+
+    private final JsonGenerator generator;
+    private final SnapshotMetrics snapshotMetrics;
+
+    private JsonSnapshotHandler(JsonGenerator generator,
+        SnapshotMetrics snapshotMetrics) {
+      this.generator = generator;
+      this.snapshotMetrics = snapshotMetrics;
+    }
+
+    @Override
+    public void handle(T snapshot) throws IOException {
+      long start = System.nanoTime();
+      generator.writeObject(snapshot);
+      snapshotMetrics.record(SnapshotMetrics.Stage.JSON, start);
+    }
+  }
+
   private String getUser(String authorization) {
     String base64Credentials = authorization.substring("Basic".length()).trim();
     return Base64.base64Decode(base64Credentials).split(":")[0];
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.io.compress.Compression;
+import org.apache.hadoop.hbase.io.encoding.DataBlockEncoding;
+import org.apache.hadoop.hbase.regionserver.BloomType;
+
+/**
+ * Storage settings for the column families of an HBase table, read from a
+ * properties file of family.setting=value lines like:
+ *
+ * <pre>
+ * meta.compression=GZ
+ * meta.encoding=FAST_DIFF
+ * meta.bloom=ROW
+ * meta.blocksize=16384
+ * meta.inmemory=true
+ * meta.ttl=FOREVER
+ * </pre>
+ *
+ * compression is an HBase compression algorithm, encoding a data block
+ * encoding, bloom a Bloom filter type, blocksize in bytes, and ttl in seconds
+ * or FOREVER. Families that aren't mentioned keep HBase's defaults.
+ */
+final class ColumnFamilySettings {
+
+  private static final String COMPRESSION = "compression";
+  private static final String ENCODING = "encoding";
+  private static final String BLOOM = "bloom";
+  private static final String BLOCKSIZE = "blocksize";
+  private static final String IN_MEMORY = "inmemory";
+  private static final String TTL = "ttl";
+  private static final String FOREVER = "FOREVER";
+
+  private final Map<String, Map<String, String>> families;
+
+  private ColumnFamilySettings(Map<String, Map<String, String>> families) {
+    this.families = families;
+  }
+
+  /**
+   * Read the settings from a properties file.
+   *
+   * @param location The location of the file
+   * @return The settings
+   * @throws IllegalArgumentException if a line isn't a known setting of a
+   *           family
+   */
+  static ColumnFamilySettings load(URL location) throws IOException {
+    Properties properties = new Properties();
+    InputStream in = location.openStream();
+    try {
+      properties.load(in);
+    } finally {
+      in.close();
+    }
+    Map<String, Map<String, String>> families =
+        new TreeMap<String, Map<String, String>>();
+    for (String name : properties.stringPropertyNames()) {
+      int separator = name.lastIndexOf('.');
+      if (separator <= 0) {
+        throw new IllegalArgumentException("Invalid storage setting " + name
+            + " in " + location + ", expected family.setting");
+      }
+      String family = name.substring(0, separator);
+      String setting = name.substring(separator + 1);
+      Map<String, String> settings = families.get(family);
+      if (settings == null) {
+        settings = new TreeMap<String, String>();
+        families.put(family, settings);
+      }
+      settings.put(setting, properties.getProperty(name).trim());
+    }
+    ColumnFamilySettings result = new ColumnFamilySettings(families);
+    // fail on unknown settings or values before anything is changed
+    for (String family : families.keySet()) {
+      result.apply(new HColumnDescriptor(family));
+    }
+    return result;
+  }
+
+  /**
+   * @return The names of the families there are settings for
+   */
+  Set<String> getFamilies() {
+    return families.keySet();
+  }
+
+  /**
+   * Apply the settings for a family to its descriptor.
+   *
+   * @param family The family's descriptor, which is changed in place
+   * @return true if any setting changed
+   */
+  boolean apply(HColumnDescriptor family) {
+    Map<String, String> settings = families.get(family.getNameAsString());
+    if (settings == null) {
+      return false;
+    }
+    HColumnDescriptor original = new HColumnDescriptor(family);
+    for (Map.Entry<String, String> entry : settings.entrySet()) {
+      String value = entry.getValue();
+      String setting = entry.getKey();
+      if (COMPRESSION.equals(setting)) {
+        family.setCompressionType(
+            Compression.Algorithm.valueOf(value.toUpperCase(Locale.ENGLISH)));
+      } else if (ENCODING.equals(setting)) {
+        family.setDataBlockEncoding(
+            DataBlockEncoding.valueOf(value.toUpperCase(Locale.ENGLISH)));
+      } else if (BLOOM.equals(setting)) {
+        family.setBloomFilterType(
+            BloomType.valueOf(value.toUpperCase(Locale.ENGLISH)));
+      } else if (BLOCKSIZE.equals(setting)) {
+        family.setBlocksize(Integer.parseInt(value));
+      } else if (IN_MEMORY.equals(setting)) {
+        family.setInMemory(Boolean.parseBoolean(value));
+      } else if (TTL.equals(setting)) {
+        family.setTimeToLive(FOREVER.equalsIgnoreCase(value)
+            ? HConstants.FOREVER : Integer.parseInt(value));
+      } else {
+        throw new IllegalArgumentException("Unknown storage setting "
+            + setting + " for family " + family.getNameAsString());
+      }
+    }
+    return !family.equals(original);
+  }
+}
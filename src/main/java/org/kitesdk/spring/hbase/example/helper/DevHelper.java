@@ -3,7 +3,9 @@ package org.kitesdk.spring.hbase.example.helper;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -13,9 +15,12 @@ import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.kitesdk.data.DatasetDescriptor;
 import org.kitesdk.data.Datasets;
+import org.kitesdk.data.PartitionStrategy;
 import org.kitesdk.data.RandomAccessDataset;
+import org.kitesdk.data.spi.FieldPartitioner;
 
 /**
  * A Helper class for running this example in dev mode, which automatically
@@ -25,6 +30,15 @@ public class DevHelper {
 
   private static final String CLASSPATH_PREFIX = "classpath:";
   private static final String MANAGED_SCHEMAS_TABLE = "managed_schemas";
+  /**
+   * The column families Kite adds to every table it creates, besides the
+   * ones the entity's column mapping uses.
+   */
+  private static final String[] KITE_FAMILIES = { "_s", "observable" };
+  private static final String SCHEMA_SUFFIX = ".avsc";
+  private static final String STORAGE_SETTINGS_SUFFIX = ".storage.properties";
+  private static final String MANAGED_SCHEMAS_STORAGE_SETTINGS =
+      "hbase-models/" + MANAGED_SCHEMAS_TABLE + STORAGE_SETTINGS_SUFFIX;
 
   /**
    * Create the HBase datasets in the map of dataset names to schema files
@@ -44,6 +58,45 @@ public class DevHelper {
   public static List<RandomAccessDataset<?>> createOrUpdateDatasets(
       String zkHost, String zkPort, Map<String, String> datasetNameSchemaMap)
       throws URISyntaxException, IOException {
+    return createOrUpdateDatasets(zkHost, zkPort, datasetNameSchemaMap,
+        Collections.<String> emptyList(), 0);
+  }
+
+  /**
+   * Create the HBase datasets in the map of dataset names to schema files,
+   * salting the row keys of some of them.
+   * 
+   * A salted dataset is partitioned by a hash of its first key field into a
+   * number of buckets, followed by its key fields, so its row keys start with
+   * the bucket. When the dataset is created, its table is first created
+   * pre-split into one region per bucket, so the table of a salted dataset
+   * must not exist yet. Datasets that already exist keep the partitioning
+   * they were created with.
+   * 
+   * If there's a storage settings file next to a schema file, like
+   * WebPageSnapshotModel.storage.properties next to WebPageSnapshotModel.avsc,
+   * its column family settings are applied to the dataset's table each time.
+   * 
+   * @param zkHost
+   *          HBase zookeeper client hostname
+   * @param zkPort
+   *          HBase zookeeper client port
+   * @param datasetNameSchemaMap
+   *          A map of dataset names to the Avro schema files that we want to
+   *          create. The schema files are a location, which can be a location
+   *          on the classpath, represented with a "classpath:/" prefix.
+   * @param saltedDatasetNames
+   *          The names of the datasets to salt
+   * @param saltBuckets
+   *          The number of buckets to salt with, or 0 to not salt any dataset
+   * @return THe list of created datasets.
+   * @throws URISyntaxException
+   * @throws IOException
+   */
+  public static List<RandomAccessDataset<?>> createOrUpdateDatasets(
+      String zkHost, String zkPort, Map<String, String> datasetNameSchemaMap,
+      List<String> saltedDatasetNames, int saltBuckets)
+      throws URISyntaxException, IOException {
 
     createManagedSchemasTable(zkHost, zkPort);
 
@@ -65,19 +118,146 @@ public class DevHelper {
       String datasetURI = "dataset:hbase:" + zkHost + ":" + zkPort + "/"
           + datasetName;
       if (!Datasets.exists(datasetURI)) {
+        boolean salted = saltBuckets > 0
+            && saltedDatasetNames.contains(datasetName);
+        if (salted) {
+          desc = new DatasetDescriptor.Builder(desc).partitionStrategy(
+              saltedPartitionStrategy(desc, saltBuckets)).build();
+          createPreSplitTable(zkHost, zkPort, tableName(datasetName), desc,
+              saltBuckets);
+        }
         datasets
             .add((RandomAccessDataset<?>) Datasets.create(datasetURI, desc));
       } else {
+        DatasetDescriptor existing = Datasets.load(datasetURI)
+            .getDataset().getDescriptor();
+        desc = new DatasetDescriptor.Builder(desc).partitionStrategy(
+            existing.getPartitionStrategy()).build();
         datasets
             .add((RandomAccessDataset<?>) Datasets.update(datasetURI, desc));
       }
+
+      File settingsFile = new File(schemaFile.getParentFile(),
+          schemaFile.getName().replace(SCHEMA_SUFFIX, STORAGE_SETTINGS_SUFFIX));
+      if (settingsFile.isFile()) {
+        applyStorageSettings(zkHost, zkPort, tableName(datasetName),
+            ColumnFamilySettings.load(settingsFile.toURI().toURL()));
+      }
     }
     return datasets;
   }
 
+  /**
+   * Apply column family storage settings to a table's families, changing only
+   * the families whose settings differ.
+   */
+  private static void applyStorageSettings(String zkHost, String zkPort,
+      String tableName, ColumnFamilySettings settings) throws IOException {
+    HBaseAdmin admin = new HBaseAdmin(hbaseConfiguration(zkHost, zkPort));
+    try {
+      HTableDescriptor desc = admin.getTableDescriptor(
+          Bytes.toBytes(tableName));
+      for (String family : settings.getFamilies()) {
+        if (!desc.hasFamily(Bytes.toBytes(family))) {
+          throw new IllegalArgumentException("Table " + tableName
+              + " has no column family " + family);
+        }
+      }
+      for (HColumnDescriptor family : desc.getColumnFamilies()) {
+        HColumnDescriptor tuned = new HColumnDescriptor(family);
+        if (settings.apply(tuned)) {
+          admin.modifyColumn(tableName, tuned);
+        }
+      }
+    } finally {
+      admin.close();
+    }
+  }
+
+  /**
+   * Build a partition strategy that hashes the first key field of a
+   * descriptor into buckets, followed by every key field as is, which is how
+   * Kite salts HBase row keys.
+   */
+  private static PartitionStrategy saltedPartitionStrategy(
+      DatasetDescriptor desc, int saltBuckets) {
+    // the descriptor's own strategy has an identity partitioner per key field
+    List<FieldPartitioner> keyFields = desc.getPartitionStrategy()
+        .getFieldPartitioners();
+    PartitionStrategy.Builder builder = new PartitionStrategy.Builder().hash(
+        keyFields.get(0).getSourceName(), saltBuckets);
+    for (FieldPartitioner keyField : keyFields) {
+      builder.identity(keyField.getSourceName());
+    }
+    return builder.build();
+  }
+
+  /**
+   * Create the table of a salted dataset before Kite does, with the column
+   * families Kite would create it with and one region per salt bucket. Kite
+   * writes the bucket as a 4 byte int with the sign bit flipped, so bucket i
+   * starts at that encoding of i. Kite then uses the table as it is.
+   *
+   * A table that already exists can't be pre-split without recreating it,
+   * which would lose whatever it holds, so that fails instead.
+   */
+  private static void createPreSplitTable(String zkHost, String zkPort,
+      String tableName, DatasetDescriptor datasetDesc, int saltBuckets)
+      throws IOException {
+    HBaseAdmin admin = new HBaseAdmin(hbaseConfiguration(zkHost, zkPort));
+    try {
+      if (admin.tableExists(tableName)) {
+        throw new IllegalStateException("Table " + tableName
+            + " already exists, so it can't be pre-split into " + saltBuckets
+            + " salt buckets. Drop it or don't salt its dataset.");
+      }
+      @SuppressWarnings("deprecation")
+      HTableDescriptor desc = new HTableDescriptor(tableName);
+      for (String family : datasetDesc.getColumnMapping()
+          .getRequiredColumnFamilies()) {
+        desc.addFamily(new HColumnDescriptor(family));
+      }
+      for (String family : KITE_FAMILIES) {
+        if (!desc.hasFamily(Bytes.toBytes(family))) {
+          desc.addFamily(new HColumnDescriptor(family));
+        }
+      }
+      byte[][] splitKeys = new byte[saltBuckets - 1][];
+      for (int i = 0; i < splitKeys.length; i++) {
+        splitKeys[i] = Bytes.toBytes((i + 1) ^ Integer.MIN_VALUE);
+      }
+      if (splitKeys.length > 0) {
+        admin.createTable(desc, splitKeys);
+      } else {
+        admin.createTable(desc);
+      }
+    } finally {
+      admin.close();
+    }
+  }
+
+  /**
+   * Get the HBase table name out of a dataset name like table.Entity
+   */
+  private static String tableName(String datasetName) {
+    int entitySeparator = datasetName.indexOf('.');
+    return entitySeparator < 0 ? datasetName : datasetName.substring(0,
+        entitySeparator);
+  }
+
+  private static Configuration hbaseConfiguration(String zkHost,
+      String zkPort) {
+    Configuration config = HBaseConfiguration.create();
+    config.set("hbase.zookeeper.quorum", zkHost);
+    config.set("hbase.zookeeper.property.clientPort", zkPort);
+    return config;
+  }
+
   /**
    * Create the required HBase tables for the Kite HBase module. If those are
-   * already initialized, this method will do nothing.
+   * already initialized, only the storage settings in
+   * hbase-models/managed_schemas.storage.properties are applied, if there are
+   * any.
    * 
    * @param zkHost
    *          HBase zookeeper client hostname
@@ -86,10 +266,7 @@ public class DevHelper {
    */
   public static void createManagedSchemasTable(String zkHost, String zkPort)
       throws IOException {
-    Configuration config = HBaseConfiguration.create();
-    config.set("hbase.zookeeper.quorum", zkHost);
-    config.set("hbase.zookeeper.property.clientPort", zkPort);
-    HBaseAdmin admin = new HBaseAdmin(config);
+    HBaseAdmin admin = new HBaseAdmin(hbaseConfiguration(zkHost, zkPort));
     try {
       if (!admin.tableExists(MANAGED_SCHEMAS_TABLE)) {
         @SuppressWarnings("deprecation")
@@ -102,5 +279,12 @@ public class DevHelper {
     } finally {
       admin.close();
     }
+
+    URL settings = DevHelper.class.getClassLoader().getResource(
+        MANAGED_SCHEMAS_STORAGE_SETTINGS);
+    if (settings != null) {
+      applyStorageSettings(zkHost, zkPort, MANAGED_SCHEMAS_TABLE,
+          ColumnFamilySettings.load(settings));
+    }
   }
 }
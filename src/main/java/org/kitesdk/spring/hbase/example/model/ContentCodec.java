@@ -0,0 +1,170 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kitesdk.spring.hbase.example.model;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.xerial.snappy.Snappy;
+
+/**
+ * The codecs web page content can be compressed with in the
+ * WebPageSnapshotModel. The codec's name is stored with each snapshot in the
+ * contentCodec field, so the codec can be changed per deployment without
+ * breaking older snapshots.
+ */
+public enum ContentCodec {
+
+  /**
+   * Content is stored uncompressed in the content map.
+   */
+  NONE("none") {
+    @Override
+    public byte[] compress(byte[] content) {
+      return content;
+    }
+
+    @Override
+    public byte[] decompress(byte[] compressed) {
+      return compressed;
+    }
+  },
+
+  GZIP("gzip") {
+    @Override
+    public byte[] compress(byte[] content) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      return writeAll(new GZIPOutputStream(bytes), bytes, content);
+    }
+
+    @Override
+    public byte[] decompress(byte[] compressed) throws IOException {
+      return readAll(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+    }
+  },
+
+  DEFLATE("deflate") {
+    @Override
+    public byte[] compress(byte[] content) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      return writeAll(new DeflaterOutputStream(bytes), bytes, content);
+    }
+
+    @Override
+    public byte[] decompress(byte[] compressed) throws IOException {
+      return readAll(new InflaterInputStream(
+          new ByteArrayInputStream(compressed)));
+    }
+  },
+
+  SNAPPY("snappy") {
+    @Override
+    public byte[] compress(byte[] content) throws IOException {
+      return Snappy.compress(content);
+    }
+
+    @Override
+    public byte[] decompress(byte[] compressed) throws IOException {
+      return Snappy.uncompress(compressed);
+    }
+  };
+
+  private final String name;
+
+  private ContentCodec(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Get the name stored in the contentCodec field for this codec.
+   *
+   * @return The codec name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Compress content with this codec.
+   *
+   * @param content The content to compress
+   * @return The compressed content
+   * @throws IOException
+   */
+  public abstract byte[] compress(byte[] content) throws IOException;
+
+  /**
+   * Decompress content that was compressed with this codec.
+   *
+   * @param compressed The compressed content
+   * @return The content
+   * @throws IOException
+   */
+  public abstract byte[] decompress(byte[] compressed) throws IOException;
+
+  /**
+   * Write content through a compressing stream that wraps bytes, and return
+   * the compressed bytes once the stream is closed.
+   */
+  private static byte[] writeAll(OutputStream out, ByteArrayOutputStream bytes,
+      byte[] content) throws IOException {
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Read all of a decompressing stream, and close it.
+   */
+  private static byte[] readAll(InputStream in) throws IOException {
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Look up a codec by the name stored in the contentCodec field. Snapshots
+   * written before content was compressed have no codec name, and are
+   * uncompressed.
+   *
+   * @param name The codec name, or null
+   * @return The ContentCodec
+   * @throws IllegalArgumentException if there's no codec with this name
+   */
+  public static ContentCodec forName(String name) {
+    if (name == null || name.isEmpty()) {
+      return NONE;
+    }
+    for (ContentCodec codec : values()) {
+      if (codec.name.equalsIgnoreCase(name.trim())) {
+        return codec;
+      }
+    }
+    throw new IllegalArgumentException("Unknown content codec: " + name);
+  }
+}
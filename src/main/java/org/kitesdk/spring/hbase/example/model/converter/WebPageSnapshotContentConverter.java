@@ -15,6 +15,10 @@
  */
 package org.kitesdk.spring.hbase.example.model.converter;
 
+import com.google.common.base.Charsets;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.kitesdk.spring.hbase.example.model.ContentCodec;
 import org.kitesdk.spring.hbase.example.model.WebPageSnapshotModel;
 import org.kitesdk.spring.hbase.example.model.frontend.WebPageSnapshotContent;
 import org.springframework.core.convert.converter.Converter;
@@ -31,8 +35,33 @@ public class WebPageSnapshotContentConverter implements
     WebPageSnapshotContent content = new WebPageSnapshotContent();
     content.setUrl(model.getUrl());
     content.setFetchedAt(model.getFetchedAt());
-    content.setContent(model.getContent().get(model.getContentKey()));
+    content.setContent(getContent(model));
     return content;
   }
 
+  /**
+   * Get the content for the model's content key, decompressing it if it was
+   * stored compressed. Snapshots stored before compression was added only
+   * have the uncompressed content map.
+   */
+  private static String getContent(WebPageSnapshotModel model) {
+    ContentCodec codec = ContentCodec.forName(model.getContentCodec());
+    if (codec == ContentCodec.NONE) {
+      return model.getContent().get(model.getContentKey());
+    }
+    ByteBuffer compressed = model.getCompressedContent()
+        .get(model.getContentKey());
+    if (compressed == null) {
+      return null;
+    }
+    byte[] bytes = new byte[compressed.remaining()];
+    compressed.duplicate().get(bytes);
+    try {
+      return new String(codec.decompress(bytes), Charsets.UTF_8);
+    } catch (IOException ex) {
+      throw new IllegalStateException("Unable to decompress content of "
+          + model.getUrl(), ex);
+    }
+  }
+
 }
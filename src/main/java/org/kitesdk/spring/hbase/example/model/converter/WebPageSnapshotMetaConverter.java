@@ -42,6 +42,11 @@ public class WebPageSnapshotMetaConverter implements
         "private (" + contentKey + ")");
 
     meta.setOutlinks(model.getOutlinks());
+    meta.setContentDigest(model.getContentDigest());
+    // snapshots from before pages were checked for changes were last checked
+    // when they were fetched
+    meta.setLastCheckedAt(Math.max(model.getLastCheckedAt(),
+        model.getFetchedAt()));
     return meta;
   }
 
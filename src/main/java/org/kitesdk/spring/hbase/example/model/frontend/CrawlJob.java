@@ -0,0 +1,231 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.model.frontend;
+
+/**
+ * A front end model for a crawl that snapshots a seed URL and the pages it
+ * links to
+ */
+public class CrawlJob {
+
+  public static final String PENDING = "pending";
+  public static final String RUNNING = "running";
+  public static final String DONE = "done";
+  public static final String FAILED = "failed";
+
+  /**
+   * The id used to check on the crawl
+   */
+  private String id;
+
+  /**
+   * The URL the crawl started from
+   */
+  private String seedUrl;
+
+  /**
+   * The status of the crawl: pending, running, done or failed
+   */
+  private volatile String status = PENDING;
+
+  /**
+   * The number of links between the seed and the pages being snapshotted
+   */
+  private volatile int depth;
+
+  /**
+   * The number of pages snapshotted
+   */
+  private volatile long pagesSnapshotted;
+
+  /**
+   * The number of pages that couldn't be snapshotted
+   */
+  private volatile long pagesFailed;
+
+  /**
+   * The number of links that weren't followed because the frontier was full
+   */
+  private volatile long urlsDropped;
+
+  /**
+   * Why the crawl failed, if it failed
+   */
+  private volatile String error;
+
+  public CrawlJob() {
+  }
+
+  public CrawlJob(String id, String seedUrl) {
+    this.id = id;
+    this.seedUrl = seedUrl;
+  }
+
+  /**
+   * Get the id of the crawl
+   * 
+   * @return The id
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * Set the id of the crawl
+   * 
+   * @param id
+   *          The id
+   */
+  public void setId(String id) {
+    this.id = id;
+  }
+
+  /**
+   * Get the URL the crawl started from
+   * 
+   * @return The seed URL
+   */
+  public String getSeedUrl() {
+    return seedUrl;
+  }
+
+  /**
+   * Set the URL the crawl started from
+   * 
+   * @param seedUrl
+   *          The seed URL
+   */
+  public void setSeedUrl(String seedUrl) {
+    this.seedUrl = seedUrl;
+  }
+
+  /**
+   * Get the status of the crawl
+   * 
+   * @return pending, running, done or failed
+   */
+  public String getStatus() {
+    return status;
+  }
+
+  /**
+   * Set the status of the crawl
+   * 
+   * @param status
+   *          pending, running, done or failed
+   */
+  public void setStatus(String status) {
+    this.status = status;
+  }
+
+  /**
+   * Get the depth being crawled
+   * 
+   * @return The number of links from the seed
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Set the depth being crawled
+   * 
+   * @param depth
+   *          The number of links from the seed
+   */
+  public void setDepth(int depth) {
+    this.depth = depth;
+  }
+
+  /**
+   * Get the number of pages snapshotted
+   * 
+   * @return The number of pages
+   */
+  public long getPagesSnapshotted() {
+    return pagesSnapshotted;
+  }
+
+  /**
+   * Set the number of pages snapshotted
+   * 
+   * @param pagesSnapshotted
+   *          The number of pages
+   */
+  public void setPagesSnapshotted(long pagesSnapshotted) {
+    this.pagesSnapshotted = pagesSnapshotted;
+  }
+
+  /**
+   * Get the number of pages that couldn't be snapshotted
+   * 
+   * @return The number of pages
+   */
+  public long getPagesFailed() {
+    return pagesFailed;
+  }
+
+  /**
+   * Set the number of pages that couldn't be snapshotted
+   * 
+   * @param pagesFailed
+   *          The number of pages
+   */
+  public void setPagesFailed(long pagesFailed) {
+    this.pagesFailed = pagesFailed;
+  }
+
+  /**
+   * Get the number of links that weren't followed because the frontier was
+   * full
+   * 
+   * @return The number of links
+   */
+  public long getUrlsDropped() {
+    return urlsDropped;
+  }
+
+  /**
+   * Set the number of links that weren't followed because the frontier was
+   * full
+   * 
+   * @param urlsDropped
+   *          The number of links
+   */
+  public void setUrlsDropped(long urlsDropped) {
+    this.urlsDropped = urlsDropped;
+  }
+
+  /**
+   * Get why the crawl failed
+   * 
+   * @return The error message, or null if the crawl hasn't failed
+   */
+  public String getError() {
+    return error;
+  }
+
+  /**
+   * Set why the crawl failed
+   * 
+   * @param error
+   *          The error message
+   */
+  public void setError(String error) {
+    this.error = error;
+  }
+
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kitesdk.spring.hbase.example.model.frontend;
+
+/**
+ * A front end model for an asynchronous snapshot job
+ */
+public class SnapshotJob {
+
+  public static final String PENDING = "pending";
+  public static final String RUNNING = "running";
+  public static final String DONE = "done";
+  public static final String FAILED = "failed";
+
+  /**
+   * The id used to check on the job
+   */
+  private String id;
+
+  /**
+   * The URL to take a snapshot of
+   */
+  private String url;
+
+  /**
+   * The status of the job: pending, running, done or failed
+   */
+  private volatile String status = PENDING;
+
+  /**
+   * The metadata of the snapshot, once the job is done
+   */
+  private volatile WebPageSnapshotMeta meta;
+
+  /**
+   * Why the job failed, if it failed
+   */
+  private volatile String error;
+
+  public SnapshotJob() {
+  }
+
+  public SnapshotJob(String id, String url) {
+    this.id = id;
+    this.url = url;
+  }
+
+  /**
+   * Get the id of the job
+   * 
+   * @return The id
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * Set the id of the job
+   * 
+   * @param id
+   *          The id
+   */
+  public void setId(String id) {
+    this.id = id;
+  }
+
+  /**
+   * Get the URL to take a snapshot of
+   * 
+   * @return The URL
+   */
+  public String getUrl() {
+    return url;
+  }
+
+  /**
+   * Set the URL to take a snapshot of
+   * 
+   * @param url
+   *          The URL to set
+   */
+  public void setUrl(String url) {
+    this.url = url;
+  }
+
+  /**
+   * Get the status of the job
+   * 
+   * @return pending, running, done or failed
+   */
+  public String getStatus() {
+    return status;
+  }
+
+  /**
+   * Set the status of the job
+   * 
+   * @param status
+   *          pending, running, done or failed
+   */
+  public void setStatus(String status) {
+    this.status = status;
+  }
+
+  /**
+   * Get the metadata of the snapshot
+   * 
+   * @return The WebPageSnapshotMeta, or null if the job isn't done
+   */
+  public WebPageSnapshotMeta getMeta() {
+    return meta;
+  }
+
+  /**
+   * Set the metadata of the snapshot
+   * 
+   * @param meta
+   *          The WebPageSnapshotMeta
+   */
+  public void setMeta(WebPageSnapshotMeta meta) {
+    this.meta = meta;
+  }
+
+  /**
+   * Get why the job failed
+   * 
+   * @return The error message, or null if the job hasn't failed
+   */
+  public String getError() {
+    return error;
+  }
+
+  /**
+   * Set why the job failed
+   * 
+   * @param error
+   *          The error message
+   */
+  public void setError(String error) {
+    this.error = error;
+  }
+
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kitesdk.spring.hbase.example.model.frontend;
+
+/**
+ * A front end model for one URL in a batch snapshot request
+ */
+public class SnapshotRequest {
+
+  /**
+   * The URL to take a snapshot of
+   */
+  private String url;
+
+  /**
+   * Whether the snapshot content is public, or private to the user taking it
+   */
+  private boolean isPublic;
+
+  /**
+   * Get the URL to take a snapshot of
+   * 
+   * @return The URL
+   */
+  public String getUrl() {
+    return url;
+  }
+
+  /**
+   * Set the URL to take a snapshot of
+   * 
+   * @param url
+   *          The URL to set
+   */
+  public void setUrl(String url) {
+    this.url = url;
+  }
+
+  /**
+   * Get whether the snapshot content is public
+   * 
+   * @return True if the content is public, false if it's private
+   */
+  public boolean isPublic() {
+    return isPublic;
+  }
+
+  /**
+   * Set whether the snapshot content is public
+   * 
+   * @param isPublic
+   *          True if the content is public, false if it's private
+   */
+  public void setPublic(boolean isPublic) {
+    this.isPublic = isPublic;
+  }
+
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kitesdk.spring.hbase.example.model.frontend;
+
+/**
+ * A front end model for the result of snapshotting one URL in a batch
+ */
+public class SnapshotResult {
+
+  /**
+   * The URL that was requested
+   */
+  private String url;
+
+  /**
+   * The metadata of the snapshot, if it was taken
+   */
+  private WebPageSnapshotMeta meta;
+
+  /**
+   * Why the snapshot failed, if it wasn't taken
+   */
+  private String error;
+
+  public SnapshotResult() {
+  }
+
+  public SnapshotResult(String url, WebPageSnapshotMeta meta, String error) {
+    this.url = url;
+    this.meta = meta;
+    this.error = error;
+  }
+
+  /**
+   * Get the URL that was requested
+   * 
+   * @return The URL
+   */
+  public String getUrl() {
+    return url;
+  }
+
+  /**
+   * Set the URL that was requested
+   * 
+   * @param url
+   *          The URL to set
+   */
+  public void setUrl(String url) {
+    this.url = url;
+  }
+
+  /**
+   * Get the metadata of the snapshot
+   * 
+   * @return The WebPageSnapshotMeta, or null if the snapshot failed
+   */
+  public WebPageSnapshotMeta getMeta() {
+    return meta;
+  }
+
+  /**
+   * Set the metadata of the snapshot
+   * 
+   * @param meta
+   *          The WebPageSnapshotMeta
+   */
+  public void setMeta(WebPageSnapshotMeta meta) {
+    this.meta = meta;
+  }
+
+  /**
+   * Get why the snapshot failed
+   * 
+   * @return The error message, or null if the snapshot was taken
+   */
+  public String getError() {
+    return error;
+  }
+
+  /**
+   * Set why the snapshot failed
+   * 
+   * @param error
+   *          The error message
+   */
+  public void setError(String error) {
+    this.error = error;
+  }
+
+}
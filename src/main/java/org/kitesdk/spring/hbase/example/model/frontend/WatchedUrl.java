@@ -0,0 +1,130 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.model.frontend;
+
+/**
+ * A front end model for an URL that is snapshotted on a schedule
+ */
+public class WatchedUrl {
+
+  /**
+   * The URL that is watched
+   */
+  private String url;
+
+  /**
+   * Whether the snapshots are public
+   */
+  private boolean isPublic;
+
+  /**
+   * The current interval between snapshots, in seconds
+   */
+  private int intervalSeconds;
+
+  /**
+   * When the next snapshot is due, in epoch ms
+   */
+  private long nextSnapshotAt;
+
+  public WatchedUrl() {
+  }
+
+  public WatchedUrl(String url, boolean isPublic, int intervalSeconds,
+      long nextSnapshotAt) {
+    this.url = url;
+    this.isPublic = isPublic;
+    this.intervalSeconds = intervalSeconds;
+    this.nextSnapshotAt = nextSnapshotAt;
+  }
+
+  /**
+   * Get the URL that is watched
+   *
+   * @return The URL
+   */
+  public String getUrl() {
+    return url;
+  }
+
+  /**
+   * Set the URL that is watched
+   *
+   * @param url
+   *          The URL to set
+   */
+  public void setUrl(String url) {
+    this.url = url;
+  }
+
+  /**
+   * Get whether the snapshots are public
+   *
+   * @return true if the snapshots are public
+   */
+  public boolean isPublic() {
+    return isPublic;
+  }
+
+  /**
+   * Set whether the snapshots are public
+   *
+   * @param isPublic
+   *          true if the snapshots are public
+   */
+  public void setPublic(boolean isPublic) {
+    this.isPublic = isPublic;
+  }
+
+  /**
+   * Get the current interval between snapshots
+   *
+   * @return The interval in seconds
+   */
+  public int getIntervalSeconds() {
+    return intervalSeconds;
+  }
+
+  /**
+   * Set the current interval between snapshots
+   *
+   * @param intervalSeconds
+   *          The interval in seconds
+   */
+  public void setIntervalSeconds(int intervalSeconds) {
+    this.intervalSeconds = intervalSeconds;
+  }
+
+  /**
+   * Get when the next snapshot is due
+   *
+   * @return The epoch timestamp in ms
+   */
+  public long getNextSnapshotAt() {
+    return nextSnapshotAt;
+  }
+
+  /**
+   * Set when the next snapshot is due
+   *
+   * @param nextSnapshotAt
+   *          The epoch timestamp in ms
+   */
+  public void setNextSnapshotAt(long nextSnapshotAt) {
+    this.nextSnapshotAt = nextSnapshotAt;
+  }
+
+}
@@ -67,6 +67,16 @@ public class WebPageSnapshotMeta {
    */
   private List<String> outlinks;
 
+  /**
+   * The digest of the web page content
+   */
+  private String contentDigest;
+
+  /**
+   * The UTC time that this page was last checked for changes at.
+   */
+  private long lastCheckedAt;
+
   /**
    * Get the URL of the web page.
    * 
@@ -226,4 +236,45 @@ public class WebPageSnapshotMeta {
     this.outlinks = outlinks;
   }
 
+  /**
+   * Get the digest of the web page content. Snapshots with the same digest
+   * have the same content.
+   * 
+   * @return The hex encoded SHA-256 of the content, or an empty string for
+   *         snapshots taken before content was deduplicated
+   */
+  public String getContentDigest() {
+    return contentDigest;
+  }
+
+  /**
+   * Set the digest of the web page content
+   * 
+   * @param contentDigest
+   *          The hex encoded SHA-256 of the content
+   */
+  public void setContentDigest(String contentDigest) {
+    this.contentDigest = contentDigest;
+  }
+
+  /**
+   * Get the epoch time the web page was last checked for changes. Pages that
+   * were unchanged when they were snapshotted again keep the snapshot they
+   * had, with a later last checked time.
+   * 
+   * @return The time as an epoch
+   */
+  public long getLastCheckedAt() {
+    return lastCheckedAt;
+  }
+
+  /**
+   * Set the epoch time the web page was last checked for changes.
+   * 
+   * @param lastCheckedAt
+   */
+  public void setLastCheckedAt(long lastCheckedAt) {
+    this.lastCheckedAt = lastCheckedAt;
+  }
+
 }
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * The HBase columns of the fields of a Kite model, read out of the "mapping"
+ * properties in its Avro schema, so cells read with the HBase client can be
+ * decoded the same way Kite decodes them.
+ *
+ * Key fields aren't mapped to columns, and have to be decoded from the row
+ * key by the caller.
+ */
+class AvroColumnMapping {
+
+  private final Schema schema;
+  private final List<Column> columns = new ArrayList<Column>();
+
+  AvroColumnMapping(Schema schema) {
+    this.schema = schema;
+    for (Schema.Field field : schema.getFields()) {
+      JsonNode mapping = field.getJsonProp("mapping");
+      if (mapping == null) {
+        continue;
+      }
+      String type = mapping.get("type").getTextValue();
+      if ("column".equals(type)) {
+        String[] column = mapping.get("value").getTextValue().split(":", 2);
+        columns.add(new Column(field.pos(), field.schema(),
+            Bytes.toBytes(column[0]), Bytes.toBytes(column[1])));
+      } else if ("keyAsColumn".equals(type)) {
+        columns.add(new Column(field.pos(), field.schema(),
+            Bytes.toBytes(mapping.get("family").getTextValue()), null));
+      }
+    }
+  }
+
+  /**
+   * Get the column a field is mapped to.
+   *
+   * @param fieldName The name of the field
+   * @return The Column
+   * @throws IllegalArgumentException if the field isn't mapped to a column
+   */
+  Column column(String fieldName) {
+    int pos = schema.getField(fieldName).pos();
+    for (Column column : columns) {
+      if (column.pos == pos) {
+        return column;
+      }
+    }
+    throw new IllegalArgumentException("No column mapped for " + fieldName);
+  }
+
+  /**
+   * Decode the cells in a Result into the column fields of a record. Map
+   * fields are set to whichever cells of their family were read, and other
+   * fields are only set if their cell was read.
+   *
+   * @param result The Result to decode
+   * @param record The record to put the decoded fields in
+   */
+  void decode(Result result, IndexedRecord record) throws IOException {
+    for (Column column : columns) {
+      if (column.qualifier == null) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        Map<byte[], byte[]> cells = result.getFamilyMap(column.family);
+        if (cells != null) {
+          for (Map.Entry<byte[], byte[]> cell : cells.entrySet()) {
+            map.put(Bytes.toString(cell.getKey()),
+                decodeBinary(column.schema.getValueType(), cell.getValue()));
+          }
+        }
+        record.put(column.pos, map);
+      } else {
+        byte[] value = result.getValue(column.family, column.qualifier);
+        if (value != null) {
+          record.put(column.pos, decode(column.schema, value));
+        }
+      }
+    }
+  }
+
+  /**
+   * Decode a column cell. Like Kite, int, long and string columns are stored
+   * as plain HBase bytes, and everything else is Avro binary.
+   */
+  private static Object decode(Schema schema, byte[] value) throws IOException {
+    switch (schema.getType()) {
+      case INT:
+        return Bytes.toInt(value);
+      case LONG:
+        return Bytes.toLong(value);
+      case STRING:
+        return Bytes.toString(value);
+      default:
+        return decodeBinary(schema, value);
+    }
+  }
+
+  /**
+   * Decode an Avro binary cell, which is how Kite stores map values.
+   */
+  private static Object decodeBinary(Schema schema, byte[] value)
+      throws IOException {
+    return new GenericDatumReader<Object>(schema).read(null,
+        DecoderFactory.get().binaryDecoder(value, null));
+  }
+
+  /**
+   * A field mapped to a column, or to a whole family when the qualifier is
+   * null.
+   */
+  static class Column {
+
+    final byte[] family;
+    final byte[] qualifier;
+    private final int pos;
+    private final Schema schema;
+
+    private Column(int pos, Schema schema, byte[] family, byte[] qualifier) {
+      this.pos = pos;
+      this.schema = schema;
+      this.family = family;
+      this.qualifier = qualifier;
+    }
+
+    /**
+     * Encode a value the way Kite stores it in this column, for filters that
+     * compare cell values.
+     *
+     * @param value The field value
+     * @return The cell value
+     */
+    byte[] encode(Object value) {
+      switch (schema.getType()) {
+        case INT:
+          return Bytes.toBytes((Integer) value);
+        case LONG:
+          return Bytes.toBytes((Long) value);
+        case STRING:
+          return Bytes.toBytes(value.toString());
+        default:
+          break;
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+      try {
+        new GenericDatumWriter<Object>(schema).write(value, encoder);
+        encoder.flush();
+      } catch (IOException ex) {
+        // writing to a byte array can't fail
+        throw new IllegalStateException(ex);
+      }
+      return out.toByteArray();
+    }
+  }
+}
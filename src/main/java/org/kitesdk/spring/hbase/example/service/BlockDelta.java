@@ -0,0 +1,288 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * A copy/insert delta between two versions of a page.
+ *
+ * The base is indexed by the hash of each aligned block. Every position in
+ * the target is looked up in the index, and a matching block is extended as
+ * far as it goes in both directions and written as a copy of the base. Bytes
+ * between copies are written as inserts. Pages that only change a few lines
+ * between snapshots encode to a handful of copies and short inserts.
+ *
+ * The hash is a polynomial rolling hash, so moving to the next position in
+ * the target costs one multiply rather than rehashing the block, and the
+ * index is an open-addressing table of primitives.
+ *
+ * The encoding is the target length, followed by ops. A copy is a 0 byte,
+ * the offset into the base and the length. An insert is a 1 byte, the length
+ * and the inserted bytes. Numbers are unsigned varints.
+ */
+final class BlockDelta {
+
+  private static final int BLOCK_SIZE = 16;
+
+  private static final long PRIME = 0x100000001b3L;
+  /**
+   * PRIME to the power of BLOCK_SIZE - 1, the factor of the byte that rolls
+   * out of the block.
+   */
+  private static final long OUT_FACTOR;
+
+  static {
+    long factor = 1;
+    for (int i = 1; i < BLOCK_SIZE; i++) {
+      factor *= PRIME;
+    }
+    OUT_FACTOR = factor;
+  }
+
+  private static final int COPY = 0;
+  private static final int INSERT = 1;
+
+  private BlockDelta() {
+  }
+
+  /**
+   * Encode the delta that turns base into target.
+   *
+   * @param base The previous version
+   * @param target The new version
+   * @return The delta
+   */
+  static byte[] encode(byte[] base, byte[] target) {
+    BlockIndex blocks = new BlockIndex(base.length / BLOCK_SIZE);
+    for (int i = 0; i + BLOCK_SIZE <= base.length; i += BLOCK_SIZE) {
+      blocks.putIfAbsent(hash(base, i), i);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeVarint(out, target.length);
+    int insertStart = 0;
+    int pos = 0;
+    // the hash of the block at pos, once hashed is set
+    long hash = 0;
+    boolean hashed = false;
+    while (pos + BLOCK_SIZE <= target.length) {
+      if (!hashed) {
+        hash = hash(target, pos);
+        hashed = true;
+      }
+      int match = blocks.get(hash);
+      if (match < 0 || !regionMatches(base, match, target, pos)) {
+        if (pos + BLOCK_SIZE < target.length) {
+          hash = roll(hash, target[pos], target[pos + BLOCK_SIZE]);
+        }
+        pos++;
+        continue;
+      }
+      int baseStart = match;
+      int targetStart = pos;
+      while (targetStart > insertStart && baseStart > 0
+          && base[baseStart - 1] == target[targetStart - 1]) {
+        baseStart--;
+        targetStart--;
+      }
+      int baseEnd = match + BLOCK_SIZE;
+      int targetEnd = pos + BLOCK_SIZE;
+      while (targetEnd < target.length && baseEnd < base.length
+          && base[baseEnd] == target[targetEnd]) {
+        baseEnd++;
+        targetEnd++;
+      }
+      writeInsert(out, target, insertStart, targetStart);
+      out.write(COPY);
+      writeVarint(out, baseStart);
+      writeVarint(out, baseEnd - baseStart);
+      pos = targetEnd;
+      insertStart = targetEnd;
+      hashed = false;
+    }
+    writeInsert(out, target, insertStart, target.length);
+    return out.toByteArray();
+  }
+
+  /**
+   * Apply a delta to the base it was encoded against.
+   *
+   * @param base The previous version
+   * @param delta The delta
+   * @return The new version
+   * @throws IOException if the delta is corrupt or doesn't fit the base
+   */
+  static byte[] decode(byte[] base, byte[] delta) throws IOException {
+    int[] pos = new int[] { 0 };
+    byte[] target = new byte[readVarint(delta, pos)];
+    int length = 0;
+    while (pos[0] < delta.length) {
+      int op = delta[pos[0]++];
+      if (op == COPY) {
+        int offset = readVarint(delta, pos);
+        int count = readVarint(delta, pos);
+        if (offset > base.length || count > base.length - offset
+            || count > target.length - length) {
+          throw new IOException("Delta copy out of range");
+        }
+        System.arraycopy(base, offset, target, length, count);
+        length += count;
+      } else if (op == INSERT) {
+        int count = readVarint(delta, pos);
+        if (count > delta.length - pos[0] || count > target.length - length) {
+          throw new IOException("Delta insert out of range");
+        }
+        System.arraycopy(delta, pos[0], target, length, count);
+        pos[0] += count;
+        length += count;
+      } else {
+        throw new IOException("Unknown delta op: " + op);
+      }
+    }
+    if (length != target.length) {
+      throw new IOException("Delta is truncated");
+    }
+    return target;
+  }
+
+  private static void writeInsert(ByteArrayOutputStream out, byte[] target,
+      int start, int end) {
+    if (end > start) {
+      out.write(INSERT);
+      writeVarint(out, end - start);
+      out.write(target, start, end - start);
+    }
+  }
+
+  private static boolean regionMatches(byte[] base, int baseOffset,
+      byte[] target, int targetOffset) {
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      if (base[baseOffset + i] != target[targetOffset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Polynomial hash of the block at an offset, modulo 2^64.
+   */
+  private static long hash(byte[] bytes, int offset) {
+    long hash = 0;
+    for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+      hash = hash * PRIME + (bytes[i] & 0xFF);
+    }
+    return hash;
+  }
+
+  /**
+   * Move a block's hash forward by one byte.
+   *
+   * @param hash The hash of the block
+   * @param out The first byte of the block
+   * @param in The byte after the block
+   * @return The hash of the block one byte further on
+   */
+  private static long roll(long hash, byte out, byte in) {
+    return (hash - (out & 0xFF) * OUT_FACTOR) * PRIME + (in & 0xFF);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static int readVarint(byte[] bytes, int[] pos) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      if (pos[0] >= bytes.length) {
+        throw new IOException("Delta is truncated");
+      }
+      byte b = bytes[pos[0]++];
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (value < 0) {
+          break;
+        }
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint in delta");
+  }
+
+  /**
+   * Maps block hashes to the offset of the first base block with that hash,
+   * with linear probing in parallel arrays, so that neither the hashes nor
+   * the offsets are boxed.
+   */
+  private static final class BlockIndex {
+
+    private final long[] hashes;
+    // offset + 1, so that 0 is an empty slot
+    private final int[] offsets;
+    private final int mask;
+
+    private BlockIndex(int blocks) {
+      int capacity = 2;
+      while (capacity < blocks * 2) {
+        capacity <<= 1;
+      }
+      hashes = new long[capacity];
+      offsets = new int[capacity];
+      mask = capacity - 1;
+    }
+
+    private void putIfAbsent(long hash, int offset) {
+      int slot = slot(hash);
+      while (offsets[slot] != 0) {
+        if (hashes[slot] == hash) {
+          return;
+        }
+        slot = (slot + 1) & mask;
+      }
+      hashes[slot] = hash;
+      offsets[slot] = offset + 1;
+    }
+
+    /**
+     * @return The offset of the block, or -1 if no block has the hash
+     */
+    private int get(long hash) {
+      int slot = slot(hash);
+      while (offsets[slot] != 0) {
+        if (hashes[slot] == hash) {
+          return offsets[slot] - 1;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return -1;
+    }
+
+    /**
+     * Mix the high bits in, since the low bits of a polynomial hash only
+     * depend on the low bits of the bytes.
+     */
+    private int slot(long hash) {
+      return (int) ((hash ^ (hash >>> 32)) * 0x9e3779b97f4a7c15L >>> 32)
+          & mask;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size Bloom filter of strings, which can be added to and checked
+ * from any number of threads without locking.
+ *
+ * The filter is sized up front for an expected number of strings and a false
+ * positive rate. Adding more strings than expected still works, but the false
+ * positive rate climbs, so the filter tracks how many of its bits are set and
+ * reports the false positive rate it currently has.
+ *
+ * Each string is hashed once with 128 bit murmur3, and the two halves of the
+ * hash are combined to pick the bits (Kirsch and Mitzenmacher).
+ */
+final class BloomFilter {
+
+  private final AtomicLongArray words;
+  private final long bitCount;
+  private final int hashCount;
+  private final AtomicLong setBitCount = new AtomicLong();
+
+  /**
+   * @param expectedInsertions The number of strings the filter is sized for
+   * @param falsePositiveRate The false positive rate at that number of strings
+   */
+  BloomFilter(long expectedInsertions, double falsePositiveRate) {
+    if (expectedInsertions < 1) {
+      throw new IllegalArgumentException(
+          "Expected insertions must be at least 1: " + expectedInsertions);
+    }
+    if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+      throw new IllegalArgumentException(
+          "False positive rate must be between 0 and 1: " + falsePositiveRate);
+    }
+    long bits = (long) Math.ceil(-expectedInsertions
+        * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    // round up to whole words
+    int wordCount = (int) Math.min(Integer.MAX_VALUE, (bits + 63) / 64);
+    this.words = new AtomicLongArray(wordCount);
+    this.bitCount = wordCount * 64L;
+    this.hashCount = Math.max(1, (int) Math.round(
+        (double) bitCount / expectedInsertions * Math.log(2)));
+  }
+
+  /**
+   * Add a string to the filter.
+   *
+   * @param value The string
+   * @return true if the filter changed, which means the string definitely
+   * wasn't in the filter before
+   */
+  boolean put(String value) {
+    long[] hash = hash(value);
+    boolean changed = false;
+    for (int i = 0; i < hashCount; i++) {
+      long bit = bit(hash, i);
+      int word = (int) (bit >>> 6);
+      long mask = 1L << bit;
+      while (true) {
+        long current = words.get(word);
+        if ((current & mask) != 0) {
+          break;
+        }
+        if (words.compareAndSet(word, current, current | mask)) {
+          setBitCount.incrementAndGet();
+          changed = true;
+          break;
+        }
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Check whether a string might have been added to the filter.
+   *
+   * @param value The string
+   * @return false if the string was definitely never added
+   */
+  boolean mightContain(String value) {
+    long[] hash = hash(value);
+    for (int i = 0; i < hashCount; i++) {
+      long bit = bit(hash, i);
+      if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return The size of the filter's bit array in bytes
+   */
+  long getMemoryBytes() {
+    return bitCount / 8;
+  }
+
+  /**
+   * @return The chance that mightContain returns true for a string that
+   * wasn't added, given how full the filter is now
+   */
+  double getFalsePositiveRate() {
+    return Math.pow((double) setBitCount.get() / bitCount, hashCount);
+  }
+
+  /**
+   * @return An estimate of the number of distinct strings added
+   */
+  long getApproximateCount() {
+    long unset = bitCount - setBitCount.get();
+    if (unset == 0) {
+      return Long.MAX_VALUE;
+    }
+    return Math.round(-(double) bitCount / hashCount
+        * Math.log((double) unset / bitCount));
+  }
+
+  private long bit(long[] hash, int i) {
+    long combined = hash[0] + i * hash[1];
+    // flip negative values so every bit can be picked
+    return (combined < 0 ? ~combined : combined) % bitCount;
+  }
+
+  private static long[] hash(String value) {
+    ByteBuffer hash = ByteBuffer.wrap(Hashing.murmur3_128()
+        .hashString(value, Charsets.UTF_8).asBytes())
+        .order(ByteOrder.LITTLE_ENDIAN);
+    return new long[] { hash.getLong(), hash.getLong() };
+  }
+}
@@ -0,0 +1,388 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivilegedExceptionAction;
+import java.security.SecureRandom;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.kitesdk.data.Datasets;
+import org.kitesdk.data.RandomAccessDataset;
+import org.kitesdk.data.spi.DefaultConfiguration;
+import org.kitesdk.spring.hbase.example.model.WebPageContentModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Stores large page contents in append-only container files on HDFS, so they
+ * don't have to be stored in HBase cells.
+ *
+ * Contents are appended to the current container file, which is flushed after
+ * every content so it can be read right away, and rolled once it reaches the
+ * maximum file size. Each content is identified by a pointer of the form
+ * file:offset:length:mac, which is stored in HBase in place of the content,
+ * and read back with a single positional read of just that range.
+ *
+ * The container files are written and read as the application principal, so
+ * the directory only has to be accessible to it. Whether a user can read a
+ * content is decided by whether they can read its pointer, which is stored in
+ * a column with the same grants as the content would have had. Since the
+ * pointer is followed as the application, it's also written as the
+ * application, users are only granted read access to the blob family, and
+ * the pointer is only followed if its mac, an HMAC of the content key, file,
+ * offset and length under a key kept in the directory, is valid and its file
+ * is a container file directly in the directory.
+ */
+@ManagedResource(objectName = "kite.spring.hbase.example:name=ContentBlobStore",
+    description = "Large page contents on HDFS")
+public class ContentBlobStore {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(ContentBlobStore.class);
+
+  private static final String FILE_SUFFIX = ".blob";
+  private static final char SEPARATOR = ':';
+  private static final Pattern FILE_NAME = Pattern.compile(
+      "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}"
+      + Pattern.quote(FILE_SUFFIX));
+
+  private static final String KEY_FILE = ".pointer.key";
+  private static final int KEY_BYTES = 32;
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+
+  private final boolean enabled;
+  private final int thresholdBytes;
+  private final Path directory;
+  private final long maxFileBytes;
+  private final String webPageContentUri;
+
+  private FSDataOutputStream current = null;
+  private String currentName = null;
+
+  private SecretKeySpec pointerKey = null;
+  private RandomAccessDataset<WebPageContentModel> webPageContentModels = null;
+
+  private final AtomicLong writeCount = new AtomicLong();
+  private final AtomicLong bytesWritten = new AtomicLong();
+  private final AtomicLong readCount = new AtomicLong();
+  private final AtomicLong bytesRead = new AtomicLong();
+  private final AtomicLong fileCount = new AtomicLong();
+
+  /**
+   * @param enabled Whether large contents are stored on HDFS
+   * @param thresholdKb The size in KB above which a content, as it would be
+   * stored, goes to HDFS
+   * @param directory The directory the container files are written to
+   * @param maxFileBytes The size at which a container file is rolled
+   * @param webPageContentUri The URI of the WebPageContentModel dataset the
+   * pointers are written to
+   */
+  public ContentBlobStore(boolean enabled, int thresholdKb, String directory,
+      long maxFileBytes, String webPageContentUri) {
+    if (thresholdKb < 0 || maxFileBytes < 1) {
+      throw new IllegalArgumentException("Invalid blob store limits");
+    }
+    this.enabled = enabled;
+    this.thresholdBytes = thresholdKb * 1024;
+    this.directory = new Path(directory);
+    this.maxFileBytes = maxFileBytes;
+    this.webPageContentUri = webPageContentUri;
+  }
+
+  /**
+   * Check whether a content should be stored on HDFS.
+   *
+   * @param length The length of the content as it would be stored
+   * @return true if the content is over the threshold
+   */
+  boolean shouldStore(int length) {
+    return enabled && length > thresholdBytes;
+  }
+
+  /**
+   * Append a content to the current container file, and write the content's
+   * row, holding the pointer to it, as the application.
+   *
+   * @param digest The content digest
+   * @param contentKey The content key the content is stored under
+   * @param codec The name of the codec the content is compressed with
+   * @param content The content, as it would otherwise be stored in HBase
+   */
+  void store(final String digest, final String contentKey, final String codec,
+      final byte[] content) throws IOException {
+    asApplication(new PrivilegedExceptionAction<Void>() {
+
+      @Override
+      public Void run() throws IOException {
+        String pointer = write(contentKey, content);
+        webPageContentModels().put(WebPageContentModel.newBuilder()
+            .setDigest(digest)
+            .setContentCodec(codec)
+            .setContent(ImmutableMap.<String, ByteBuffer>of())
+            .setBlobs(ImmutableMap.of(contentKey, pointer))
+            .build());
+        return null;
+      }
+    });
+    writeCount.incrementAndGet();
+    bytesWritten.addAndGet(content.length);
+  }
+
+  private synchronized String write(String contentKey, byte[] content)
+      throws IOException {
+    if (current == null || current.getPos() >= maxFileBytes) {
+      roll();
+    }
+    long offset = current.getPos();
+    try {
+      current.write(content);
+      current.hflush();
+    } catch (IOException ex) {
+      // start over in a new file rather than after a partial write
+      close();
+      throw ex;
+    }
+    String location = currentName + SEPARATOR + offset + SEPARATOR
+        + content.length;
+    return location + SEPARATOR + mac(contentKey, location);
+  }
+
+  /**
+   * Read a content back.
+   *
+   * @param contentKey The content key the pointer was read for
+   * @param pointer The pointer stored when the content was written
+   * @return The content
+   * @throws IOException if the pointer is malformed, wasn't written by this
+   * store for the content key, or the content can't be read
+   */
+  byte[] read(final String contentKey, String pointer) throws IOException {
+    int macStart = pointer.lastIndexOf(SEPARATOR);
+    int lengthStart = pointer.lastIndexOf(SEPARATOR, macStart - 1);
+    int offsetStart = pointer.lastIndexOf(SEPARATOR, lengthStart - 1);
+    if (offsetStart <= 0
+        || !FILE_NAME.matcher(pointer.substring(0, offsetStart)).matches()) {
+      throw new IOException("Malformed content blob pointer: " + pointer);
+    }
+    final String location = pointer.substring(0, macStart);
+    final byte[] mac = pointer.substring(macStart + 1)
+        .getBytes(Charsets.US_ASCII);
+    final Path file = new Path(directory, pointer.substring(0, offsetStart));
+    final long offset;
+    final int length;
+    try {
+      offset = Long.parseLong(pointer.substring(offsetStart + 1, lengthStart));
+      length = Integer.parseInt(pointer.substring(lengthStart + 1, macStart));
+    } catch (NumberFormatException ex) {
+      throw new IOException("Malformed content blob pointer: " + pointer, ex);
+    }
+    byte[] content = asApplication(new PrivilegedExceptionAction<byte[]>() {
+
+      @Override
+      public byte[] run() throws IOException {
+        // checked before anything is allocated or opened for the pointer
+        if (!MessageDigest.isEqual(mac,
+            mac(contentKey, location).getBytes(Charsets.US_ASCII))) {
+          throw new IOException("Invalid content blob pointer: " + location);
+        }
+        byte[] content = new byte[length];
+        FSDataInputStream in = fileSystem().open(file);
+        try {
+          in.readFully(offset, content);
+        } finally {
+          in.close();
+        }
+        return content;
+      }
+    });
+    readCount.incrementAndGet();
+    bytesRead.addAndGet(content.length);
+    return content;
+  }
+
+  /**
+   * Close the current container file.
+   */
+  public synchronized void close() {
+    if (current != null) {
+      try {
+        current.close();
+      } catch (IOException ex) {
+        LOG.warn("Unable to close content blob file " + currentName, ex);
+      }
+      current = null;
+    }
+  }
+
+  /**
+   * Close the current container file and start a new one.
+   */
+  private void roll() throws IOException {
+    close();
+    String name = UUID.randomUUID().toString() + FILE_SUFFIX;
+    current = fileSystem().create(new Path(directory, name), false);
+    currentName = name;
+    fileCount.incrementAndGet();
+    LOG.info("Writing large contents to {}", new Path(directory, name));
+  }
+
+  /**
+   * The hex HMAC of a content location for a content key, so a pointer
+   * can't be moved to another content key or point anywhere else.
+   */
+  private String mac(String contentKey, String location) throws IOException {
+    try {
+      Mac mac = Mac.getInstance(MAC_ALGORITHM);
+      mac.init(pointerKey());
+      byte[] bytes = mac.doFinal((contentKey + SEPARATOR + location)
+          .getBytes(Charsets.UTF_8));
+      StringBuilder hex = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+            .append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("Unable to sign content blob pointer", ex);
+    }
+  }
+
+  /**
+   * Load the pointer key from the directory, creating it if this is the
+   * first store to use the directory. Must be called as the application.
+   */
+  private synchronized SecretKeySpec pointerKey() throws IOException {
+    if (pointerKey != null) {
+      return pointerKey;
+    }
+    FileSystem fs = fileSystem();
+    Path path = new Path(directory, KEY_FILE);
+    if (!fs.exists(path)) {
+      byte[] key = new byte[KEY_BYTES];
+      new SecureRandom().nextBytes(key);
+      try {
+        FSDataOutputStream out = fs.create(path, false);
+        try {
+          out.write(key);
+        } finally {
+          out.close();
+        }
+        fs.setPermission(path, new FsPermission((short) 0600));
+      } catch (IOException ex) {
+        // another instance may have created it first, in which case it's
+        // read below
+        LOG.debug("Unable to create content blob pointer key", ex);
+      }
+    }
+    byte[] key = new byte[KEY_BYTES];
+    FSDataInputStream in = fs.open(path);
+    try {
+      in.readFully(0, key);
+    } finally {
+      in.close();
+    }
+    pointerKey = new SecretKeySpec(key, MAC_ALGORITHM);
+    return pointerKey;
+  }
+
+  /**
+   * The WebPageContentModel dataset, loaded as the application. Must be
+   * called as the application.
+   */
+  private synchronized RandomAccessDataset<WebPageContentModel>
+      webPageContentModels() {
+    if (webPageContentModels == null) {
+      webPageContentModels = Datasets.load(webPageContentUri,
+          WebPageContentModel.class);
+    }
+    return webPageContentModels;
+  }
+
+  private FileSystem fileSystem() throws IOException {
+    return directory.getFileSystem(DefaultConfiguration.get());
+  }
+
+  /**
+   * Run an action as the application principal, even if the calling thread
+   * is running as a proxy user.
+   */
+  private static <T> T asApplication(PrivilegedExceptionAction<T> action)
+      throws IOException {
+    try {
+      return UserGroupInformation.getLoginUser().doAs(action);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted accessing content blobs", ex);
+    }
+  }
+
+  @ManagedAttribute(description = "Whether large contents are stored on HDFS")
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @ManagedAttribute(description = "Size in bytes above which contents go to HDFS")
+  public int getThresholdBytes() {
+    return thresholdBytes;
+  }
+
+  @ManagedAttribute(description = "Directory of the container files")
+  public String getDirectory() {
+    return directory.toString();
+  }
+
+  @ManagedAttribute(description = "Number of contents written to HDFS")
+  public long getWriteCount() {
+    return writeCount.get();
+  }
+
+  @ManagedAttribute(description = "Bytes of contents written to HDFS")
+  public long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  @ManagedAttribute(description = "Number of contents read from HDFS")
+  public long getReadCount() {
+    return readCount.get();
+  }
+
+  @ManagedAttribute(description = "Bytes of contents read from HDFS")
+  public long getBytesRead() {
+    return bytesRead.get();
+  }
+
+  @ManagedAttribute(description = "Number of container files started")
+  public long getFileCount() {
+    return fileCount.get();
+  }
+}
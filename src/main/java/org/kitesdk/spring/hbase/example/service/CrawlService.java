@@ -0,0 +1,379 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.net.InternetDomainName;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.kitesdk.spring.hbase.example.model.frontend.CrawlJob;
+import org.kitesdk.spring.hbase.example.model.frontend.SnapshotRequest;
+import org.kitesdk.spring.hbase.example.model.frontend.SnapshotResult;
+import org.kitesdk.spring.hbase.example.model.frontend.WebPageSnapshotMeta;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Component;
+
+/**
+ * Service for crawls, which snapshot a seed URL and then the pages it links
+ * to, level by level, up to a maximum depth.
+ *
+ * Each level is snapshotted in batches through
+ * WebPageSnapshotService.takeSnapshots, and the outlinks of the pages in a
+ * level that are in the crawl's scope make up the next level. A crawl's scope
+ * is the seed's host, the seed's domain, or any host.
+ *
+ * URLs the crawl has already seen are tracked in a Bloom filter sized for the
+ * crawl's page limit, so the crawl's memory doesn't grow with the number of
+ * pages. An URL the filter has definitely not seen is queued as is. One the
+ * filter might have seen is queued too, but is checked against HBase before
+ * it's snapshotted, with the rest of its batch, and skipped if it was already
+ * snapshotted since the crawl started. Each level of the frontier holds an
+ * URL at most once, so links that repeat on every page, like site
+ * navigation, are only queued and checked once per level. The URLs the
+ * filter hasn't seen and the ones it might have are bounded separately, so
+ * repeated links can't crowd new ones out, and links past the bound are
+ * dropped.
+ */
+@Component
+public class CrawlService {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CrawlService.class);
+
+  public static final String SCOPE_HOST = "host";
+  public static final String SCOPE_DOMAIN = "domain";
+  public static final String SCOPE_ANY = "any";
+
+  /**
+   * How long a finished crawl can be checked on.
+   */
+  private static final long JOB_RETENTION_MINUTES = 60 * 24;
+
+  private static final long MAX_RETAINED_JOBS = 10000;
+
+  @Autowired
+  private WebPageSnapshotService webPageSnapshotService;
+
+  @Autowired
+  private AsyncTaskExecutor crawlExecutor;
+
+  @Autowired
+  private CrawlSettings crawlSettings;
+
+  private final Cache<String, OwnedJob> jobs = CacheBuilder.newBuilder()
+      .maximumSize(MAX_RETAINED_JOBS)
+      .expireAfterWrite(JOB_RETENTION_MINUTES, TimeUnit.MINUTES)
+      .build();
+
+  /**
+   * Queue a crawl.
+   *
+   * @param seedUrl The URL to start from
+   * @param isPublic Whether the snapshots are public
+   * @param maxDepth The most links to follow from the seed, which is capped
+   * at the configured maximum depth
+   * @param scope Which links to follow: host, domain or any
+   * @param user The user crawling
+   * @return The pending CrawlJob
+   * @throws IllegalArgumentException if the scope or depth is invalid
+   * @throws TaskRejectedException if too many crawls are already queued
+   */
+  public CrawlJob submit(final String seedUrl, final boolean isPublic,
+      int maxDepth, final String scope, final String user) {
+    if (!SCOPE_HOST.equals(scope) && !SCOPE_DOMAIN.equals(scope)
+        && !SCOPE_ANY.equals(scope)) {
+      throw new IllegalArgumentException("Unknown crawl scope: " + scope);
+    }
+    if (maxDepth < 0) {
+      throw new IllegalArgumentException("Invalid crawl depth: " + maxDepth);
+    }
+    final int depth = Math.min(maxDepth, crawlSettings.getMaxDepth());
+    final CrawlJob job = new CrawlJob(UUID.randomUUID().toString(), seedUrl);
+    jobs.put(job.getId(), new OwnedJob(user, job));
+    try {
+      crawlExecutor.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          job.setStatus(CrawlJob.RUNNING);
+          crawlSettings.crawlStarted();
+          try {
+            crawl(job, isPublic, depth, scope, user);
+            job.setStatus(CrawlJob.DONE);
+          } catch (Exception ex) {
+            LOG.info("Crawl " + job.getId() + " failed", ex);
+            job.setError(String.valueOf(ex.getMessage()));
+            job.setStatus(CrawlJob.FAILED);
+          } finally {
+            crawlSettings.crawlFinished();
+          }
+        }
+      });
+    } catch (TaskRejectedException ex) {
+      jobs.invalidate(job.getId());
+      throw ex;
+    }
+    return job;
+  }
+
+  /**
+   * Get a crawl.
+   *
+   * @param id The id of the crawl
+   * @param user The user checking on the crawl
+   * @return The CrawlJob, or null if there's no such crawl for this user
+   */
+  public CrawlJob getJob(String id, String user) {
+    OwnedJob ownedJob = jobs.getIfPresent(id);
+    if (ownedJob == null || !ownedJob.user.equals(user)) {
+      return null;
+    }
+    return ownedJob.job;
+  }
+
+  private void crawl(CrawlJob job, boolean isPublic, int maxDepth,
+      String scope, String user) throws IOException {
+    long startedAt = System.currentTimeMillis();
+    BloomFilter seen = new BloomFilter(crawlSettings.getMaxPages(),
+        crawlSettings.getFalsePositiveRate());
+    Frontier level = new Frontier();
+    seen.put(job.getSeedUrl());
+    level.add(job.getSeedUrl(), false, 1);
+    Scope crawlScope = null;
+
+    for (int depth = 0; depth <= maxDepth && level.size() > 0; depth++) {
+      job.setDepth(depth);
+      Frontier next = new Frontier();
+      for (int start = 0; start < level.size();
+          start += crawlSettings.getBatchSize()) {
+        long remaining = crawlSettings.getMaxPages()
+            - job.getPagesSnapshotted() - job.getPagesFailed();
+        if (remaining <= 0) {
+          return;
+        }
+        int end = Math.min(level.size(), start + crawlSettings.getBatchSize());
+        List<String> toCheck = new ArrayList<String>();
+        for (int i = start; i < end; i++) {
+          if (level.needsCheck(i)) {
+            toCheck.add(level.url(i));
+          }
+        }
+        Set<String> visited = toCheck.isEmpty() ? new HashSet<String>()
+            : webPageSnapshotService.snapshottedSince(toCheck, startedAt, user);
+        for (String url : toCheck) {
+          crawlSettings.recordExactCheck(visited.contains(url));
+        }
+        List<SnapshotRequest> requests = new ArrayList<SnapshotRequest>();
+        for (int i = start; i < end && requests.size() < remaining; i++) {
+          String url = level.url(i);
+          if (level.needsCheck(i) && visited.contains(url)) {
+            continue;
+          }
+          SnapshotRequest request = new SnapshotRequest();
+          request.setUrl(url);
+          request.setPublic(isPublic);
+          requests.add(request);
+        }
+
+        if (requests.isEmpty()) {
+          continue;
+        }
+        List<SnapshotResult> results =
+            webPageSnapshotService.takeSnapshots(requests, user);
+        int snapshotted = 0;
+        for (SnapshotResult result : results) {
+          WebPageSnapshotMeta meta = result.getMeta();
+          if (meta == null) {
+            job.setPagesFailed(job.getPagesFailed() + 1);
+            continue;
+          }
+          snapshotted++;
+          if (crawlScope == null) {
+            // scope the crawl to where the seed redirected to
+            crawlScope = new Scope(scope, new URL(meta.getUrl()));
+          }
+          if (depth < maxDepth) {
+            follow(job, meta, crawlScope, seen, next);
+          }
+        }
+        job.setPagesSnapshotted(job.getPagesSnapshotted() + snapshotted);
+        crawlSettings.recordPages(snapshotted);
+      }
+      level = next;
+    }
+  }
+
+  /**
+   * Queue the outlinks of a page that are in scope for the next level.
+   */
+  private void follow(CrawlJob job, WebPageSnapshotMeta meta, Scope scope,
+      BloomFilter seen, Frontier next) {
+    URL base;
+    try {
+      base = new URL(meta.getUrl());
+    } catch (MalformedURLException ex) {
+      return;
+    }
+    for (String outlink : meta.getOutlinks()) {
+      URL url = resolve(base, outlink);
+      if (url == null || !scope.includes(url)) {
+        continue;
+      }
+      String urlString = url.toString();
+      if (next.contains(urlString)) {
+        continue;
+      }
+      // put returns true when the URL definitely hasn't been seen
+      boolean unseen = seen.put(urlString);
+      if (!next.add(urlString, !unseen, crawlSettings.getMaxFrontierUrls())) {
+        job.setUrlsDropped(job.getUrlsDropped() + 1);
+        crawlSettings.recordDropped();
+      }
+    }
+  }
+
+  /**
+   * Resolve a link against the page it's on, without its fragment.
+   *
+   * @return The URL, or null if it isn't an http or https URL
+   */
+  private static URL resolve(URL base, String link) {
+    try {
+      URL url = new URL(base, link);
+      if (!"http".equals(url.getProtocol())
+          && !"https".equals(url.getProtocol())) {
+        return null;
+      }
+      return new URL(url.getProtocol(), url.getHost(), url.getPort(),
+          url.getFile());
+    } catch (MalformedURLException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * The distinct URLs queued for one level of a crawl, and which of them
+   * might have been seen before.
+   */
+  private static class Frontier {
+
+    private final List<String> urls = new ArrayList<String>();
+    private final Set<String> queued = new HashSet<String>();
+    private final BitSet needsCheck = new BitSet();
+    private int checkCount = 0;
+
+    /**
+     * Queue an URL, unless the URLs like it, either unseen or possibly seen,
+     * have already reached the bound.
+     *
+     * @return true if the URL was queued
+     */
+    private boolean add(String url, boolean check, int max) {
+      if (check ? checkCount >= max : urls.size() - checkCount >= max) {
+        return false;
+      }
+      if (check) {
+        needsCheck.set(urls.size());
+        checkCount++;
+      }
+      urls.add(url);
+      queued.add(url);
+      return true;
+    }
+
+    private boolean contains(String url) {
+      return queued.contains(url);
+    }
+
+    private int size() {
+      return urls.size();
+    }
+
+    private String url(int i) {
+      return urls.get(i);
+    }
+
+    private boolean needsCheck(int i) {
+      return needsCheck.get(i);
+    }
+  }
+
+  /**
+   * Which hosts a crawl follows links to.
+   */
+  private static class Scope {
+
+    private final String scope;
+    private final String host;
+    private final String domain;
+
+    private Scope(String scope, URL seed) {
+      this.scope = scope;
+      this.host = seed.getHost().toLowerCase(Locale.ENGLISH);
+      this.domain = domain(host);
+    }
+
+    private boolean includes(URL url) {
+      if (SCOPE_ANY.equals(scope)) {
+        return true;
+      }
+      String urlHost = url.getHost().toLowerCase(Locale.ENGLISH);
+      if (SCOPE_HOST.equals(scope)) {
+        return urlHost.equals(host);
+      }
+      return urlHost.equals(host) || domain.equals(domain(urlHost));
+    }
+
+    /**
+     * The registered domain of a host, like example.co.uk for
+     * www.example.co.uk, or the host itself if it has none.
+     */
+    private static String domain(String host) {
+      try {
+        InternetDomainName name = InternetDomainName.from(host);
+        return name.isUnderPublicSuffix() ? name.topPrivateDomain().name()
+            : host;
+      } catch (IllegalArgumentException ex) {
+        // IP addresses and other hosts that aren't domain names
+        return host;
+      }
+    }
+  }
+
+  private static class OwnedJob {
+
+    private final String user;
+    private final CrawlJob job;
+
+    private OwnedJob(String user, CrawlJob job) {
+      this.user = user;
+      this.job = job;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Limits on crawls, and counters of what crawls have done.
+ *
+ * A crawl's heap use is bounded by these limits rather than by the size of
+ * the site: its visited-URL Bloom filter is sized for maxPages, and each
+ * level of the frontier holds at most maxFrontierUrls new URLs, and as many
+ * URLs that might have been visited already.
+ */
+@ManagedResource(objectName = "kite.spring.hbase.example:name=CrawlSettings",
+    description = "Crawl limits and counters")
+public class CrawlSettings {
+
+  private final int maxDepth;
+  private final long maxPages;
+  private final int maxFrontierUrls;
+  private final int batchSize;
+  private final double falsePositiveRate;
+
+  private final AtomicInteger activeCrawls = new AtomicInteger();
+  private final AtomicLong pageCount = new AtomicLong();
+  private final AtomicLong exactCheckCount = new AtomicLong();
+  private final AtomicLong revisitCount = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
+
+  /**
+   * @param maxDepth The most links a crawl follows from its seed
+   * @param maxPages The most pages a crawl snapshots
+   * @param maxFrontierUrls The most new URLs queued for one level of a crawl
+   * @param batchSize The number of pages snapshotted together
+   * @param falsePositiveRate The false positive rate of the visited-URL
+   * filter when a crawl reaches maxPages
+   */
+  public CrawlSettings(int maxDepth, long maxPages, int maxFrontierUrls,
+      int batchSize, double falsePositiveRate) {
+    if (maxDepth < 0 || maxPages < 1 || maxFrontierUrls < 1 || batchSize < 1) {
+      throw new IllegalArgumentException("Invalid crawl limits");
+    }
+    this.maxDepth = maxDepth;
+    this.maxPages = maxPages;
+    this.maxFrontierUrls = maxFrontierUrls;
+    this.batchSize = batchSize;
+    this.falsePositiveRate = falsePositiveRate;
+  }
+
+  int getMaxFrontierUrls() {
+    return maxFrontierUrls;
+  }
+
+  int getBatchSize() {
+    return batchSize;
+  }
+
+  double getFalsePositiveRate() {
+    return falsePositiveRate;
+  }
+
+  void crawlStarted() {
+    activeCrawls.incrementAndGet();
+  }
+
+  void crawlFinished() {
+    activeCrawls.decrementAndGet();
+  }
+
+  void recordPages(int count) {
+    pageCount.addAndGet(count);
+  }
+
+  /**
+   * Record a check in HBase of an URL the filter might have seen.
+   *
+   * @param visited Whether the URL had been snapshotted in the crawl
+   */
+  void recordExactCheck(boolean visited) {
+    exactCheckCount.incrementAndGet();
+    if (visited) {
+      revisitCount.incrementAndGet();
+    }
+  }
+
+  void recordDropped() {
+    droppedCount.incrementAndGet();
+  }
+
+  @ManagedAttribute(description = "Most links a crawl follows from its seed")
+  public int getMaxDepth() {
+    return maxDepth;
+  }
+
+  @ManagedAttribute(description = "Most pages a crawl snapshots")
+  public long getMaxPages() {
+    return maxPages;
+  }
+
+  @ManagedAttribute(description = "Number of crawls running")
+  public int getActiveCrawls() {
+    return activeCrawls.get();
+  }
+
+  @ManagedAttribute(description = "Number of pages snapshotted by crawls")
+  public long getPageCount() {
+    return pageCount.get();
+  }
+
+  @ManagedAttribute(description = "Number of URLs checked in HBase")
+  public long getExactCheckCount() {
+    return exactCheckCount.get();
+  }
+
+  @ManagedAttribute(description = "Number of checked URLs already visited")
+  public long getRevisitCount() {
+    return revisitCount.get();
+  }
+
+  @ManagedAttribute(description = "Number of links dropped for a full frontier")
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+}
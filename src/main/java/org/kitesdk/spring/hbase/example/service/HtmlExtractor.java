@@ -0,0 +1,347 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import com.google.common.base.Charsets;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jsoup.parser.Parser;
+
+/**
+ * Extracts the snapshot metadata from an HTML page in a single pass over the
+ * page, without building a DOM.
+ *
+ * The extractor only looks at start tags, and only keeps the attributes of
+ * the tags it extracts from. Comments and the contents of script and style
+ * elements are skipped like the HTML parser skips them, so markup inside them
+ * isn't extracted. The results are the same as the DOM based extraction:
+ * <ul>
+ * <li>title is the whitespace-normalized text of the first title element,
+ * or an empty string</li>
+ * <li>description is the content of the first meta name="description" tag
+ * that has one, or an empty string</li>
+ * <li>keywords are the comma separated, trimmed values in the content of
+ * every meta name="keywords" tag</li>
+ * <li>outlinks are the trimmed href of every a tag that has one</li>
+ * </ul>
+ */
+final class HtmlExtractor {
+
+  /**
+   * How far into a page to look for a meta charset declaration, when the
+   * response didn't have one.
+   */
+  private static final int CHARSET_SNIFF_LENGTH = 1024;
+
+  private static final Pattern META_CHARSET = Pattern.compile(
+      "<meta[^>]+charset\\s*=\\s*[\"']?\\s*([a-zA-Z0-9_.:\\-]+)",
+      Pattern.CASE_INSENSITIVE);
+
+  /**
+   * Elements whose contents are raw text rather than markup.
+   */
+  private static final String[] RAW_TEXT_TAGS = new String[] {
+      "script", "style", "iframe", "noembed", "noframes", "xmp", "textarea" };
+
+  private final String charset;
+  private final String html;
+  private final int length;
+  private int pos = 0;
+
+  private String title = null;
+  private String description = null;
+  private final List<String> keywords = new ArrayList<String>();
+  private final List<String> outlinks = new ArrayList<String>();
+
+  // the attributes of the current tag that are extracted
+  private String href;
+  private String name;
+  private String content;
+
+  private HtmlExtractor(byte[] body, String charsetName) {
+    this.charset = charset(body, charsetName);
+    String decoded = new String(body, Charset.forName(charset));
+    if (decoded.length() > 0 && decoded.charAt(0) == '\uFEFF') {
+      // byte order mark
+      decoded = decoded.substring(1);
+    }
+    this.html = decoded;
+    this.length = decoded.length();
+  }
+
+  /**
+   * Extract the metadata from a page.
+   *
+   * @param body The response body
+   * @param charsetName The charset from the response's Content-Type, or null
+   * @return The HtmlExtractor holding the metadata
+   */
+  static HtmlExtractor extract(byte[] body, String charsetName) {
+    HtmlExtractor extractor = new HtmlExtractor(body, charsetName);
+    extractor.run();
+    return extractor;
+  }
+
+  /**
+   * @return The charset the page was decoded with
+   */
+  String getCharset() {
+    return charset;
+  }
+
+  String getTitle() {
+    return title != null ? title : "";
+  }
+
+  String getDescription() {
+    return description != null ? description : "";
+  }
+
+  List<String> getKeywords() {
+    return keywords;
+  }
+
+  List<String> getOutlinks() {
+    return outlinks;
+  }
+
+  private void run() {
+    while (pos < length) {
+      int open = html.indexOf('<', pos);
+      if (open < 0 || open + 1 >= length) {
+        return;
+      }
+      pos = open + 1;
+      char c = html.charAt(pos);
+      if (c == '!') {
+        if (html.startsWith("--", pos + 1)) {
+          skipPast("-->", pos + 3);
+        } else {
+          skipPast(">", pos);
+        }
+      } else if (c == '?' || c == '/') {
+        // processing instructions and end tags carry nothing to extract
+        skipPast(">", pos);
+      } else if (Character.isLetter(c)) {
+        startTag();
+      }
+    }
+  }
+
+  private void startTag() {
+    int nameStart = pos;
+    while (pos < length && !isTagNameEnd(html.charAt(pos))) {
+      pos++;
+    }
+    int nameEnd = pos;
+    boolean isA = is(nameStart, nameEnd, "a");
+    boolean isMeta = is(nameStart, nameEnd, "meta");
+    href = null;
+    name = null;
+    content = null;
+    attributes(isA || isMeta);
+
+    if (isA) {
+      if (href != null) {
+        outlinks.add(href.trim());
+      }
+    } else if (isMeta) {
+      if (name == null) {
+        return;
+      } else if (description == null && content != null
+          && name.equalsIgnoreCase("description")) {
+        description = content;
+      } else if (name.equalsIgnoreCase("keywords")) {
+        for (String keyword : (content != null ? content : "").split(",")) {
+          keywords.add(keyword.trim());
+        }
+      }
+    } else if (is(nameStart, nameEnd, "title")) {
+      int end = rawTextEnd("title");
+      if (title == null) {
+        title = normalizeWhitespace(unescape(html.substring(pos, end), false));
+      }
+      skipPast(">", end);
+    } else {
+      for (String rawTextTag : RAW_TEXT_TAGS) {
+        if (is(nameStart, nameEnd, rawTextTag)) {
+          skipPast(">", rawTextEnd(rawTextTag));
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Parse the attributes of the current tag, up to and including the closing
+   * '>'. Values are only kept when extract is true.
+   */
+  private void attributes(boolean extract) {
+    while (pos < length) {
+      char c = html.charAt(pos);
+      if (c == '>') {
+        pos++;
+        return;
+      } else if (isWhitespace(c) || c == '/') {
+        pos++;
+        continue;
+      }
+      int nameStart = pos;
+      while (pos < length && !isAttributeNameEnd(html.charAt(pos))) {
+        pos++;
+      }
+      int nameEnd = pos;
+      skipWhitespace();
+      int valueStart = pos;
+      int valueEnd = pos;
+      if (pos < length && html.charAt(pos) == '=') {
+        pos++;
+        skipWhitespace();
+        if (pos < length
+            && (html.charAt(pos) == '"' || html.charAt(pos) == '\'')) {
+          char quote = html.charAt(pos);
+          valueStart = pos + 1;
+          valueEnd = html.indexOf(quote, valueStart);
+          if (valueEnd < 0) {
+            valueEnd = length;
+          }
+          pos = Math.min(valueEnd + 1, length);
+        } else {
+          valueStart = pos;
+          while (pos < length && !isWhitespace(html.charAt(pos))
+              && html.charAt(pos) != '>') {
+            pos++;
+          }
+          valueEnd = pos;
+        }
+      }
+      if (extract) {
+        // like the HTML parser, a repeated attribute replaces the earlier one
+        if (is(nameStart, nameEnd, "href")) {
+          href = value(valueStart, valueEnd);
+        } else if (is(nameStart, nameEnd, "name")) {
+          name = value(valueStart, valueEnd);
+        } else if (is(nameStart, nameEnd, "content")) {
+          content = value(valueStart, valueEnd);
+        }
+      }
+    }
+  }
+
+  private String value(int start, int end) {
+    return unescape(html.substring(start, end), true);
+  }
+
+  /**
+   * Find where the raw text of an element ends, which is at its end tag or
+   * the end of the page.
+   */
+  private int rawTextEnd(String tagName) {
+    int end = pos;
+    while ((end = html.indexOf("</", end)) >= 0) {
+      if (html.regionMatches(true, end + 2, tagName, 0, tagName.length())
+          && (end + 2 + tagName.length() >= length
+              || isTagNameEnd(html.charAt(end + 2 + tagName.length())))) {
+        return end;
+      }
+      end += 2;
+    }
+    return length;
+  }
+
+  private void skipPast(String terminator, int from) {
+    int end = html.indexOf(terminator, from);
+    pos = end < 0 ? length : end + terminator.length();
+  }
+
+  private void skipWhitespace() {
+    while (pos < length && isWhitespace(html.charAt(pos))) {
+      pos++;
+    }
+  }
+
+  private boolean is(int start, int end, String tagName) {
+    return end - start == tagName.length()
+        && html.regionMatches(true, start, tagName, 0, tagName.length());
+  }
+
+  private static boolean isTagNameEnd(char c) {
+    return isWhitespace(c) || c == '/' || c == '>';
+  }
+
+  private static boolean isAttributeNameEnd(char c) {
+    return isWhitespace(c) || c == '/' || c == '>' || c == '=';
+  }
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+  }
+
+  private static String unescape(String value, boolean inAttribute) {
+    return value.indexOf('&') < 0 ? value
+        : Parser.unescapeEntities(value, inAttribute);
+  }
+
+  private static String normalizeWhitespace(String value) {
+    StringBuilder normalized = new StringBuilder(value.length());
+    boolean lastWasWhitespace = false;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (isWhitespace(c)) {
+        lastWasWhitespace = true;
+      } else {
+        if (lastWasWhitespace && normalized.length() > 0) {
+          normalized.append(' ');
+        }
+        normalized.append(c);
+        lastWasWhitespace = false;
+      }
+    }
+    return normalized.toString();
+  }
+
+  /**
+   * Pick the charset to decode a page with: the one from the response, then
+   * one declared in a meta tag near the start of the page, then UTF-8.
+   */
+  private static String charset(byte[] body, String charsetName) {
+    if (isSupported(charsetName)) {
+      return Charset.forName(charsetName).name();
+    }
+    String start = new String(body, 0, Math.min(body.length,
+        CHARSET_SNIFF_LENGTH), Charsets.ISO_8859_1);
+    Matcher matcher = META_CHARSET.matcher(start);
+    if (matcher.find() && isSupported(matcher.group(1))) {
+      return Charset.forName(matcher.group(1)).name();
+    }
+    return Charsets.UTF_8.name();
+  }
+
+  private static boolean isSupported(String charsetName) {
+    if (charsetName == null || charsetName.isEmpty()) {
+      return false;
+    }
+    try {
+      return Charset.isSupported(charsetName);
+    } catch (IllegalCharsetNameException ex) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies, with counts of calls, errors and bytes.
+ *
+ * Latencies are counted in microseconds, in buckets that split each power of
+ * two into four, so a percentile is at most a quarter over the true value. A
+ * recording is a handful of atomic increments into a fixed array, so the
+ * histogram can be left on in production.
+ */
+final class LatencyHistogram implements LatencyHistogramMBean {
+
+  private static final int SUB_BUCKET_BITS = 2;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong errorCount = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+
+  /**
+   * Record a call.
+   *
+   * @param nanos How long the call took
+   * @param byteCount The bytes the call read or wrote, or 0
+   */
+  void record(long nanos, long byteCount) {
+    nanos = Math.max(0, nanos);
+    buckets.incrementAndGet(bucket(nanos / 1000));
+    count.incrementAndGet();
+    totalNanos.addAndGet(nanos);
+    if (byteCount > 0) {
+      bytes.addAndGet(byteCount);
+    }
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+      max = maxNanos.get();
+    }
+  }
+
+  /**
+   * Record a call that failed, in addition to its latency.
+   */
+  void recordError() {
+    errorCount.incrementAndGet();
+  }
+
+  /**
+   * Get a percentile of the recorded latencies.
+   *
+   * @param quantile The percentile, between 0 and 1
+   * @return The upper bound in ms of the bucket the percentile falls in, or 0
+   * if nothing was recorded
+   */
+  double percentileMs(double quantile) {
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    long rank = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank && seen > 0) {
+        return upperBoundMicros(i) / 1000.0;
+      }
+    }
+    return 0;
+  }
+
+  double getTotalSeconds() {
+    return totalNanos.get() / 1e9;
+  }
+
+  /**
+   * The bucket of a latency: the exact value below four microseconds, and
+   * otherwise the power of two and the next two bits below it.
+   */
+  private static int bucket(long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    int shift = exponent - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS
+        + (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  private static long upperBoundMicros(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long subBucket = bucket % SUB_BUCKETS;
+    return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+  }
+
+  @Override
+  public long getCount() {
+    return count.get();
+  }
+
+  @Override
+  public long getErrorCount() {
+    return errorCount.get();
+  }
+
+  @Override
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  @Override
+  public double getMeanMs() {
+    long calls = count.get();
+    return calls == 0 ? 0 : totalNanos.get() / 1e6 / calls;
+  }
+
+  @Override
+  public double getMaxMs() {
+    return maxNanos.get() / 1e6;
+  }
+
+  @Override
+  public double getP50Ms() {
+    return percentileMs(0.5);
+  }
+
+  @Override
+  public double getP95Ms() {
+    return percentileMs(0.95);
+  }
+
+  @Override
+  public double getP99Ms() {
+    return percentileMs(0.99);
+  }
+
+  @Override
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets.set(i, 0);
+    }
+    count.set(0);
+    errorCount.set(0);
+    totalNanos.set(0);
+    maxNanos.set(0);
+    bytes.set(0);
+  }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+/**
+ * The JMX view of the latencies and throughput of one stage or endpoint.
+ */
+public interface LatencyHistogramMBean {
+
+  long getCount();
+
+  long getErrorCount();
+
+  long getBytes();
+
+  double getMeanMs();
+
+  double getMaxMs();
+
+  double getP50Ms();
+
+  double getP95Ms();
+
+  double getP99Ms();
+
+  void reset();
+}
@@ -0,0 +1,627 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Futures;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import org.jsoup.HttpStatusException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Fetches web pages for snapshots.
+ *
+ * Connections are HttpURLConnections, which the JDK keeps alive and pools per
+ * host as long as every response body is read to the end, so the fetcher
+ * always drains responses, including error responses. Every host gets a
+ * limited number of concurrent fetches, and fetches to the same host are
+ * spaced at least the minimum interval apart, or the robots.txt Crawl-delay
+ * if it's longer. Redirects are followed by the fetcher, so each hop is
+ * throttled and checked against the robots.txt of its own host. A fetch,
+ * including its redirects and waiting for its hosts, has to finish within the
+ * total timeout, so a slow or drip-fed response can't hold a fetch thread
+ * for longer than that.
+ *
+ * robots.txt files are cached per host, and loaded by the first fetch that
+ * needs them while the other fetches to the host wait for the load without
+ * holding up anything else. Fetches keep using expired rules while they are
+ * reloaded.
+ *
+ * DNS lookups and idle keep-alive connections are cached by the JVM, so
+ * their limits are JVM options rather than fetcher settings: the
+ * networkaddress.cache.ttl security property sets the DNS TTL, and the
+ * http.maxConnections system property sets how many idle connections are
+ * kept per host.
+ */
+@ManagedResource(objectName = "kite.spring.hbase.example:name=PageFetcher",
+    description = "Web page fetcher")
+public class PageFetcher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PageFetcher.class);
+
+  /**
+   * The most bytes of a robots.txt file that are read.
+   */
+  private static final int MAX_ROBOTS_BYTES = 512 * 1024;
+
+  private static final int MAX_HOSTS = 10000;
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private int connectTimeoutMs = 10000;
+  private int readTimeoutMs = 30000;
+  private long totalTimeoutMs = 60000;
+  private int maxBodyBytes = 10 * 1024 * 1024;
+  private int maxRedirects = 10;
+  private int maxConnectionsPerHost = 4;
+  private long minIntervalPerHostMs = 250;
+  private String userAgent = "kite-spring-hbase-example";
+  private boolean robotsEnabled = true;
+  private long robotsCacheMs = TimeUnit.MINUTES.toMillis(60);
+  private long robotsFailureCacheMs = TimeUnit.MINUTES.toMillis(1);
+
+  private final Cache<String, Host> hosts = CacheBuilder.newBuilder()
+      .maximumSize(MAX_HOSTS)
+      .expireAfterAccess(1, TimeUnit.HOURS)
+      .build();
+
+  private final AtomicInteger activeFetches = new AtomicInteger();
+  private final AtomicLong fetchCount = new AtomicLong();
+  private final AtomicLong bytesFetched = new AtomicLong();
+  private final AtomicLong robotsDenials = new AtomicLong();
+  private final AtomicLong throttledMs = new AtomicLong();
+
+  /**
+   * Fetch a page, following redirects.
+   *
+   * @param url The URL to fetch
+   * @param requestHeaders Extra request headers, like conditional request
+   * headers
+   * @return The Response, which is either a 2xx response with its body, or a
+   * 304 Not Modified response.
+   * @throws HttpStatusException if the page couldn't be fetched because of
+   * its status, or because robots.txt disallows it
+   * @throws IOException if the page couldn't be fetched
+   */
+  public Response fetch(String url, Map<String, String> requestHeaders)
+      throws IOException {
+    long deadline = System.currentTimeMillis() + totalTimeoutMs;
+    URL current = new URL(url);
+    for (int redirects = 0; ; redirects++) {
+      checkProtocol(current);
+      if (robotsEnabled
+          && !robots(current, deadline).isAllowed(pathAndQuery(current))) {
+        robotsDenials.incrementAndGet();
+        throw new HttpStatusException("Disallowed by robots.txt",
+            HttpURLConnection.HTTP_FORBIDDEN, current.toString());
+      }
+      Response response = fetchOnce(current, requestHeaders, deadline,
+          maxBodyBytes);
+      if (!response.isRedirect()) {
+        int status = response.getStatusCode();
+        if ((status < 200 || status >= 300)
+            && status != HttpURLConnection.HTTP_NOT_MODIFIED) {
+          throw new HttpStatusException("HTTP error fetching URL", status,
+              current.toString());
+        }
+        return response;
+      }
+      if (redirects >= maxRedirects) {
+        throw new IOException("Too many redirects fetching " + url);
+      }
+      String location = response.header("Location");
+      if (location == null) {
+        throw new HttpStatusException("Redirect without a location",
+            response.getStatusCode(), current.toString());
+      }
+      current = new URL(current, location);
+    }
+  }
+
+  /**
+   * Make a single request, without following redirects, throttled for the
+   * URL's host.
+   *
+   * @param deadline The time by which the response has to have been read
+   * @param maxBytes The largest response body to read
+   */
+  private Response fetchOnce(URL url, Map<String, String> requestHeaders,
+      long deadline, int maxBytes) throws IOException {
+    Host host = host(url);
+    host.acquire(url, deadline);
+    activeFetches.incrementAndGet();
+    try {
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      connection.setConnectTimeout(
+          (int) Math.min(connectTimeoutMs, remaining(url, deadline)));
+      connection.setReadTimeout(
+          (int) Math.min(readTimeoutMs, remaining(url, deadline)));
+      connection.setInstanceFollowRedirects(false);
+      connection.setUseCaches(false);
+      connection.setRequestProperty("User-Agent", userAgent);
+      connection.setRequestProperty("Accept-Encoding", "gzip");
+      for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+        connection.setRequestProperty(header.getKey(), header.getValue());
+      }
+      int status = connection.getResponseCode();
+      Map<String, List<String>> headers = connection.getHeaderFields();
+      InputStream in = status >= 400 ? connection.getErrorStream()
+          : connection.getInputStream();
+      byte[] body = new byte[0];
+      if (in != null) {
+        in = new DeadlineInputStream(in, url, deadline);
+        try {
+          if (status >= 200 && status < 300) {
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+              in = new GZIPInputStream(in);
+            }
+            body = read(in, url, maxBytes);
+          } else {
+            // drain the body so the connection can be reused
+            copy(in, null, maxBytes);
+          }
+        } finally {
+          in.close();
+        }
+      }
+      fetchCount.incrementAndGet();
+      bytesFetched.addAndGet(body.length);
+      return new Response(url, status, headers, body);
+    } finally {
+      activeFetches.decrementAndGet();
+      host.release();
+    }
+  }
+
+  private static byte[] read(InputStream in, URL url, int maxBytes)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    if (copy(in, out, maxBytes + 1L) > maxBytes) {
+      throw new IOException("Page " + url + " is larger than " + maxBytes
+          + " bytes");
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Copy at most limit bytes of a stream, or discard them if out is null.
+   *
+   * @return The number of bytes read
+   */
+  private static long copy(InputStream in, OutputStream out, long limit)
+      throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long copied = 0;
+    while (copied < limit) {
+      int read = in.read(buffer, 0,
+          (int) Math.min(buffer.length, limit - copied));
+      if (read < 0) {
+        break;
+      }
+      if (out != null) {
+        out.write(buffer, 0, read);
+      }
+      copied += read;
+    }
+    return copied;
+  }
+
+  /**
+   * Get the robots.txt rules for an URL's host, fetching them if they aren't
+   * cached or have expired. A missing robots.txt allows everything, and one
+   * that can't be fetched disallows everything for a short while.
+   *
+   * The rules are fetched outside of the host's lock, by the first caller
+   * that finds them missing or expired. Other callers use the expired rules
+   * if there are any, and otherwise wait for the fetch until their deadline.
+   */
+  private RobotsRules robots(final URL url, long deadline)
+      throws IOException {
+    Host host = host(url);
+    FutureTask<RobotsRules> load;
+    boolean loader = false;
+    synchronized (host) {
+      long now = System.currentTimeMillis();
+      if (host.robots != null && !host.robots.isExpired(now)) {
+        return host.robots;
+      }
+      if (host.robotsLoad == null) {
+        host.robotsLoad = new FutureTask<RobotsRules>(
+            new Callable<RobotsRules>() {
+
+              @Override
+              public RobotsRules call() {
+                return fetchRobots(url);
+              }
+            });
+        loader = true;
+      } else if (host.robots != null) {
+        return host.robots;
+      }
+      load = host.robotsLoad;
+    }
+    if (loader) {
+      try {
+        load.run();
+      } finally {
+        synchronized (host) {
+          host.robotsLoad = null;
+          if (load.isDone()) {
+            host.robots = Futures.getUnchecked(load);
+          }
+        }
+      }
+    }
+    try {
+      return load.get(remaining(url, deadline), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException ex) {
+      throw new SocketTimeoutException("Timed out waiting for robots.txt of "
+          + url.getHost());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for robots.txt of "
+          + url.getHost(), ex);
+    } catch (ExecutionException ex) {
+      // fetchRobots doesn't throw
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private RobotsRules fetchRobots(URL url) {
+    long now = System.currentTimeMillis();
+    try {
+      URL robotsUrl = new URL(url, "/robots.txt");
+      Response response = fetchOnce(robotsUrl,
+          Collections.<String, String>emptyMap(), now + totalTimeoutMs,
+          MAX_ROBOTS_BYTES);
+      int status = response.getStatusCode();
+      if (status >= 200 && status < 300) {
+        return RobotsRules.parse(
+            new String(response.getBody(), Charsets.UTF_8), userAgent,
+            now + robotsCacheMs);
+      } else if (status >= 400 && status < 500) {
+        return RobotsRules.ALLOW_ALL.expiringAt(now + robotsCacheMs);
+      }
+      // robots.txt redirects are treated like an unreachable robots.txt
+      LOG.debug("robots.txt for {} returned {}", url.getHost(), status);
+    } catch (IOException ex) {
+      LOG.debug("Unable to fetch robots.txt for " + url.getHost(), ex);
+    }
+    return RobotsRules.DISALLOW_ALL.expiringAt(now + robotsFailureCacheMs);
+  }
+
+  private Host host(URL url) throws IOException {
+    final String key = url.getProtocol() + "://"
+        + url.getHost().toLowerCase(Locale.ENGLISH) + ":"
+        + (url.getPort() >= 0 ? url.getPort() : url.getDefaultPort());
+    try {
+      return hosts.get(key, new Callable<Host>() {
+
+        @Override
+        public Host call() {
+          return new Host(maxConnectionsPerHost);
+        }
+      });
+    } catch (ExecutionException ex) {
+      // creating a Host can't fail
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * The ms left until a deadline.
+   *
+   * @throws SocketTimeoutException if the deadline has passed
+   */
+  private static long remaining(URL url, long deadline)
+      throws SocketTimeoutException {
+    long remaining = deadline - System.currentTimeMillis();
+    if (remaining <= 0) {
+      throw new SocketTimeoutException("Timed out fetching " + url);
+    }
+    return remaining;
+  }
+
+  private static void checkProtocol(URL url) throws MalformedURLException {
+    if (!"http".equals(url.getProtocol()) && !"https".equals(url.getProtocol())) {
+      throw new MalformedURLException("Only http and https URLs can be fetched: "
+          + url);
+    }
+  }
+
+  private static String pathAndQuery(URL url) {
+    String path = url.getPath().isEmpty() ? "/" : url.getPath();
+    return url.getQuery() != null ? path + "?" + url.getQuery() : path;
+  }
+
+  public void setConnectTimeoutMs(int connectTimeoutMs) {
+    this.connectTimeoutMs = connectTimeoutMs;
+  }
+
+  public void setReadTimeoutMs(int readTimeoutMs) {
+    this.readTimeoutMs = readTimeoutMs;
+  }
+
+  /**
+   * Set how long a fetch can take in total, including following redirects,
+   * waiting for its hosts and reading the response.
+   *
+   * @param totalTimeoutMs The total timeout
+   */
+  public void setTotalTimeoutMs(long totalTimeoutMs) {
+    this.totalTimeoutMs = totalTimeoutMs;
+  }
+
+  public void setMaxBodyBytes(int maxBodyBytes) {
+    this.maxBodyBytes = maxBodyBytes;
+  }
+
+  public void setMaxRedirects(int maxRedirects) {
+    this.maxRedirects = maxRedirects;
+  }
+
+  public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+  }
+
+  public void setMinIntervalPerHostMs(long minIntervalPerHostMs) {
+    this.minIntervalPerHostMs = minIntervalPerHostMs;
+  }
+
+  public void setUserAgent(String userAgent) {
+    this.userAgent = userAgent;
+  }
+
+  public void setRobotsEnabled(boolean robotsEnabled) {
+    this.robotsEnabled = robotsEnabled;
+  }
+
+  public void setRobotsCacheMinutes(long robotsCacheMinutes) {
+    this.robotsCacheMs = TimeUnit.MINUTES.toMillis(robotsCacheMinutes);
+  }
+
+  @ManagedAttribute(description = "Number of requests in progress")
+  public int getActiveFetches() {
+    return activeFetches.get();
+  }
+
+  @ManagedAttribute(description = "Number of requests made")
+  public long getFetchCount() {
+    return fetchCount.get();
+  }
+
+  @ManagedAttribute(description = "Bytes of response bodies read")
+  public long getBytesFetched() {
+    return bytesFetched.get();
+  }
+
+  @ManagedAttribute(description = "Number of fetches disallowed by robots.txt")
+  public long getRobotsDenials() {
+    return robotsDenials.get();
+  }
+
+  @ManagedAttribute(description = "Total ms fetches waited for their host")
+  public long getThrottledMs() {
+    return throttledMs.get();
+  }
+
+  @ManagedAttribute(description = "Number of hosts being tracked")
+  public long getHostCount() {
+    return hosts.size();
+  }
+
+  /**
+   * The concurrency limit, request spacing and robots.txt rules of a host.
+   */
+  private class Host {
+
+    private final Semaphore permits;
+    private long nextRequestAt = 0;
+    private RobotsRules robots = null;
+    private FutureTask<RobotsRules> robotsLoad = null;
+
+    private Host(int maxConnections) {
+      this.permits = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Wait for a free connection to the host, and then for the host's
+     * request interval to pass. Gives up after the read timeout or at the
+     * deadline, whichever is first.
+     */
+    private void acquire(URL url, long deadline) throws IOException {
+      long start = System.currentTimeMillis();
+      boolean acquired = false;
+      try {
+        if (!permits.tryAcquire(Math.min(readTimeoutMs,
+            remaining(url, deadline)), TimeUnit.MILLISECONDS)) {
+          throw new IOException("Timed out waiting for a connection to "
+              + url.getHost());
+        }
+        acquired = true;
+        long wait;
+        synchronized (this) {
+          long interval = minIntervalPerHostMs;
+          if (robots != null) {
+            interval = Math.max(interval, robots.getCrawlDelayMs());
+          }
+          long now = System.currentTimeMillis();
+          wait = Math.max(0, nextRequestAt - now);
+          nextRequestAt = now + wait + interval;
+        }
+        if (wait > 0) {
+          if (wait >= deadline - System.currentTimeMillis()) {
+            permits.release();
+            throw new SocketTimeoutException("Timed out waiting for "
+                + url.getHost());
+          }
+          Thread.sleep(wait);
+        }
+      } catch (InterruptedException ex) {
+        if (acquired) {
+          permits.release();
+        }
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted waiting for " + url.getHost(), ex);
+      } finally {
+        throttledMs.addAndGet(System.currentTimeMillis() - start);
+      }
+    }
+
+    private void release() {
+      permits.release();
+    }
+  }
+
+  /**
+   * An InputStream that fails once a deadline has passed, so a response that
+   * keeps trickling in can't outlast its fetch's total timeout.
+   */
+  private static class DeadlineInputStream extends FilterInputStream {
+
+    private final URL url;
+    private final long deadline;
+
+    private DeadlineInputStream(InputStream in, URL url, long deadline) {
+      super(in);
+      this.url = url;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public int read() throws IOException {
+      remaining(url, deadline);
+      return super.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      remaining(url, deadline);
+      return super.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      remaining(url, deadline);
+      return super.skip(n);
+    }
+  }
+
+  /**
+   * The response to a fetch.
+   */
+  public static class Response {
+
+    private final URL url;
+    private final int statusCode;
+    private final Map<String, String> headers;
+    private final byte[] body;
+
+    private Response(URL url, int statusCode,
+        Map<String, List<String>> headerFields, byte[] body) {
+      this.url = url;
+      this.statusCode = statusCode;
+      this.headers = new HashMap<String, String>();
+      for (Map.Entry<String, List<String>> header : headerFields.entrySet()) {
+        // the status line has a null key
+        if (header.getKey() != null && !header.getValue().isEmpty()) {
+          headers.put(header.getKey().toLowerCase(Locale.ENGLISH),
+              header.getValue().get(header.getValue().size() - 1));
+        }
+      }
+      this.body = body;
+    }
+
+    /**
+     * @return The URL that was fetched, after following redirects
+     */
+    public URL getUrl() {
+      return url;
+    }
+
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    /**
+     * @return The response body, which is empty for a 304
+     */
+    public byte[] getBody() {
+      return body;
+    }
+
+    /**
+     * Get a response header.
+     *
+     * @param name The header name, in any case
+     * @return The last value of the header, or null
+     */
+    public String header(String name) {
+      return headers.get(name.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @return The charset from the Content-Type header, or null
+     */
+    public String getCharset() {
+      String contentType = header("Content-Type");
+      if (contentType == null) {
+        return null;
+      }
+      for (String param : contentType.split(";")) {
+        String[] pair = param.trim().split("=", 2);
+        if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("charset")) {
+          return pair[1].trim().replace("\"", "").replace("'", "");
+        }
+      }
+      return null;
+    }
+
+    private boolean isRedirect() {
+      return statusCode == HttpURLConnection.HTTP_MOVED_PERM
+          || statusCode == HttpURLConnection.HTTP_MOVED_TEMP
+          || statusCode == HttpURLConnection.HTTP_SEE_OTHER
+          || statusCode == 307 || statusCode == 308;
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.io.IOException;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.security.auth.kerberos.KerberosTicket;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of proxy-user UserGroupInformation instances.
+ *
+ * Hadoop keys per-UGI state, like the RPC connection cache, on UGI identity,
+ * so reusing the same proxy UGI for a user lets that state be reused across
+ * requests. A cached UGI is replaced once the login user's Kerberos ticket it
+ * was created under expires, or if the login user itself changes.
+ */
+public class ProxyUserCache {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(ProxyUserCache.class);
+
+  private final Cache<String, ProxyUser> cache;
+  private final long maximumLifetimeMs;
+
+  /**
+   * @param maximumUsers The maximum number of proxy users to cache
+   * @param maximumLifetimeMinutes The longest a proxy user is cached for when
+   * the login user has no Kerberos ticket, for example with security disabled.
+   */
+  public ProxyUserCache(long maximumUsers, long maximumLifetimeMinutes) {
+    this.maximumLifetimeMs = TimeUnit.MINUTES.toMillis(maximumLifetimeMinutes);
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(maximumUsers)
+        .expireAfterWrite(maximumLifetimeMinutes, TimeUnit.MINUTES)
+        .build();
+  }
+
+  /**
+   * Get the proxy UserGroupInformation for a user, creating it if there isn't
+   * a cached one or the cached one has outlived the login user's ticket.
+   *
+   * @param user The user to impersonate
+   * @return The proxy UserGroupInformation
+   * @throws IOException Thrown if the login user can't be determined
+   */
+  public UserGroupInformation get(String user) throws IOException {
+    UserGroupInformation loginUser = UserGroupInformation.getLoginUser();
+    ProxyUser proxyUser = cache.getIfPresent(user);
+    if (proxyUser == null || proxyUser.loginUser != loginUser
+        || proxyUser.expiresAt <= System.currentTimeMillis()) {
+      if (proxyUser != null && loginUser.isFromKeytab()) {
+        loginUser.checkTGTAndReloginFromKeytab();
+      }
+      proxyUser = new ProxyUser(
+          UserGroupInformation.createProxyUser(user, loginUser), loginUser,
+          expirationTime(loginUser));
+      LOG.debug("Created proxy user {}", proxyUser.ugi);
+      cache.put(user, proxyUser);
+    }
+    return proxyUser.ugi;
+  }
+
+  /**
+   * Drop every cached proxy user.
+   */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Find when the login user's ticket granting ticket expires, capped at the
+   * maximum lifetime.
+   */
+  private long expirationTime(UserGroupInformation loginUser) {
+    long expiresAt = System.currentTimeMillis() + maximumLifetimeMs;
+    // UserGroupInformation doesn't expose its Subject, but it's the one
+    // in effect inside its doAs
+    Subject subject = loginUser.doAs(new PrivilegedAction<Subject>() {
+
+      @Override
+      public Subject run() {
+        return Subject.getSubject(AccessController.getContext());
+      }
+    });
+    if (subject == null) {
+      return expiresAt;
+    }
+    for (KerberosTicket ticket :
+        subject.getPrivateCredentials(KerberosTicket.class)) {
+      if (isTicketGrantingTicket(ticket) && ticket.getEndTime() != null) {
+        expiresAt = Math.min(expiresAt, ticket.getEndTime().getTime());
+      }
+    }
+    return expiresAt;
+  }
+
+  private static boolean isTicketGrantingTicket(KerberosTicket ticket) {
+    KerberosPrincipal server = ticket.getServer();
+    return server != null && server.getName().equals(
+        "krbtgt/" + server.getRealm() + "@" + server.getRealm());
+  }
+
+  private static class ProxyUser {
+
+    private final UserGroupInformation ugi;
+    private final UserGroupInformation loginUser;
+    private final long expiresAt;
+
+    private ProxyUser(UserGroupInformation ugi, UserGroupInformation loginUser,
+        long expiresAt) {
+      this.ugi = ugi;
+      this.loginUser = loginUser;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * A cache of redirect lookups, so that reading a snapshot doesn't need an
+ * HBase get on the redirect table every time.
+ *
+ * Lookups are cached per user, since each user reads the redirect table with
+ * their own credentials. Most URLs don't redirect, so a lookup that found no
+ * redirect is cached as well. When any user writes or deletes the redirect for
+ * an URL, every user's cached lookup for that URL is replaced. Entries also
+ * expire after a TTL in case the redirect table is changed by another process.
+ */
+@ManagedResource(objectName = "kite.spring.hbase.example:name=RedirectCache",
+    description = "Redirect lookup cache")
+public class RedirectCache {
+
+  private final Cache<String, ConcurrentMap<String, Optional<String>>> cache;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * @param maximumUrls The maximum number of URLs to cache lookups for
+   * @param ttlSeconds How long a lookup is cached for
+   */
+  public RedirectCache(long maximumUrls, long ttlSeconds) {
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(maximumUrls)
+        .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+        .build();
+  }
+
+  /**
+   * Get the cached redirect lookup for an URL.
+   *
+   * @param user The user doing the lookup
+   * @param url The URL to look up
+   * @return null if the lookup isn't cached, an absent Optional if the URL is
+   * known not to redirect, or the destination URL.
+   */
+  public Optional<String> getIfPresent(String user, String url) {
+    ConcurrentMap<String, Optional<String>> lookups = cache.getIfPresent(url);
+    Optional<String> destination = lookups != null ? lookups.get(user) : null;
+    if (destination != null) {
+      hitCount.incrementAndGet();
+    } else {
+      missCount.incrementAndGet();
+    }
+    return destination;
+  }
+
+  /**
+   * Cache the result of a redirect lookup read from HBase.
+   *
+   * @param user The user that did the lookup
+   * @param url The URL that was looked up
+   * @param destinationUrl The destination URL, or null if the URL doesn't
+   * redirect
+   */
+  public void put(String user, String url, String destinationUrl) {
+    try {
+      cache.get(url, new Callable<
+          ConcurrentMap<String, Optional<String>>>() {
+
+        @Override
+        public ConcurrentMap<String, Optional<String>> call() {
+          return Maps.newConcurrentMap();
+        }
+      }).put(user, Optional.fromNullable(destinationUrl));
+    } catch (ExecutionException ex) {
+      // creating an empty map can't fail
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Record that a user wrote or deleted the redirect for an URL. Lookups
+   * cached for other users are dropped.
+   *
+   * @param user The user that changed the redirect
+   * @param url The URL whose redirect changed
+   * @param destinationUrl The new destination URL, or null if the redirect was
+   * removed
+   */
+  public void update(String user, String url, String destinationUrl) {
+    ConcurrentMap<String, Optional<String>> lookups = Maps.newConcurrentMap();
+    lookups.put(user, Optional.fromNullable(destinationUrl));
+    cache.put(url, lookups);
+  }
+
+  /**
+   * Drop every cached lookup for an URL.
+   *
+   * @param url The URL to drop lookups for
+   */
+  public void invalidate(String url) {
+    cache.invalidate(url);
+  }
+
+  @ManagedAttribute(description = "Number of URLs with cached lookups")
+  public long getSize() {
+    return cache.size();
+  }
+
+  @ManagedAttribute(description = "Number of lookups served from the cache")
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  @ManagedAttribute(description = "Number of lookups that went to HBase")
+  public long getMissCount() {
+    return missCount.get();
+  }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The spans of a single request: when each stage ran, for how long, and how
+ * many bytes it read or wrote.
+ *
+ * The trace of the request a thread is serving is kept in a thread local, so
+ * stages recorded anywhere below the controller, including inside the doAs
+ * calls of the WebPageSnapshotService, which run on the calling thread, are
+ * added to it without passing it around. Work handed to another thread is
+ * added to the same trace by attaching the trace to that thread.
+ *
+ * A trace keeps the first MAX_SPANS spans and counts the rest, and keeps a
+ * total for every stage, so batch requests can't make it grow without bound.
+ */
+public final class RequestTrace {
+
+  private static final ThreadLocal<RequestTrace> CURRENT =
+      new ThreadLocal<RequestTrace>();
+
+  private static final int MAX_SPANS = 200;
+
+  private final String endpoint;
+  private final long startNanos;
+  private long endNanos = 0;
+
+  private final List<Span> spans = new ArrayList<Span>();
+  private final Map<String, StageTotal> totals =
+      new LinkedHashMap<String, StageTotal>();
+  private int droppedSpans = 0;
+
+  RequestTrace(String endpoint) {
+    this.endpoint = endpoint;
+    this.startNanos = System.nanoTime();
+  }
+
+  /**
+   * @return The trace of the request the current thread is serving, or null
+   */
+  public static RequestTrace current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Make a trace the current thread's trace.
+   *
+   * @param trace The trace, or null to detach the current trace
+   * @return The trace that was current before
+   */
+  public static RequestTrace attach(RequestTrace trace) {
+    RequestTrace previous = CURRENT.get();
+    if (trace != null) {
+      CURRENT.set(trace);
+    } else {
+      CURRENT.remove();
+    }
+    return previous;
+  }
+
+  /**
+   * Add a span. Spans added after the request finished are ignored.
+   *
+   * @param stage The name of the stage
+   * @param spanStartNanos The System.nanoTime() the stage started at
+   * @param spanEndNanos The System.nanoTime() the stage ended at
+   * @param bytes The bytes the stage read or wrote
+   */
+  synchronized void add(String stage, long spanStartNanos, long spanEndNanos,
+      long bytes) {
+    if (endNanos != 0) {
+      return;
+    }
+    StageTotal total = totals.get(stage);
+    if (total == null) {
+      total = new StageTotal();
+      totals.put(stage, total);
+    }
+    total.count++;
+    total.nanos += spanEndNanos - spanStartNanos;
+    total.bytes += bytes;
+    if (spans.size() < MAX_SPANS) {
+      spans.add(new Span(stage, spanStartNanos - startNanos,
+          spanEndNanos - spanStartNanos, bytes));
+    } else {
+      droppedSpans++;
+    }
+  }
+
+  /**
+   * End the trace.
+   *
+   * @return How long the request took in ns
+   */
+  synchronized long finish() {
+    if (endNanos == 0) {
+      endNanos = System.nanoTime();
+    }
+    return endNanos - startNanos;
+  }
+
+  /**
+   * Format the trace as a single line of JSON, with the stage totals and the
+   * spans in the order they finished.
+   *
+   * @param status The HTTP status of the response
+   */
+  synchronized String toJson(int status) {
+    StringBuilder json = new StringBuilder();
+    json.append("{\"endpoint\":\"").append(endpoint)
+        .append("\",\"status\":").append(status)
+        .append(",\"totalMs\":").append(ms(finish()))
+        .append(",\"stages\":{");
+    boolean first = true;
+    for (Map.Entry<String, StageTotal> entry : totals.entrySet()) {
+      StageTotal total = entry.getValue();
+      json.append(first ? "" : ",").append('"').append(entry.getKey())
+          .append("\":{\"count\":").append(total.count)
+          .append(",\"ms\":").append(ms(total.nanos))
+          .append(",\"bytes\":").append(total.bytes).append('}');
+      first = false;
+    }
+    json.append("},\"spans\":[");
+    first = true;
+    for (Span span : spans) {
+      json.append(first ? "" : ",").append("{\"stage\":\"").append(span.stage)
+          .append("\",\"atMs\":").append(ms(span.offsetNanos))
+          .append(",\"ms\":").append(ms(span.nanos))
+          .append(",\"bytes\":").append(span.bytes).append('}');
+      first = false;
+    }
+    json.append("],\"droppedSpans\":").append(droppedSpans).append('}');
+    return json.toString();
+  }
+
+  private static String ms(long nanos) {
+    return String.format(Locale.ENGLISH, "%.3f", nanos / 1e6);
+  }
+
+  private static class Span {
+
+    private final String stage;
+    private final long offsetNanos;
+    private final long nanos;
+    private final long bytes;
+
+    private Span(String stage, long offsetNanos, long nanos, long bytes) {
+      this.stage = stage;
+      this.offsetNanos = offsetNanos;
+      this.nanos = nanos;
+      this.bytes = bytes;
+    }
+  }
+
+  private static class StageTotal {
+
+    private long count = 0;
+    private long nanos = 0;
+    private long bytes = 0;
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.kitesdk.spring.hbase.example.model.WebPageSnapshotModel;
+
+/**
+ * Which snapshots of an URL to keep as its history gets older.
+ *
+ * The history of each content key of an URL, which is the public history or
+ * one user's private history, is thinned on its own:
+ *
+ * <ul>
+ * <li>The most recent keepLast snapshots are always kept.</li>
+ * <li>Snapshots fetched in the last keepAllDays days are all kept.</li>
+ * <li>Older snapshots fetched in the last keepDailyDays days are thinned to
+ * the most recent snapshot of each day.</li>
+ * <li>Older snapshots than that are thinned to the most recent snapshot of
+ * each week, and dropped once they're older than keepWeeklyDays days, unless
+ * keepWeeklyDays is 0.</li>
+ * </ul>
+ *
+ * Days and weeks are UTC. A snapshot that's kept and stored as a delta keeps
+ * the snapshots its delta chain goes back through, so a kept snapshot can
+ * always be read.
+ */
+public class RetentionPolicy {
+
+  private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+  private static final long WEEK_MS = 7 * DAY_MS;
+
+  private final int keepLast;
+  private final int keepAllDays;
+  private final int keepDailyDays;
+  private final int keepWeeklyDays;
+
+  /**
+   * @param keepLast The number of most recent snapshots always kept
+   * @param keepAllDays The age in days under which every snapshot is kept
+   * @param keepDailyDays The age in days under which one snapshot a day is kept
+   * @param keepWeeklyDays The age in days under which one snapshot a week is
+   * kept, or 0 to keep one a week forever
+   */
+  public RetentionPolicy(int keepLast, int keepAllDays, int keepDailyDays,
+      int keepWeeklyDays) {
+    if (keepLast < 1 || keepAllDays < 0 || keepDailyDays < keepAllDays
+        || (keepWeeklyDays != 0 && keepWeeklyDays < keepDailyDays)) {
+      throw new IllegalArgumentException("Invalid retention policy: keep last "
+          + keepLast + ", all for " + keepAllDays + " days, daily for "
+          + keepDailyDays + " days, weekly for " + keepWeeklyDays + " days");
+    }
+    this.keepLast = keepLast;
+    this.keepAllDays = keepAllDays;
+    this.keepDailyDays = keepDailyDays;
+    this.keepWeeklyDays = keepWeeklyDays;
+  }
+
+  /**
+   * Find the snapshots of an URL that have expired.
+   *
+   * @param snapshots Every snapshot of the URL, most recent first, with
+   * fetchedAtRevTs, fetchedAt, contentKey and the delta fields set
+   * @param now The epoch time to measure ages from
+   * @return The snapshots to delete
+   */
+  List<WebPageSnapshotModel> expired(List<WebPageSnapshotModel> snapshots,
+      long now) {
+    List<WebPageSnapshotModel> expired = new ArrayList<WebPageSnapshotModel>();
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    Set<String> buckets = new HashSet<String>();
+    // delta bases of kept snapshots, which sort after the snapshots
+    Set<Long> bases = new HashSet<Long>();
+    for (WebPageSnapshotModel snapshot : snapshots) {
+      String contentKey = String.valueOf(snapshot.getContentKey());
+      Integer count = counts.get(contentKey);
+      count = count == null ? 1 : count + 1;
+      counts.put(contentKey, count);
+
+      boolean keep = keepByAge(contentKey, snapshot, now, buckets);
+      keep |= count <= keepLast;
+      keep |= bases.remove(snapshot.getFetchedAtRevTs());
+      if (!keep) {
+        expired.add(snapshot);
+      } else if (snapshot.getDeltaChainLength() != null
+          && snapshot.getDeltaChainLength() > 0
+          && snapshot.getDeltaBaseRevTs() != null) {
+        bases.add(snapshot.getDeltaBaseRevTs());
+      }
+    }
+    return expired;
+  }
+
+  /**
+   * Check whether a snapshot is kept for its age alone. The first snapshot
+   * seen in a day or week bucket takes the bucket, whether or not it's also
+   * kept for another reason.
+   */
+  private boolean keepByAge(String contentKey, WebPageSnapshotModel snapshot,
+      long now, Set<String> buckets) {
+    long fetchedAt = snapshot.getFetchedAt() != null ? snapshot.getFetchedAt()
+        : Long.MAX_VALUE - snapshot.getFetchedAtRevTs();
+    long age = now - fetchedAt;
+    String bucket;
+    if (age < keepAllDays * DAY_MS) {
+      return true;
+    } else if (age < keepDailyDays * DAY_MS) {
+      bucket = contentKey + "/d" + (fetchedAt / DAY_MS);
+    } else if (keepWeeklyDays == 0 || age < keepWeeklyDays * DAY_MS) {
+      bucket = contentKey + "/w" + (fetchedAt / WEEK_MS);
+    } else {
+      return false;
+    }
+    return buckets.add(bucket);
+  }
+
+  public int getKeepLast() {
+    return keepLast;
+  }
+
+  public int getKeepAllDays() {
+    return keepAllDays;
+  }
+
+  public int getKeepDailyDays() {
+    return keepDailyDays;
+  }
+
+  public int getKeepWeeklyDays() {
+    return keepWeeklyDays;
+  }
+}
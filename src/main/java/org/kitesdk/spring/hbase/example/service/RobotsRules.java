@@ -0,0 +1,225 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * The rules in a host's robots.txt that apply to one user agent.
+ *
+ * The group for the most specific user agent token that matches is used, or
+ * the "*" group if none match. Within the group, the longest matching Allow
+ * or Disallow path wins, and Allow wins a tie. Paths can use the "*" and "$"
+ * wildcards.
+ */
+final class RobotsRules {
+
+  static final RobotsRules ALLOW_ALL = new RobotsRules(
+      Collections.<Rule>emptyList(), 0, 0);
+
+  static final RobotsRules DISALLOW_ALL = new RobotsRules(
+      Collections.singletonList(new Rule("/", false)), 0, 0);
+
+  private final List<Rule> rules;
+  private final long crawlDelayMs;
+  private final long expiresAt;
+
+  private RobotsRules(List<Rule> rules, long crawlDelayMs, long expiresAt) {
+    this.rules = rules;
+    this.crawlDelayMs = crawlDelayMs;
+    this.expiresAt = expiresAt;
+  }
+
+  /**
+   * Parse the rules for a user agent out of a robots.txt file.
+   *
+   * @param robotsTxt The contents of the robots.txt file
+   * @param userAgent The product token of our user agent
+   * @param expiresAt When the rules should be fetched again
+   * @return The RobotsRules
+   */
+  static RobotsRules parse(String robotsTxt, String userAgent,
+      long expiresAt) {
+    String agent = userAgent.toLowerCase(Locale.ENGLISH);
+    List<Group> groups = new ArrayList<Group>();
+    Group group = null;
+    boolean lastWasAgent = false;
+    for (String line : robotsTxt.split("\r\n|\r|\n")) {
+      int comment = line.indexOf('#');
+      if (comment >= 0) {
+        line = line.substring(0, comment);
+      }
+      int colon = line.indexOf(':');
+      if (colon < 0) {
+        continue;
+      }
+      String field = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+      String value = line.substring(colon + 1).trim();
+      if (field.equals("user-agent")) {
+        if (!lastWasAgent) {
+          // consecutive user-agent lines share a group
+          group = new Group();
+          groups.add(group);
+        }
+        group.agents.add(value.toLowerCase(Locale.ENGLISH));
+        lastWasAgent = true;
+        continue;
+      }
+      lastWasAgent = false;
+      if (group == null) {
+        continue;
+      }
+      boolean allow = field.equals("allow");
+      if ((allow || field.equals("disallow")) && !value.isEmpty()) {
+        // "Disallow:" with no path allows everything, so it adds no rule
+        group.rules.add(new Rule(value, allow));
+      } else if (field.equals("crawl-delay")) {
+        group.crawlDelayMs = parseDelayMs(value);
+      }
+    }
+
+    // use the groups with the longest token that's part of our user agent,
+    // or the "*" groups if none are
+    List<Rule> rules = new ArrayList<Rule>();
+    long crawlDelayMs = 0;
+    int bestMatch = 0;
+    for (Group candidate : groups) {
+      int match = candidate.match(agent);
+      if (match > bestMatch) {
+        rules.clear();
+        crawlDelayMs = 0;
+        bestMatch = match;
+      }
+      if (match == bestMatch && match != 0) {
+        rules.addAll(candidate.rules);
+        crawlDelayMs = Math.max(crawlDelayMs, candidate.crawlDelayMs);
+      }
+    }
+    if (bestMatch == 0) {
+      for (Group candidate : groups) {
+        if (candidate.agents.contains("*")) {
+          rules.addAll(candidate.rules);
+          crawlDelayMs = Math.max(crawlDelayMs, candidate.crawlDelayMs);
+        }
+      }
+    }
+    return new RobotsRules(rules, crawlDelayMs, expiresAt);
+  }
+
+  /**
+   * Copy of rules with a different expiration time.
+   */
+  RobotsRules expiringAt(long expiresAt) {
+    return new RobotsRules(rules, crawlDelayMs, expiresAt);
+  }
+
+  /**
+   * Check whether a path may be fetched.
+   *
+   * @param path The path and query of the URL
+   * @return true if the path is allowed
+   */
+  boolean isAllowed(String path) {
+    Rule match = null;
+    for (Rule rule : rules) {
+      if (rule.matches(path) && (match == null
+          || rule.length > match.length
+          || (rule.length == match.length && rule.allow))) {
+        match = rule;
+      }
+    }
+    return match == null || match.allow;
+  }
+
+  /**
+   * @return The Crawl-delay for our user agent, in ms, or 0 if there is none
+   */
+  long getCrawlDelayMs() {
+    return crawlDelayMs;
+  }
+
+  boolean isExpired(long now) {
+    return now >= expiresAt;
+  }
+
+  private static long parseDelayMs(String value) {
+    try {
+      return Math.max(0, (long) (Double.parseDouble(value) * 1000));
+    } catch (NumberFormatException ex) {
+      return 0;
+    }
+  }
+
+  private static class Group {
+
+    private final List<String> agents = new ArrayList<String>();
+    private final List<Rule> rules = new ArrayList<Rule>();
+    private long crawlDelayMs = 0;
+
+    /**
+     * The length of the longest token of this group in a user agent, or 0.
+     */
+    private int match(String agent) {
+      int match = 0;
+      for (String token : agents) {
+        if (!token.equals("*") && !token.isEmpty() && agent.contains(token)) {
+          match = Math.max(match, token.length());
+        }
+      }
+      return match;
+    }
+  }
+
+  private static class Rule {
+
+    private final String path;
+    private final Pattern pattern;
+    private final boolean allow;
+    private final int length;
+
+    private Rule(String path, boolean allow) {
+      this.path = path;
+      this.allow = allow;
+      this.length = path.length();
+      if (path.indexOf('*') >= 0 || path.endsWith("$")) {
+        StringBuilder regex = new StringBuilder();
+        boolean anchored = path.endsWith("$");
+        String body = anchored ? path.substring(0, path.length() - 1) : path;
+        for (String part : body.split("\\*", -1)) {
+          if (regex.length() > 0) {
+            regex.append(".*");
+          }
+          regex.append(Pattern.quote(part));
+        }
+        if (!anchored) {
+          regex.append(".*");
+        }
+        this.pattern = Pattern.compile(regex.toString(), Pattern.DOTALL);
+      } else {
+        this.pattern = null;
+      }
+    }
+
+    private boolean matches(String target) {
+      return pattern != null ? pattern.matcher(target).matches()
+          : target.startsWith(path);
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Traces requests, and logs the trace of every request that takes longer than
+ * a threshold as a single line of JSON, like:
+ *
+ * <pre>
+ * Slow request {"endpoint":"/mostRecentContent","status":200,"totalMs":3012.114,
+ *   "stages":{"proxyUser":{"count":1,"ms":0.004,"bytes":0},...},
+ *   "spans":[{"stage":"proxyUser","atMs":0.021,"ms":0.004,"bytes":0},...],
+ *   "droppedSpans":0}
+ * </pre>
+ *
+ * The spans are the stages recorded by the SnapshotMetrics while the request
+ * ran. The threshold can be changed over JMX.
+ */
+@ManagedResource(objectName = "kite.spring.hbase.example:name=SlowRequestLog",
+    description = "Request tracing and slow request log")
+public class SlowRequestLog {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(SlowRequestLog.class);
+
+  private final boolean enabled;
+  private volatile long thresholdMs;
+
+  private final AtomicLong tracedCount = new AtomicLong();
+  private final AtomicLong slowCount = new AtomicLong();
+
+  /**
+   * @param enabled Whether requests are traced
+   * @param thresholdMs The duration above which a request is logged
+   */
+  public SlowRequestLog(boolean enabled, long thresholdMs) {
+    this.enabled = enabled;
+    setThresholdMs(thresholdMs);
+  }
+
+  /**
+   * Start tracing a request on the current thread.
+   *
+   * @param endpoint The endpoint serving the request
+   * @return The trace, or null if tracing is disabled
+   */
+  public RequestTrace begin(String endpoint) {
+    if (!enabled) {
+      return null;
+    }
+    RequestTrace trace = new RequestTrace(endpoint);
+    RequestTrace.attach(trace);
+    return trace;
+  }
+
+  /**
+   * Finish tracing a request, and log it if it was slow. The trace is
+   * detached from the current thread.
+   *
+   * @param trace The trace returned by begin
+   * @param status The HTTP status of the response
+   */
+  public void end(RequestTrace trace, int status) {
+    if (RequestTrace.current() == trace) {
+      RequestTrace.attach(null);
+    }
+    long nanos = trace.finish();
+    tracedCount.incrementAndGet();
+    if (nanos >= TimeUnit.MILLISECONDS.toNanos(thresholdMs)) {
+      slowCount.incrementAndGet();
+      LOG.warn("Slow request {}", trace.toJson(status));
+    }
+  }
+
+  @ManagedAttribute(description = "Whether requests are traced")
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @ManagedAttribute(description = "Duration in ms above which requests are logged")
+  public long getThresholdMs() {
+    return thresholdMs;
+  }
+
+  @ManagedAttribute(description = "Duration in ms above which requests are logged")
+  public void setThresholdMs(long thresholdMs) {
+    if (thresholdMs < 0) {
+      throw new IllegalArgumentException("Invalid slow request threshold: "
+          + thresholdMs);
+    }
+    this.thresholdMs = thresholdMs;
+  }
+
+  @ManagedAttribute(description = "Number of requests traced")
+  public long getTracedCount() {
+    return tracedCount.get();
+  }
+
+  @ManagedAttribute(description = "Number of slow requests logged")
+  public long getSlowCount() {
+    return slowCount.get();
+  }
+}
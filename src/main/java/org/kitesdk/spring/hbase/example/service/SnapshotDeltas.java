@@ -0,0 +1,190 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Settings for delta-encoded snapshot content, and a cache of the content of
+ * recent snapshots.
+ *
+ * When delta encoding is enabled, a snapshot is stored as a BlockDelta
+ * against the previous snapshot of the same URL and content key, and every
+ * keyframeInterval versions the full content is stored instead. Reading a
+ * delta-encoded snapshot walks back to its keyframe, so chains are never
+ * longer than the keyframe interval.
+ *
+ * Cached content is keyed by the content key and the content digest, so
+ * content read or written under one user's content key is never served for
+ * another's. Callers must only look up content keys the reading user is
+ * allowed to read, since the cache bypasses the cell ACLs of the content
+ * table. The latest version of a page is cached when it's written, so the
+ * next snapshot can usually be delta encoded without reading anything back.
+ * Nothing is cached when delta encoding is disabled.
+ */
+@ManagedResource(objectName = "kite.spring.hbase.example:name=SnapshotDeltas",
+    description = "Delta-encoded snapshot content")
+public class SnapshotDeltas {
+
+  private final boolean enabled;
+  private final int keyframeInterval;
+  private final Cache<String, byte[]> contentCache;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong deltaCount = new AtomicLong();
+  private final AtomicLong keyframeCount = new AtomicLong();
+  private final AtomicLong deltaBytes = new AtomicLong();
+  private final AtomicLong reconstructionCount = new AtomicLong();
+
+  /**
+   * @param enabled Whether new snapshots are delta encoded
+   * @param keyframeInterval The number of versions of a page between full
+   * copies of its content
+   * @param cacheMaximumBytes The most bytes of content to cache
+   */
+  public SnapshotDeltas(boolean enabled, int keyframeInterval,
+      long cacheMaximumBytes) {
+    if (keyframeInterval < 1) {
+      throw new IllegalArgumentException(
+          "The keyframe interval must be at least 1: " + keyframeInterval);
+    }
+    this.enabled = enabled;
+    this.keyframeInterval = keyframeInterval;
+    this.contentCache = CacheBuilder.newBuilder()
+        .maximumWeight(cacheMaximumBytes)
+        .weigher(new Weigher<String, byte[]>() {
+
+          @Override
+          public int weigh(String key, byte[] content) {
+            return content.length;
+          }
+        })
+        .build();
+  }
+
+  /**
+   * Check whether a new version of a page can be stored as a delta against a
+   * base version that is chainLength deltas away from its keyframe.
+   *
+   * @param chainLength The delta chain length of the base version
+   * @return true if the new version can be a delta
+   */
+  boolean canExtend(int chainLength) {
+    return enabled && chainLength + 1 < keyframeInterval;
+  }
+
+  /**
+   * Get cached content.
+   *
+   * @param contentKey The content key the content is stored under
+   * @param digest The content digest
+   * @return The content, or null if it isn't cached
+   */
+  byte[] getContent(String contentKey, String digest) {
+    if (!enabled) {
+      return null;
+    }
+    byte[] content = contentCache.getIfPresent(cacheKey(contentKey, digest));
+    if (content != null) {
+      hitCount.incrementAndGet();
+    } else {
+      missCount.incrementAndGet();
+    }
+    return content;
+  }
+
+  /**
+   * Cache content that was read, reconstructed or written.
+   *
+   * @param contentKey The content key the content is stored under
+   * @param digest The content digest
+   * @param content The content
+   */
+  void putContent(String contentKey, String digest, byte[] content) {
+    if (enabled) {
+      contentCache.put(cacheKey(contentKey, digest), content);
+    }
+  }
+
+  private static String cacheKey(String contentKey, String digest) {
+    // digests are hex, so they can't contain the separator
+    return contentKey + "/" + digest;
+  }
+
+  void recordDelta(int length) {
+    deltaCount.incrementAndGet();
+    deltaBytes.addAndGet(length);
+  }
+
+  void recordKeyframe() {
+    keyframeCount.incrementAndGet();
+  }
+
+  void recordReconstruction() {
+    reconstructionCount.incrementAndGet();
+  }
+
+  @ManagedAttribute(description = "Whether new snapshots are delta encoded")
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @ManagedAttribute(description = "Versions of a page between full copies")
+  public int getKeyframeInterval() {
+    return keyframeInterval;
+  }
+
+  @ManagedAttribute(description = "Number of cached contents")
+  public long getCacheSize() {
+    return contentCache.size();
+  }
+
+  @ManagedAttribute(description = "Number of contents served from the cache")
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  @ManagedAttribute(description = "Number of contents that weren't cached")
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  @ManagedAttribute(description = "Number of snapshots stored as deltas")
+  public long getDeltaCount() {
+    return deltaCount.get();
+  }
+
+  @ManagedAttribute(description = "Total bytes of the stored deltas")
+  public long getDeltaBytes() {
+    return deltaBytes.get();
+  }
+
+  @ManagedAttribute(description = "Number of snapshots stored as keyframes")
+  public long getKeyframeCount() {
+    return keyframeCount.get();
+  }
+
+  @ManagedAttribute(description = "Number of delta chains read from HBase")
+  public long getReconstructionCount() {
+    return reconstructionCount.get();
+  }
+}
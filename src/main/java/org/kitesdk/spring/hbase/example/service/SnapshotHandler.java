@@ -0,0 +1,35 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.io.IOException;
+
+/**
+ * Receives snapshots one at a time as they're read from HBase, so callers can
+ * stream them out without holding a whole history in memory.
+ *
+ * @param <T> The type of snapshot handled
+ */
+public interface SnapshotHandler<T> {
+
+  /**
+   * Handle the next snapshot.
+   *
+   * @param snapshot The snapshot
+   * @throws IOException
+   */
+  void handle(T snapshot) throws IOException;
+}
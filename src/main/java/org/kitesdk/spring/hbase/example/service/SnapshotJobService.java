@@ -0,0 +1,148 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.kitesdk.spring.hbase.example.model.frontend.SnapshotJob;
+import org.kitesdk.spring.hbase.example.model.frontend.WebPageSnapshotMeta;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+/**
+ * Service for taking snapshots in the background, so the fetch, parse and
+ * HBase writes don't hold a servlet thread.
+ *
+ * Jobs run on the snapshot job executor. Its queue is bounded, so when too
+ * many jobs are pending new jobs are rejected rather than piling up.
+ */
+@Component
+public class SnapshotJobService {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(SnapshotJobService.class);
+
+  /**
+   * How long a finished job can be checked on.
+   */
+  private static final long JOB_RETENTION_MINUTES = 60;
+
+  private static final long MAX_RETAINED_JOBS = 100000;
+
+  @Autowired
+  private WebPageSnapshotService webPageSnapshotService;
+
+  @Autowired
+  private AsyncTaskExecutor snapshotJobExecutor;
+
+  private final Cache<String, OwnedJob> jobs = CacheBuilder.newBuilder()
+      .maximumSize(MAX_RETAINED_JOBS)
+      .expireAfterWrite(JOB_RETENTION_MINUTES, TimeUnit.MINUTES)
+      .build();
+
+  /**
+   * Queue a snapshot of an URL.
+   *
+   * @param url The URL to take a snapshot of
+   * @param contentKey The key used to store the content
+   * @param user The user taking a snapshot
+   * @return The pending SnapshotJob
+   * @throws TaskRejectedException if too many jobs are already queued
+   */
+  public SnapshotJob submit(String url, String contentKey, String user) {
+    return submit(url, contentKey, user, null);
+  }
+
+  /**
+   * Queue a snapshot of an URL, and set the WebPageSnapshotMeta on a
+   * DeferredResult when it's done.
+   *
+   * @param url The URL to take a snapshot of
+   * @param contentKey The key used to store the content
+   * @param user The user taking a snapshot
+   * @param deferredResult The DeferredResult to set, or null
+   * @return The pending SnapshotJob
+   * @throws TaskRejectedException if too many jobs are already queued
+   */
+  public SnapshotJob submit(final String url, final String contentKey,
+      final String user,
+      final DeferredResult<WebPageSnapshotMeta> deferredResult) {
+    final SnapshotJob job = new SnapshotJob(UUID.randomUUID().toString(), url);
+    jobs.put(job.getId(), new OwnedJob(user, job));
+    try {
+      snapshotJobExecutor.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          job.setStatus(SnapshotJob.RUNNING);
+          try {
+            WebPageSnapshotMeta meta =
+                webPageSnapshotService.takeSnapshot(url, contentKey, user);
+            job.setMeta(meta);
+            job.setStatus(SnapshotJob.DONE);
+            if (deferredResult != null) {
+              deferredResult.setResult(meta);
+            }
+          } catch (Exception ex) {
+            LOG.info("Snapshot job " + job.getId() + " failed", ex);
+            job.setError(String.valueOf(ex.getMessage()));
+            job.setStatus(SnapshotJob.FAILED);
+            if (deferredResult != null) {
+              deferredResult.setErrorResult(ex);
+            }
+          }
+        }
+      });
+    } catch (TaskRejectedException ex) {
+      jobs.invalidate(job.getId());
+      throw ex;
+    }
+    return job;
+  }
+
+  /**
+   * Get a snapshot job.
+   *
+   * @param id The id of the job
+   * @param user The user checking on the job
+   * @return The SnapshotJob, or null if there's no such job for this user
+   */
+  public SnapshotJob getJob(String id, String user) {
+    OwnedJob ownedJob = jobs.getIfPresent(id);
+    if (ownedJob == null || !ownedJob.user.equals(user)) {
+      return null;
+    }
+    return ownedJob.job;
+  }
+
+  private static class OwnedJob {
+
+    private final String user;
+    private final SnapshotJob job;
+
+    private OwnedJob(String user, SnapshotJob job) {
+      this.user = user;
+      this.job = job;
+    }
+  }
+}
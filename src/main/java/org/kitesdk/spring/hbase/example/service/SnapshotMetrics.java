@@ -0,0 +1,282 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Latency histograms and throughput counters for each stage of serving a
+ * request, and for each endpoint.
+ *
+ * Every stage and endpoint is registered as its own MBean under
+ * kite.spring.hbase.example:name=SnapshotMetrics, and all of them can be read
+ * at once in the Prometheus text format from the /metrics endpoint. Stages are
+ * recorded by the code that runs them, with the System.nanoTime() the stage
+ * started at, so timing a stage costs two clock reads and a few atomic
+ * increments. A stage that runs while a request is being traced is also
+ * added to the request's RequestTrace.
+ */
+@ManagedResource(objectName = "kite.spring.hbase.example:name=SnapshotMetrics",
+    description = "Request stage metrics")
+public class SnapshotMetrics {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(SnapshotMetrics.class);
+
+  private static final String DOMAIN = "kite.spring.hbase.example";
+
+  private static final double[] QUANTILES = { 0.5, 0.95, 0.99 };
+
+  /**
+   * Metrics that record nothing, for HBase access outside of requests.
+   */
+  static final SnapshotMetrics DISABLED = new SnapshotMetrics(false);
+
+  /**
+   * The stages of serving a request.
+   */
+  public enum Stage {
+    PROXY_USER("proxyUser"),
+    DATASETS("datasets"),
+    REDIRECT_LOOKUP("redirectLookup"),
+    HBASE_GET("hbase.get"),
+    HBASE_SCAN("hbase.scan"),
+    HBASE_PUT("hbase.put"),
+    FETCH("fetch"),
+    PARSE("parse"),
+    CONVERT("convert"),
+    JSON("json");
+
+    private final String name;
+
+    private Stage(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+
+  private final boolean enabled;
+
+  private final Map<Stage, LatencyHistogram> stages =
+      new EnumMap<Stage, LatencyHistogram>(Stage.class);
+
+  private final ConcurrentMap<String, LatencyHistogram> endpoints =
+      new ConcurrentHashMap<String, LatencyHistogram>();
+
+  private volatile MBeanServer mbeanServer = null;
+
+  /**
+   * @param enabled Whether anything is recorded
+   */
+  public SnapshotMetrics(boolean enabled) {
+    this.enabled = enabled;
+    for (Stage stage : Stage.values()) {
+      stages.put(stage, new LatencyHistogram());
+    }
+  }
+
+  /**
+   * Register the MBeans of the stages.
+   */
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    for (Map.Entry<Stage, LatencyHistogram> entry : stages.entrySet()) {
+      register("stage", entry.getKey().getName(), entry.getValue());
+    }
+  }
+
+  /**
+   * Unregister the MBeans of the stages and endpoints.
+   */
+  public void close() {
+    MBeanServer server = mbeanServer;
+    if (server == null) {
+      return;
+    }
+    mbeanServer = null;
+    for (Stage stage : stages.keySet()) {
+      unregister(server, "stage", stage.getName());
+    }
+    for (String endpoint : endpoints.keySet()) {
+      unregister(server, "endpoint", endpoint);
+    }
+  }
+
+  /**
+   * Record a stage that's finished.
+   *
+   * @param stage The stage
+   * @param startNanos The System.nanoTime() the stage started at
+   */
+  public void record(Stage stage, long startNanos) {
+    record(stage, startNanos, 0);
+  }
+
+  /**
+   * Record a stage that's finished.
+   *
+   * @param stage The stage
+   * @param startNanos The System.nanoTime() the stage started at
+   * @param bytes The bytes the stage read or wrote
+   */
+  public void record(Stage stage, long startNanos, long bytes) {
+    long endNanos = System.nanoTime();
+    if (enabled) {
+      stages.get(stage).record(endNanos - startNanos, bytes);
+    }
+    RequestTrace trace = RequestTrace.current();
+    if (trace != null) {
+      trace.add(stage.getName(), startNanos, endNanos, bytes);
+    }
+  }
+
+  /**
+   * Record a request to an endpoint that's finished.
+   *
+   * @param endpoint The endpoint's path
+   * @param startNanos The System.nanoTime() the request started at
+   * @param failed Whether the request failed
+   */
+  public void recordEndpoint(String endpoint, long startNanos, boolean failed) {
+    if (!enabled) {
+      return;
+    }
+    LatencyHistogram histogram = endpoints.get(endpoint);
+    if (histogram == null) {
+      LatencyHistogram added = new LatencyHistogram();
+      histogram = endpoints.putIfAbsent(endpoint, added);
+      if (histogram == null) {
+        histogram = added;
+        register("endpoint", endpoint, added);
+      }
+    }
+    histogram.record(System.nanoTime() - startNanos, 0);
+    if (failed) {
+      histogram.recordError();
+    }
+  }
+
+  /**
+   * Write every stage and endpoint in the Prometheus text format.
+   *
+   * @param writer The writer to write to, which is flushed but not closed
+   */
+  public void writeText(Writer writer) {
+    PrintWriter out = new PrintWriter(writer);
+    out.println("# TYPE snapshot_stage_seconds summary");
+    for (Map.Entry<Stage, LatencyHistogram> entry : stages.entrySet()) {
+      writeSummary(out, "snapshot_stage", "stage", entry.getKey().getName(),
+          entry.getValue());
+    }
+    out.println("# TYPE snapshot_stage_bytes_total counter");
+    for (Map.Entry<Stage, LatencyHistogram> entry : stages.entrySet()) {
+      out.println("snapshot_stage_bytes_total{stage=\""
+          + entry.getKey().getName() + "\"} " + entry.getValue().getBytes());
+    }
+    Map<String, LatencyHistogram> sorted =
+        new TreeMap<String, LatencyHistogram>(endpoints);
+    out.println("# TYPE snapshot_endpoint_seconds summary");
+    for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+      writeSummary(out, "snapshot_endpoint", "endpoint", entry.getKey(),
+          entry.getValue());
+    }
+    out.println("# TYPE snapshot_endpoint_errors_total counter");
+    for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+      out.println("snapshot_endpoint_errors_total{endpoint=\""
+          + entry.getKey() + "\"} " + entry.getValue().getErrorCount());
+    }
+    out.flush();
+  }
+
+  private static void writeSummary(PrintWriter out, String metric,
+      String label, String value, LatencyHistogram histogram) {
+    String labels = label + "=\"" + value + "\"";
+    for (double quantile : QUANTILES) {
+      out.println(metric + "_seconds{" + labels + ",quantile=\"" + quantile
+          + "\"} " + histogram.percentileMs(quantile) / 1000);
+    }
+    out.println(metric + "_seconds_sum{" + labels + "} "
+        + histogram.getTotalSeconds());
+    out.println(metric + "_seconds_count{" + labels + "} "
+        + histogram.getCount());
+  }
+
+  private void register(String type, String name, LatencyHistogram histogram) {
+    MBeanServer server = mbeanServer;
+    if (server == null) {
+      return;
+    }
+    try {
+      server.registerMBean(
+          new StandardMBean(histogram, LatencyHistogramMBean.class),
+          objectName(type, name));
+    } catch (JMException ex) {
+      LOG.warn("Unable to register metrics for " + type + " " + name, ex);
+    }
+  }
+
+  private static void unregister(MBeanServer server, String type,
+      String name) {
+    try {
+      server.unregisterMBean(objectName(type, name));
+    } catch (JMException ex) {
+      LOG.debug("Unable to unregister metrics for " + type + " " + name, ex);
+    }
+  }
+
+  private static ObjectName objectName(String type, String name)
+      throws JMException {
+    return new ObjectName(DOMAIN + ":name=SnapshotMetrics," + type + "="
+        + ObjectName.quote(name));
+  }
+
+  @ManagedAttribute(description = "Whether stage metrics are recorded")
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @ManagedOperation(description = "Reset every stage and endpoint")
+  public void reset() {
+    for (LatencyHistogram histogram : stages.values()) {
+      histogram.reset();
+    }
+    for (LatencyHistogram histogram : endpoints.values()) {
+      histogram.reset();
+    }
+  }
+}
@@ -0,0 +1,422 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HConnectionManager;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.kitesdk.data.Datasets;
+import org.kitesdk.data.RandomAccessDataset;
+import org.kitesdk.data.spi.DefaultConfiguration;
+import org.kitesdk.spring.hbase.example.model.WebPageRedirectModel;
+import org.kitesdk.spring.hbase.example.model.WebPageSnapshotModel;
+import org.kitesdk.spring.hbase.example.service.AvroColumnMapping.Column;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Deletes old snapshots according to a RetentionPolicy, and redirects to URLs
+ * that no longer have any snapshot.
+ *
+ * The sweeper runs in the background as the application principal, starting
+ * one sweep interval after the app starts. A sweep scans the small meta
+ * columns of the whole snapshot table, decides which snapshots of each URL
+ * have expired, and deletes them in batches. After each batch it waits long
+ * enough to stay under the configured rate of deletes, so a sweep doesn't
+ * compete with requests for the region servers. Then it scans the redirect
+ * table, and deletes the redirects whose destination has no snapshot.
+ *
+ * The bytes reclaimed are the key and value bytes of the deleted cells. The
+ * space is given back to HDFS when the regions are next major compacted.
+ *
+ * Contents in the WebPageContentModel table and on HDFS are shared by every
+ * snapshot with the same digest, and aren't swept.
+ */
+@ManagedResource(objectName = "kite.spring.hbase.example:name=SnapshotRetentionSweeper",
+    description = "Retention of old snapshots")
+public class SnapshotRetentionSweeper {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(SnapshotRetentionSweeper.class);
+
+  private static final int SCAN_CACHING = 1000;
+
+  /**
+   * How old a redirect has to be before it can be swept. A redirect is stored
+   * just before the snapshot of its destination, so a new redirect may not
+   * have its snapshot yet.
+   */
+  private static final long REDIRECT_GRACE_MS = TimeUnit.HOURS.toMillis(1);
+
+  private static final AvroColumnMapping REDIRECT_MAPPING =
+      new AvroColumnMapping(WebPageRedirectModel.SCHEMA$);
+
+  private static final Column DESTINATION_URL_COLUMN =
+      REDIRECT_MAPPING.column("destinationUrl");
+
+  private final String webPageSnapshotUri;
+  private final String webPageRedirectUri;
+  private final RetentionPolicy policy;
+  private final boolean enabled;
+  private final long sweepMinutes;
+  private final int deleteBatchSize;
+  private final int maxDeletesPerSecond;
+
+  private ScheduledExecutorService sweeper;
+
+  private volatile long lastSweepMs = 0;
+  private volatile long lastSnapshotsDeleted = 0;
+  private volatile long lastRedirectsDeleted = 0;
+  private volatile long lastBytesReclaimed = 0;
+
+  private final AtomicLong sweepCount = new AtomicLong();
+  private final AtomicLong snapshotsScanned = new AtomicLong();
+  private final AtomicLong snapshotsDeleted = new AtomicLong();
+  private final AtomicLong redirectsScanned = new AtomicLong();
+  private final AtomicLong redirectsDeleted = new AtomicLong();
+  private final AtomicLong bytesReclaimed = new AtomicLong();
+
+  /**
+   * @param webPageSnapshotUri The URI of the WebPageSnapshotModel dataset
+   * @param webPageRedirectUri The URI of the WebPageRedirectModel dataset
+   * @param policy Which snapshots to keep
+   * @param enabled Whether sweeps run in the background
+   * @param sweepMinutes How long to wait between sweeps
+   * @param deleteBatchSize The most rows deleted per batch
+   * @param maxDeletesPerSecond The most rows deleted per second
+   */
+  public SnapshotRetentionSweeper(String webPageSnapshotUri,
+      String webPageRedirectUri, RetentionPolicy policy, boolean enabled,
+      long sweepMinutes, int deleteBatchSize, int maxDeletesPerSecond) {
+    if (sweepMinutes < 1 || deleteBatchSize < 1 || maxDeletesPerSecond < 1) {
+      throw new IllegalArgumentException("Invalid retention sweep settings");
+    }
+    this.webPageSnapshotUri = webPageSnapshotUri;
+    this.webPageRedirectUri = webPageRedirectUri;
+    this.policy = policy;
+    this.enabled = enabled;
+    this.sweepMinutes = sweepMinutes;
+    this.deleteBatchSize = deleteBatchSize;
+    this.maxDeletesPerSecond = maxDeletesPerSecond;
+  }
+
+  /**
+   * Start sweeping in the background.
+   */
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "snapshot-retention-sweeper");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    sweeper.scheduleWithFixedDelay(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          sweep();
+        } catch (Exception ex) {
+          LOG.warn("Unable to sweep old snapshots", ex);
+        }
+      }
+    }, sweepMinutes, sweepMinutes, TimeUnit.MINUTES);
+  }
+
+  public void close() {
+    if (sweeper != null) {
+      sweeper.shutdownNow();
+    }
+  }
+
+  /**
+   * Delete the expired snapshots and the orphaned redirects.
+   */
+  @ManagedOperation(description = "Sweep the snapshot and redirect tables now")
+  public synchronized void sweep() throws IOException {
+    long start = System.currentTimeMillis();
+    RandomAccessDataset<WebPageSnapshotModel> webPageSnapshotModels =
+        Datasets.load(webPageSnapshotUri, WebPageSnapshotModel.class);
+    HConnection connection = HConnectionManager.createConnection(
+        UserDatasetCache.hbaseConfiguration(DefaultConfiguration.get(),
+            webPageSnapshotUri));
+    try {
+      // sweeps aren't requests, so they're kept out of the stage metrics
+      WebPageSnapshotTable snapshots = new WebPageSnapshotTable(connection,
+          UserDatasetCache.tableName(webPageSnapshotUri),
+          SnapshotRowKeys.forDescriptor(webPageSnapshotModels.getDescriptor()),
+          SnapshotMetrics.DISABLED);
+      SnapshotSweep snapshotSweep = new SnapshotSweep(snapshots, start);
+      snapshots.scanRetentionMeta(snapshotSweep);
+      snapshotSweep.finish();
+      RedirectSweep redirectSweep = sweepRedirects(connection,
+          UserDatasetCache.tableName(webPageRedirectUri), snapshots,
+          start - REDIRECT_GRACE_MS);
+      lastSnapshotsDeleted = snapshotSweep.deleted;
+      lastRedirectsDeleted = redirectSweep.deleted;
+      lastBytesReclaimed = snapshotSweep.bytes + redirectSweep.bytes;
+    } finally {
+      connection.close();
+    }
+    lastSweepMs = System.currentTimeMillis() - start;
+    sweepCount.incrementAndGet();
+    LOG.info("Swept {} snapshots, {} redirects and {} bytes in {} ms",
+        new Object[] { lastSnapshotsDeleted, lastRedirectsDeleted,
+            lastBytesReclaimed, lastSweepMs });
+  }
+
+  /**
+   * Delete the redirects whose destination has no snapshot.
+   *
+   * @param writtenBefore Redirects written since this epoch time are kept
+   */
+  private RedirectSweep sweepRedirects(HConnection connection,
+      String tableName, WebPageSnapshotTable snapshots, long writtenBefore)
+      throws IOException {
+    RedirectSweep sweep = new RedirectSweep();
+    Scan scan = new Scan();
+    scan.addColumn(DESTINATION_URL_COLUMN.family,
+        DESTINATION_URL_COLUMN.qualifier);
+    scan.setCaching(SCAN_CACHING);
+    scan.setCacheBlocks(false);
+    HTableInterface table = connection.getTable(tableName);
+    try {
+      ResultScanner scanner = table.getScanner(scan);
+      try {
+        List<Delete> batch = new ArrayList<Delete>();
+        for (Result result : scanner) {
+          redirectsScanned.incrementAndGet();
+          Cell cell = result.rawCells()[0];
+          if (cell.getTimestamp() >= writtenBefore) {
+            continue;
+          }
+          WebPageRedirectModel redirect = new WebPageRedirectModel();
+          REDIRECT_MAPPING.decode(result, redirect);
+          if (snapshots.hasSnapshot(redirect.getDestinationUrl())) {
+            continue;
+          }
+          batch.add(new Delete(result.getRow()));
+          sweep.bytes += cell.getRowLength() + cell.getFamilyLength()
+              + cell.getQualifierLength() + cell.getValueLength();
+          if (batch.size() >= deleteBatchSize) {
+            sweep.deleted += deleteRedirects(table, batch);
+          }
+        }
+        sweep.deleted += deleteRedirects(table, batch);
+      } finally {
+        scanner.close();
+      }
+    } finally {
+      table.close();
+    }
+    return sweep;
+  }
+
+  private int deleteRedirects(HTableInterface table, List<Delete> batch)
+      throws IOException {
+    int count = batch.size();
+    if (count > 0) {
+      long start = System.currentTimeMillis();
+      table.delete(batch);
+      batch.clear();
+      redirectsDeleted.addAndGet(count);
+      throttle(count, start);
+    }
+    return count;
+  }
+
+  /**
+   * Wait until a batch of deletes that started at start has taken as long as
+   * it's allowed to at the maximum rate.
+   */
+  private void throttle(int count, long start) throws InterruptedIOException {
+    long waitMs = start + count * 1000L / maxDeletesPerSecond
+        - System.currentTimeMillis();
+    if (waitMs > 0) {
+      try {
+        Thread.sleep(waitMs);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted sweeping old snapshots");
+      }
+    }
+  }
+
+  /**
+   * Collects the snapshots of each URL as they're scanned, and deletes the
+   * expired ones once the scan moves on to the next URL.
+   */
+  private class SnapshotSweep
+      implements SnapshotHandler<WebPageSnapshotModel> {
+
+    private final WebPageSnapshotTable table;
+    private final long now;
+    private final List<WebPageSnapshotModel> history =
+        new ArrayList<WebPageSnapshotModel>();
+    private final List<WebPageSnapshotModel> batch =
+        new ArrayList<WebPageSnapshotModel>();
+    private long deleted = 0;
+    private long bytes = 0;
+
+    private SnapshotSweep(WebPageSnapshotTable table, long now) {
+      this.table = table;
+      this.now = now;
+    }
+
+    @Override
+    public void handle(WebPageSnapshotModel snapshot) throws IOException {
+      snapshotsScanned.incrementAndGet();
+      if (!history.isEmpty()
+          && !history.get(0).getUrl().equals(snapshot.getUrl())) {
+        expire();
+      }
+      history.add(snapshot);
+    }
+
+    private void finish() throws IOException {
+      expire();
+      delete();
+    }
+
+    private void expire() throws IOException {
+      for (WebPageSnapshotModel snapshot : policy.expired(history, now)) {
+        batch.add(snapshot);
+        if (batch.size() >= deleteBatchSize) {
+          delete();
+        }
+      }
+      history.clear();
+    }
+
+    private void delete() throws IOException {
+      int count = batch.size();
+      if (count > 0) {
+        long start = System.currentTimeMillis();
+        long batchBytes = table.delete(batch);
+        batch.clear();
+        deleted += count;
+        bytes += batchBytes;
+        snapshotsDeleted.addAndGet(count);
+        bytesReclaimed.addAndGet(batchBytes);
+        throttle(count, start);
+      }
+    }
+  }
+
+  private static class RedirectSweep {
+
+    private long deleted = 0;
+    private long bytes = 0;
+  }
+
+  @ManagedAttribute(description = "Whether sweeps run in the background")
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @ManagedAttribute(description = "Number of most recent snapshots always kept")
+  public int getKeepLast() {
+    return policy.getKeepLast();
+  }
+
+  @ManagedAttribute(description = "Age in days under which every snapshot is kept")
+  public int getKeepAllDays() {
+    return policy.getKeepAllDays();
+  }
+
+  @ManagedAttribute(description = "Age in days under which a snapshot a day is kept")
+  public int getKeepDailyDays() {
+    return policy.getKeepDailyDays();
+  }
+
+  @ManagedAttribute(description = "Age in days under which a snapshot a week is kept, 0 for forever")
+  public int getKeepWeeklyDays() {
+    return policy.getKeepWeeklyDays();
+  }
+
+  @ManagedAttribute(description = "Duration of the last sweep in ms")
+  public long getLastSweepMs() {
+    return lastSweepMs;
+  }
+
+  @ManagedAttribute(description = "Snapshots deleted by the last sweep")
+  public long getLastSnapshotsDeleted() {
+    return lastSnapshotsDeleted;
+  }
+
+  @ManagedAttribute(description = "Redirects deleted by the last sweep")
+  public long getLastRedirectsDeleted() {
+    return lastRedirectsDeleted;
+  }
+
+  @ManagedAttribute(description = "Bytes reclaimed by the last sweep")
+  public long getLastBytesReclaimed() {
+    return lastBytesReclaimed;
+  }
+
+  @ManagedAttribute(description = "Number of sweeps")
+  public long getSweepCount() {
+    return sweepCount.get();
+  }
+
+  @ManagedAttribute(description = "Number of snapshots scanned")
+  public long getSnapshotsScanned() {
+    return snapshotsScanned.get();
+  }
+
+  @ManagedAttribute(description = "Number of snapshots deleted")
+  public long getSnapshotsDeleted() {
+    return snapshotsDeleted.get();
+  }
+
+  @ManagedAttribute(description = "Number of redirects scanned")
+  public long getRedirectsScanned() {
+    return redirectsScanned.get();
+  }
+
+  @ManagedAttribute(description = "Number of redirects deleted")
+  public long getRedirectsDeleted() {
+    return redirectsDeleted.get();
+  }
+
+  @ManagedAttribute(description = "Bytes of deleted snapshots and redirects")
+  public long getBytesReclaimed() {
+    return bytesReclaimed.get();
+  }
+}
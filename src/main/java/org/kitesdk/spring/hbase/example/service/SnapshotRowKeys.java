@@ -0,0 +1,219 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import com.google.common.base.Charsets;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import org.kitesdk.data.DatasetDescriptor;
+import org.kitesdk.data.PartitionStrategy;
+import org.kitesdk.data.spi.FieldPartitioner;
+import org.kitesdk.data.spi.partition.HashFieldPartitioner;
+
+/**
+ * Encodes and decodes the row keys Kite writes for the WebPageSnapshotModel
+ * (url, fetchedAtRevTs) key, so rows can be read with the HBase client
+ * directly.
+ *
+ * Kite uses a memcmp-able key encoding. Strings are written as their UTF-8
+ * bytes with every 0x00 escaped as 0x00 0x01, followed by a 0x00 0x00
+ * terminator. Longs are written big-endian with the sign bit flipped.
+ *
+ * A table can be salted by partitioning it with hash("url", buckets) ahead of
+ * the key fields. Kite then starts every row key with the URL's bucket,
+ * written as a 4 byte int with the sign bit flipped. The bucket depends only
+ * on the URL, so every row of an URL still shares one prefix and can be read
+ * with a single contiguous scan.
+ */
+final class SnapshotRowKeys {
+
+  /**
+   * Row keys of a table that isn't salted.
+   */
+  static final SnapshotRowKeys UNSALTED = new SnapshotRowKeys(0);
+
+  private static final String URL_FIELD = "url";
+  private static final int INT_LENGTH = 4;
+  private static final int LONG_LENGTH = 8;
+
+  private final int saltBuckets;
+
+  /**
+   * @param saltBuckets The number of hash buckets, or 0 if the keys aren't
+   * salted
+   */
+  SnapshotRowKeys(int saltBuckets) {
+    this.saltBuckets = saltBuckets;
+  }
+
+  /**
+   * The row keys of a dataset, salted if its partition strategy starts with a
+   * hash of the URL.
+   *
+   * @param descriptor The dataset's descriptor
+   * @return The row keys
+   */
+  static SnapshotRowKeys forDescriptor(DatasetDescriptor descriptor) {
+    if (!descriptor.isPartitioned()) {
+      return UNSALTED;
+    }
+    PartitionStrategy strategy = descriptor.getPartitionStrategy();
+    FieldPartitioner<?, ?> first = strategy.getFieldPartitioners().get(0);
+    if (first instanceof HashFieldPartitioner
+        && URL_FIELD.equals(first.getSourceName())) {
+      return new SnapshotRowKeys(first.getCardinality());
+    }
+    return UNSALTED;
+  }
+
+  /**
+   * The row key prefix shared by every snapshot of an URL.
+   *
+   * @param url The URL
+   * @return The encoded prefix
+   */
+  byte[] urlPrefix(String url) {
+    byte[] key = stringKey(url);
+    if (saltBuckets == 0) {
+      return key;
+    }
+    byte[] prefix = new byte[INT_LENGTH + key.length];
+    writeInt(prefix, bucket(url));
+    System.arraycopy(key, 0, prefix, INT_LENGTH, key.length);
+    return prefix;
+  }
+
+  /**
+   * The bucket Kite's hash partitioner puts an URL in.
+   */
+  private int bucket(String url) {
+    return (url.hashCode() & Integer.MAX_VALUE) % saltBuckets;
+  }
+
+  private static void writeInt(byte[] bytes, int value) {
+    int encoded = value ^ Integer.MIN_VALUE;
+    for (int i = INT_LENGTH - 1; i >= 0; i--) {
+      bytes[i] = (byte) encoded;
+      encoded >>>= 8;
+    }
+  }
+
+  /**
+   * Encode a single string key field. This is also the whole row key of
+   * models keyed by one string, like the WebPageContentModel digest.
+   *
+   * @param value The key field
+   * @return The encoded key
+   */
+  static byte[] stringKey(String value) {
+    byte[] bytes = value.getBytes(Charsets.UTF_8);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + 2);
+    for (byte b : bytes) {
+      if (b == 0x00) {
+        out.write(0x00);
+        out.write(0x01);
+      } else {
+        out.write(b);
+      }
+    }
+    out.write(0x00);
+    out.write(0x00);
+    return out.toByteArray();
+  }
+
+  /**
+   * The row key of a single snapshot.
+   *
+   * @param url The URL
+   * @param fetchedAtRevTs The reversed fetch timestamp
+   * @return The encoded row key
+   */
+  byte[] rowKey(String url, long fetchedAtRevTs) {
+    byte[] prefix = urlPrefix(url);
+    byte[] row = Arrays.copyOf(prefix, prefix.length + LONG_LENGTH);
+    long encoded = fetchedAtRevTs ^ Long.MIN_VALUE;
+    for (int i = LONG_LENGTH - 1; i >= 0; i--) {
+      row[prefix.length + i] = (byte) encoded;
+      encoded >>>= 8;
+    }
+    return row;
+  }
+
+  /**
+   * The exclusive stop row for a scan over every snapshot of an URL.
+   *
+   * @param url The URL
+   * @return The stop row
+   */
+  byte[] urlStopRow(String url) {
+    byte[] stop = urlPrefix(url);
+    // the terminator is 0x00 0x00, and no longer URL can sort below 0x00 0x01
+    stop[stop.length - 1] = 0x01;
+    return stop;
+  }
+
+  /**
+   * Decode the reversed fetch timestamp from a snapshot row key.
+   *
+   * @param row The row key
+   * @return The fetchedAtRevTs key field
+   */
+  static long fetchedAtRevTs(byte[] row) {
+    long encoded = 0;
+    for (int i = row.length - LONG_LENGTH; i < row.length; i++) {
+      encoded = (encoded << 8) | (row[i] & 0xFF);
+    }
+    return encoded ^ Long.MIN_VALUE;
+  }
+
+  /**
+   * Decode the URL from a snapshot row key.
+   *
+   * @param row The row key
+   * @return The url key field
+   */
+  String url(byte[] row) {
+    return stringField(row, saltBuckets == 0 ? 0 : INT_LENGTH);
+  }
+
+  /**
+   * Decode the string key field a row key starts with, like the digest of a
+   * content row.
+   *
+   * @param row The row key
+   * @return The first key field
+   */
+  static String stringField(byte[] row) {
+    return stringField(row, 0);
+  }
+
+  private static String stringField(byte[] row, int offset) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(row.length);
+    for (int i = offset; i < row.length; i++) {
+      if (row[i] == 0x00) {
+        if (i + 1 >= row.length || row[i + 1] == 0x00) {
+          break;
+        }
+        // escaped 0x00
+        out.write(0x00);
+        i++;
+      } else {
+        out.write(row[i]);
+      }
+    }
+    return new String(out.toByteArray(), Charsets.UTF_8);
+  }
+}
@@ -0,0 +1,356 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HConnectionManager;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.kitesdk.data.Datasets;
+import org.kitesdk.data.RandomAccessDataset;
+import org.kitesdk.data.spi.DefaultConfiguration;
+import org.kitesdk.spring.hbase.example.model.WebPageRedirectModel;
+import org.kitesdk.spring.hbase.example.model.WebPageSnapshotModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * A Bloom filter of every URL that has a snapshot or a redirect, so lookups
+ * of URLs that were never snapshotted can be answered without going to HBase.
+ *
+ * The filter is rebuilt in the background from the row keys of the snapshot
+ * and redirect tables, when the app starts and then periodically, as the
+ * application principal. Snapshots add their URLs as they're taken, to the
+ * current filter and to one that's being rebuilt. The URLs added since shortly
+ * before a rebuild started are also replayed into the rebuilt filter before
+ * it replaces the current one, so an URL whose row was written after the scan
+ * passed it isn't missed either. Until the first rebuild finishes, every URL
+ * might be contained.
+ *
+ * Only snapshots taken by this instance are added between rebuilds, so other
+ * instances would report URLs this one snapshotted as missing until their
+ * next rebuild. The filter must only be enabled when a single instance of the
+ * app writes to the tables.
+ *
+ * A rebuilt filter is sized for twice the number of URLs found, or the
+ * configured number of URLs if that's more, so the false positive rate stays
+ * near the configured rate as the tables grow.
+ */
+@ManagedResource(objectName = "kite.spring.hbase.example:name=SnapshotUrlFilter",
+    description = "Filter of URLs with snapshots")
+public class SnapshotUrlFilter {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(SnapshotUrlFilter.class);
+
+  private static final int SCAN_CACHING = 1000;
+
+  /**
+   * How long before a rebuild starts the URLs added are replayed into the
+   * rebuilt filter. Covers snapshots whose rows were written after the scan
+   * started, though their URLs were added before it.
+   */
+  private static final long REPLAY_WINDOW_MS = TimeUnit.MINUTES.toMillis(10);
+
+  private final String webPageSnapshotUri;
+  private final String webPageRedirectUri;
+  private final boolean enabled;
+  private final long expectedUrls;
+  private final double falsePositiveRate;
+  private final long rebuildMinutes;
+
+  private volatile BloomFilter filter = null;
+  private volatile BloomFilter building = null;
+  private volatile long rebuildStartedAt = Long.MAX_VALUE;
+  private final ConcurrentLinkedQueue<AddedUrl> added =
+      new ConcurrentLinkedQueue<AddedUrl>();
+  private volatile long lastUrlCount = 0;
+  private volatile long lastRebuildMs = 0;
+
+  private ScheduledExecutorService rebuilder;
+
+  private final AtomicLong checkCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong rebuildCount = new AtomicLong();
+
+  /**
+   * @param webPageSnapshotUri The URI of the WebPageSnapshotModel dataset
+   * @param webPageRedirectUri The URI of the WebPageRedirectModel dataset
+   * @param enabled Whether lookups are filtered
+   * @param expectedUrls The fewest URLs the filter is sized for
+   * @param falsePositiveRate The false positive rate at the sized number of
+   * URLs
+   * @param rebuildMinutes How often the filter is rebuilt
+   */
+  public SnapshotUrlFilter(String webPageSnapshotUri, String webPageRedirectUri,
+      boolean enabled, long expectedUrls, double falsePositiveRate,
+      long rebuildMinutes) {
+    this.webPageSnapshotUri = webPageSnapshotUri;
+    this.webPageRedirectUri = webPageRedirectUri;
+    this.enabled = enabled;
+    this.expectedUrls = expectedUrls;
+    this.falsePositiveRate = falsePositiveRate;
+    this.rebuildMinutes = rebuildMinutes;
+  }
+
+  /**
+   * Start rebuilding the filter in the background.
+   */
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    rebuilder = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "snapshot-url-filter");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    rebuilder.scheduleWithFixedDelay(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          rebuild();
+        } catch (Exception ex) {
+          LOG.warn("Unable to rebuild the snapshot URL filter", ex);
+        }
+      }
+    }, 0, rebuildMinutes, TimeUnit.MINUTES);
+  }
+
+  public void close() {
+    if (rebuilder != null) {
+      rebuilder.shutdownNow();
+    }
+  }
+
+  /**
+   * Check whether an URL might have a snapshot or a redirect.
+   *
+   * @param url The URL
+   * @return false if the URL definitely has neither
+   */
+  boolean mightContain(String url) {
+    BloomFilter current = filter;
+    if (current == null) {
+      return true;
+    }
+    checkCount.incrementAndGet();
+    if (current.mightContain(url)) {
+      return true;
+    }
+    missCount.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Add the URL of a snapshot or redirect that's about to be stored.
+   *
+   * @param url The URL
+   */
+  void put(String url) {
+    if (!enabled) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    added.add(new AddedUrl(now, url));
+    // keep what a running rebuild, or one starting now, will replay
+    long keepSince = Math.min(now, rebuildStartedAt) - REPLAY_WINDOW_MS;
+    AddedUrl oldest;
+    while ((oldest = added.peek()) != null && oldest.addedAt < keepSince) {
+      added.poll();
+    }
+    // read in the opposite order that rebuild sets them, so the URL can't
+    // miss both the filter being replaced and the one replacing it
+    BloomFilter next = building;
+    BloomFilter current = filter;
+    if (current != null) {
+      current.put(url);
+    }
+    if (next != null) {
+      next.put(url);
+    }
+  }
+
+  /**
+   * Rebuild the filter from the snapshot and redirect tables.
+   */
+  @ManagedOperation(description = "Rebuild the filter now")
+  public synchronized void rebuild() throws IOException {
+    long start = System.currentTimeMillis();
+    BloomFilter next = new BloomFilter(Math.max(expectedUrls,
+        2 * lastUrlCount), falsePositiveRate);
+    rebuildStartedAt = start;
+    building = next;
+    RandomAccessDataset<WebPageSnapshotModel> webPageSnapshotModels =
+        Datasets.load(webPageSnapshotUri, WebPageSnapshotModel.class);
+    RandomAccessDataset<WebPageRedirectModel> webPageRedirectModels =
+        Datasets.load(webPageRedirectUri, WebPageRedirectModel.class);
+    HConnection connection = HConnectionManager.createConnection(
+        UserDatasetCache.hbaseConfiguration(DefaultConfiguration.get(),
+            webPageSnapshotUri));
+    try {
+      long count = addUrls(connection,
+          UserDatasetCache.tableName(webPageSnapshotUri),
+          SnapshotRowKeys.forDescriptor(webPageSnapshotModels.getDescriptor()),
+          next);
+      count += addUrls(connection,
+          UserDatasetCache.tableName(webPageRedirectUri),
+          SnapshotRowKeys.forDescriptor(webPageRedirectModels.getDescriptor()),
+          next);
+      // URLs added after this are put in next directly, since it's building
+      for (Iterator<AddedUrl> urls = added.iterator(); urls.hasNext();) {
+        AddedUrl url = urls.next();
+        if (url.addedAt >= start - REPLAY_WINDOW_MS) {
+          next.put(url.url);
+        }
+      }
+      filter = next;
+      lastUrlCount = count;
+    } finally {
+      building = null;
+      rebuildStartedAt = Long.MAX_VALUE;
+      connection.close();
+    }
+    lastRebuildMs = System.currentTimeMillis() - start;
+    rebuildCount.incrementAndGet();
+    LOG.info("Rebuilt the snapshot URL filter with {} URLs in {} ms",
+        lastUrlCount, lastRebuildMs);
+  }
+
+  /**
+   * Add the URL of every row of a table to a filter. Snapshot rows of the same
+   * URL are adjacent, so each URL is only added once.
+   *
+   * @return The number of distinct URLs
+   */
+  private static long addUrls(HConnection connection, String tableName,
+      SnapshotRowKeys rowKeys, BloomFilter filter) throws IOException {
+    Scan scan = new Scan();
+    scan.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ALL,
+        new FirstKeyOnlyFilter(), new KeyOnlyFilter()));
+    scan.setCaching(SCAN_CACHING);
+    scan.setCacheBlocks(false);
+    HTableInterface table = connection.getTable(tableName);
+    try {
+      ResultScanner scanner = table.getScanner(scan);
+      try {
+        long count = 0;
+        String previous = null;
+        for (Result result : scanner) {
+          String url = rowKeys.url(result.getRow());
+          if (!url.equals(previous)) {
+            filter.put(url);
+            previous = url;
+            count++;
+          }
+        }
+        return count;
+      } finally {
+        scanner.close();
+      }
+    } finally {
+      table.close();
+    }
+  }
+
+  /**
+   * An URL added to the filter, and when.
+   */
+  private static class AddedUrl {
+
+    private final long addedAt;
+    private final String url;
+
+    private AddedUrl(long addedAt, String url) {
+      this.addedAt = addedAt;
+      this.url = url;
+    }
+  }
+
+  @ManagedAttribute(description = "Whether lookups are filtered")
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @ManagedAttribute(description = "Whether the filter has been built")
+  public boolean isReady() {
+    return filter != null;
+  }
+
+  @ManagedAttribute(description = "Size of the filter in bytes")
+  public long getMemoryBytes() {
+    BloomFilter current = filter;
+    return current != null ? current.getMemoryBytes() : 0;
+  }
+
+  @ManagedAttribute(description = "Current false positive rate of the filter")
+  public double getFalsePositiveRate() {
+    BloomFilter current = filter;
+    return current != null ? current.getFalsePositiveRate() : 1.0;
+  }
+
+  @ManagedAttribute(description = "Approximate number of URLs in the filter")
+  public long getApproximateUrlCount() {
+    BloomFilter current = filter;
+    return current != null ? current.getApproximateCount() : 0;
+  }
+
+  @ManagedAttribute(description = "Number of URLs found by the last rebuild")
+  public long getLastUrlCount() {
+    return lastUrlCount;
+  }
+
+  @ManagedAttribute(description = "Duration of the last rebuild in ms")
+  public long getLastRebuildMs() {
+    return lastRebuildMs;
+  }
+
+  @ManagedAttribute(description = "Number of rebuilds")
+  public long getRebuildCount() {
+    return rebuildCount.get();
+  }
+
+  @ManagedAttribute(description = "Number of URLs checked")
+  public long getCheckCount() {
+    return checkCount.get();
+  }
+
+  @ManagedAttribute(description = "Number of URLs answered without HBase")
+  public long getMissCount() {
+    return missCount.get();
+  }
+}
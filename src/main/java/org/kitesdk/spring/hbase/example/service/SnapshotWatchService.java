@@ -0,0 +1,253 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.kitesdk.data.DatasetReader;
+import org.kitesdk.data.Datasets;
+import org.kitesdk.data.Key;
+import org.kitesdk.data.RandomAccessDataset;
+import org.kitesdk.spring.hbase.example.model.WatchedUrlModel;
+import org.kitesdk.spring.hbase.example.model.frontend.WatchedUrl;
+import org.kitesdk.spring.hbase.example.model.frontend.WebPageSnapshotMeta;
+import org.kitesdk.spring.hbase.example.service.WatchSchedule.Watch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Component;
+
+/**
+ * Service for URLs that users watch, which are snapshotted on a schedule.
+ *
+ * The watches are stored in the WatchedUrlModel dataset, which is read and
+ * written as the application principal since it holds every user's watches.
+ * The snapshots themselves are taken as the user that watches the URL, like
+ * any other snapshot.
+ *
+ * A single scheduler thread loads the watches into the WatchSchedule on
+ * startup, then takes each watch as it comes due and hands it to the snapshot
+ * watch executor. After the snapshot, the watch's interval is adapted to
+ * whether the content changed, and it's written back and rescheduled.
+ */
+@Component
+public class SnapshotWatchService {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(SnapshotWatchService.class);
+
+  /**
+   * How long to wait before trying to load the watches again when the
+   * dataset can't be read.
+   */
+  private static final long LOAD_RETRY_MS = 60000;
+
+  /**
+   * How long to put off a due watch when the executor's queue is full.
+   */
+  private static final long REJECTED_RETRY_MS = 30000;
+
+  @Autowired
+  private WebPageSnapshotService webPageSnapshotService;
+
+  @Autowired
+  private WatchSchedule watchSchedule;
+
+  @Autowired
+  private AsyncTaskExecutor snapshotWatchExecutor;
+
+  @Autowired
+  @Qualifier("watchedUrlUri")
+  private String watchedUrlUri;
+
+  private RandomAccessDataset<WatchedUrlModel> watchedUrlModels = null;
+
+  /**
+   * Held while a watch is removed and its row deleted, and while a snapshot
+   * checks that its watch wasn't removed and writes the watch's row back, so
+   * a deleted row is never written back.
+   */
+  private final Object storeLock = new Object();
+
+  private Thread scheduler;
+
+  @PostConstruct
+  public void start() {
+    scheduler = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          load();
+          while (true) {
+            snapshot(watchSchedule.take());
+          }
+        } catch (InterruptedException ex) {
+          LOG.debug("Snapshot watch scheduler stopped");
+        }
+      }
+    }, "snapshot-watch-scheduler");
+    scheduler.setDaemon(true);
+    scheduler.start();
+  }
+
+  @PreDestroy
+  public void stop() {
+    scheduler.interrupt();
+  }
+
+  /**
+   * Start taking recurring snapshots of an URL. The first snapshot is taken
+   * right away. Watching an URL that is already watched starts it over with
+   * the initial interval.
+   *
+   * @param url The URL to watch
+   * @param isPublic Whether the snapshots are public
+   * @param user The user watching the URL
+   * @return The WatchedUrl
+   */
+  public WatchedUrl watch(String url, boolean isPublic, String user) {
+    int intervalSeconds = watchSchedule.getInitialIntervalSeconds();
+    long now = System.currentTimeMillis();
+    watchedUrlModels().put(WatchedUrlModel.newBuilder().setUser(user)
+        .setUrl(url).setIsPublic(isPublic).setIntervalSeconds(intervalSeconds)
+        .setNextSnapshotAt(now).setLastDigest("").build());
+    Watch watch = watchSchedule.add(user, url, isPublic, intervalSeconds, now,
+        "");
+    return new WatchedUrl(url, isPublic, watch.intervalSeconds, now);
+  }
+
+  /**
+   * Stop taking recurring snapshots of an URL. Snapshots that were already
+   * taken are kept.
+   *
+   * @param url The URL to stop watching
+   * @param user The user watching the URL
+   * @return true if the user was watching the URL
+   */
+  public boolean unwatch(String url, String user) {
+    synchronized (storeLock) {
+      boolean removed = watchSchedule.remove(user, url);
+      watchedUrlModels().delete(key(user, url));
+      return removed;
+    }
+  }
+
+  /**
+   * Load every watch into the schedule, retrying until the dataset can be
+   * read.
+   */
+  private void load() throws InterruptedException {
+    while (true) {
+      DatasetReader<WatchedUrlModel> reader = null;
+      try {
+        reader = watchedUrlModels().newReader();
+        int count = 0;
+        while (reader.hasNext()) {
+          WatchedUrlModel model = reader.next();
+          watchSchedule.restore(model.getUser(), model.getUrl(),
+              model.getIsPublic(), model.getIntervalSeconds(),
+              model.getNextSnapshotAt(), model.getLastDigest());
+          count++;
+        }
+        LOG.info("Loaded {} watched URLs", count);
+        return;
+      } catch (RuntimeException ex) {
+        LOG.warn("Unable to load watched URLs, retrying in "
+            + LOAD_RETRY_MS + " ms", ex);
+      } finally {
+        if (reader != null) {
+          reader.close();
+        }
+      }
+      Thread.sleep(LOAD_RETRY_MS);
+    }
+  }
+
+  /**
+   * Take the snapshot of a due watch on the executor, then write the watch
+   * back and reschedule it.
+   */
+  private void snapshot(final Watch watch) {
+    try {
+      snapshotWatchExecutor.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          String digest = null;
+          try {
+            WebPageSnapshotMeta meta = webPageSnapshotService.takeSnapshot(
+                watch.url,
+                WebPageSnapshotService.contentKey(watch.isPublic, watch.user),
+                watch.user);
+            digest = meta.getContentDigest();
+            watchSchedule.recordSnapshot(watch, digest);
+          } catch (Exception ex) {
+            LOG.info("Scheduled snapshot of " + watch.url + " for "
+                + watch.user + " failed", ex);
+            watchSchedule.recordFailure();
+          }
+          long nextSnapshotAt = System.currentTimeMillis()
+              + watch.intervalSeconds * 1000L;
+          if (digest != null) {
+            synchronized (storeLock) {
+              if (!watch.isCancelled()) {
+                store(watch, nextSnapshotAt, digest);
+              }
+            }
+          }
+          watchSchedule.reschedule(watch, nextSnapshotAt);
+        }
+      });
+    } catch (TaskRejectedException ex) {
+      watchSchedule.reschedule(watch,
+          System.currentTimeMillis() + REJECTED_RETRY_MS);
+    }
+  }
+
+  private void store(Watch watch, long nextSnapshotAt, String digest) {
+    try {
+      watchedUrlModels().put(WatchedUrlModel.newBuilder()
+          .setUser(watch.user).setUrl(watch.url)
+          .setIsPublic(watch.isPublic)
+          .setIntervalSeconds(watch.intervalSeconds)
+          .setNextSnapshotAt(nextSnapshotAt).setLastDigest(digest)
+          .build());
+    } catch (RuntimeException ex) {
+      LOG.warn("Unable to store the schedule of " + watch.url
+          + " for " + watch.user, ex);
+    }
+  }
+
+  private Key key(String user, String url) {
+    return new Key.Builder(watchedUrlModels()).add("user", user)
+        .add("url", url).build();
+  }
+
+  /**
+   * The watch dataset is loaded when it's first used, so a missing dataset
+   * doesn't stop the app from starting.
+   */
+  private synchronized RandomAccessDataset<WatchedUrlModel> watchedUrlModels() {
+    if (watchedUrlModels == null) {
+      watchedUrlModels = Datasets.load(watchedUrlUri, WatchedUrlModel.class);
+    }
+    return watchedUrlModels;
+  }
+}
@@ -0,0 +1,514 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HConnectionManager;
+import org.kitesdk.data.DatasetException;
+import org.kitesdk.data.Datasets;
+import org.kitesdk.data.RandomAccessDataset;
+import org.kitesdk.data.spi.DefaultConfiguration;
+import org.kitesdk.spring.hbase.example.model.WebPageContentModel;
+import org.kitesdk.spring.hbase.example.model.WebPageRedirectModel;
+import org.kitesdk.spring.hbase.example.model.WebPageSnapshotModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * A bounded cache of the per-user RandomAccessDataset handles.
+ *
+ * Each user gets their own HBase client instance (hbase.client.instance.id) so
+ * that HBase sees the proxy user's credentials. Lookups for users that are
+ * already loaded never block, and loading one user's datasets never blocks
+ * lookups for other users. Entries are evicted when the cache is full or when
+ * a user has been idle for too long.
+ *
+ * A user's datasets are reference counted: the cache holds one reference,
+ * and each thread that acquires the user's datasets holds another until it
+ * releases them. The user's HBase connections are only closed once the
+ * datasets have been evicted and the last thread using them has released
+ * them, so eviction never closes a connection out from under a request.
+ */
+@ManagedResource(objectName = "kite.spring.hbase.example:name=UserDatasetCache",
+    description = "Per-user dataset cache")
+public class UserDatasetCache {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(UserDatasetCache.class);
+
+  private static final String HBASE_URI_PREFIX = "dataset:hbase:";
+
+  private final String webPageSnapshotUri;
+  private final String webPageRedirectUri;
+  private final String webPageContentUri;
+  private final String webPageSnapshotTableName;
+  private final String webPageContentTableName;
+  private final SnapshotMetrics snapshotMetrics;
+
+  private final LoadingCache<String, UserDatasets> cache;
+
+  /**
+   * Kite loads datasets with the global DefaultConfiguration, so loads have to
+   * take turns swapping in the per-user configuration. Cache hits never take
+   * this lock.
+   */
+  private final Object loadLock = new Object();
+
+  /**
+   * The datasets the current thread has acquired, by user.
+   */
+  private final ThreadLocal<Map<String, Acquired>> acquired =
+      new ThreadLocal<Map<String, Acquired>>() {
+
+        @Override
+        protected Map<String, Acquired> initialValue() {
+          return new HashMap<String, Acquired>();
+        }
+      };
+
+  private final AtomicLong requestCount = new AtomicLong();
+  private final AtomicLong loadCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /**
+   * @param webPageSnapshotUri The URI of the WebPageSnapshotModel dataset
+   * @param webPageRedirectUri The URI of the WebPageRedirectModel dataset
+   * @param webPageContentUri The URI of the WebPageContentModel dataset
+   * @param maximumUsers The maximum number of users to keep datasets open for
+   * @param idleMinutes The number of minutes a user's datasets can go unused
+   * before they are closed
+   * @param snapshotMetrics The metrics the users' table reads are recorded in
+   */
+  public UserDatasetCache(String webPageSnapshotUri, String webPageRedirectUri,
+      String webPageContentUri, long maximumUsers, long idleMinutes,
+      SnapshotMetrics snapshotMetrics) {
+    this.webPageSnapshotUri = webPageSnapshotUri;
+    this.webPageRedirectUri = webPageRedirectUri;
+    this.webPageContentUri = webPageContentUri;
+    this.webPageSnapshotTableName = tableName(webPageSnapshotUri);
+    this.webPageContentTableName = tableName(webPageContentUri);
+    this.snapshotMetrics = snapshotMetrics;
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(maximumUsers)
+        .expireAfterAccess(idleMinutes, TimeUnit.MINUTES)
+        .removalListener(new RemovalListener<String, UserDatasets>() {
+
+          @Override
+          public void onRemoval(
+              RemovalNotification<String, UserDatasets> notification) {
+            if (notification.wasEvicted()) {
+              evictionCount.incrementAndGet();
+            }
+            // drop the cache's reference
+            release(notification.getKey(), notification.getValue());
+          }
+        })
+        .build(new CacheLoader<String, UserDatasets>() {
+
+          @Override
+          public UserDatasets load(String user) throws IOException {
+            loadCount.incrementAndGet();
+            return loadDatasets(user);
+          }
+        });
+  }
+
+  /**
+   * Get the WebPageSnapshotModel dataset for a user, loading it if needed.
+   *
+   * @param user The user to get the dataset for
+   * @return The dataset
+   */
+  public RandomAccessDataset<WebPageSnapshotModel> webPageSnapshotModels(
+      String user) {
+    return datasets(user).webPageSnapshotModels;
+  }
+
+  /**
+   * Get the WebPageRedirectModel dataset for a user, loading it if needed.
+   *
+   * @param user The user to get the dataset for
+   * @return The dataset
+   */
+  public RandomAccessDataset<WebPageRedirectModel> webPageRedirectModels(
+      String user) {
+    return datasets(user).webPageRedirectModels;
+  }
+
+  /**
+   * Get the WebPageContentModel dataset for a user, loading it if needed.
+   *
+   * @param user The user to get the dataset for
+   * @return The dataset
+   */
+  public RandomAccessDataset<WebPageContentModel> webPageContentModels(
+      String user) {
+    return datasets(user).webPageContentModels;
+  }
+
+  /**
+   * Get the projected reader for the WebPageSnapshotModel table for a user,
+   * loading it if needed.
+   *
+   * @param user The user to get the table for
+   * @return The table
+   */
+  WebPageSnapshotTable webPageSnapshotTable(String user) {
+    return datasets(user).webPageSnapshotTable;
+  }
+
+  /**
+   * Get the projected reader for the WebPageContentModel table for a user,
+   * loading it if needed.
+   *
+   * @param user The user to get the table for
+   * @return The table
+   */
+  WebPageContentTable webPageContentTable(String user) {
+    return datasets(user).webPageContentTable;
+  }
+
+  /**
+   * Hold a user's datasets open on the current thread, loading them if
+   * needed, until they are released. Until then, every dataset and table
+   * this cache returns for the user on this thread is from the same
+   * datasets, even if they are evicted meanwhile. Acquires can be nested,
+   * and each must be matched by a release.
+   *
+   * @param user The user to acquire the datasets of
+   */
+  public void acquire(String user) {
+    Map<String, Acquired> held = acquired.get();
+    Acquired current = held.get(user);
+    if (current != null) {
+      current.depth++;
+      return;
+    }
+    UserDatasets datasets = get(user);
+    // the datasets can only fail to be retained if they were evicted and
+    // released since the lookup, in which case the next lookup reloads them
+    while (!datasets.retain()) {
+      datasets = get(user);
+    }
+    held.put(user, new Acquired(datasets));
+  }
+
+  /**
+   * Release a user's datasets acquired on the current thread. They are
+   * closed if they have been evicted and no other thread holds them.
+   *
+   * @param user The user to release the datasets of
+   */
+  public void release(String user) {
+    Map<String, Acquired> held = acquired.get();
+    Acquired current = held.get(user);
+    if (current == null) {
+      throw new IllegalStateException(
+          "Datasets for user " + user + " are not acquired");
+    }
+    if (--current.depth == 0) {
+      held.remove(user);
+      release(user, current.datasets);
+    }
+  }
+
+  /**
+   * Close the datasets of every cached user.
+   */
+  public void close() {
+    cache.invalidateAll();
+    cache.cleanUp();
+  }
+
+  @ManagedAttribute(description = "Number of users with open datasets")
+  public long getSize() {
+    return cache.size();
+  }
+
+  @ManagedAttribute(description = "Number of lookups served from the cache")
+  public long getHitCount() {
+    return requestCount.get() - loadCount.get();
+  }
+
+  @ManagedAttribute(description = "Number of lookups that loaded datasets")
+  public long getMissCount() {
+    return loadCount.get();
+  }
+
+  @ManagedAttribute(description = "Number of users evicted for size or idleness")
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /**
+   * The datasets the current thread acquired for a user, or the cached
+   * datasets if it hasn't acquired any.
+   */
+  private UserDatasets datasets(String user) {
+    Acquired current = acquired.get().get(user);
+    return current != null ? current.datasets : get(user);
+  }
+
+  private UserDatasets get(String user) {
+    requestCount.incrementAndGet();
+    // includes waiting on the load lock and loading the user's datasets
+    long start = System.nanoTime();
+    try {
+      UserDatasets datasets = cache.getUnchecked(user);
+      snapshotMetrics.record(SnapshotMetrics.Stage.DATASETS, start);
+      return datasets;
+    } catch (UncheckedExecutionException ex) {
+      // surface the DatasetException (or other runtime exception) Kite threw
+      if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ex.getCause();
+      }
+      throw new DatasetException("Unable to load datasets for user " + user,
+          ex.getCause());
+    }
+  }
+
+  private UserDatasets loadDatasets(String user) throws IOException {
+    synchronized (loadLock) {
+      Configuration previous = DefaultConfiguration.get();
+      Configuration conf = new Configuration(previous);
+      conf.set("hbase.client.instance.id", user);
+      DefaultConfiguration.set(conf);
+      HConnection connection = null;
+      List<HConnection> kiteConnections = new ArrayList<HConnection>();
+      boolean loaded = false;
+      try {
+        connection = HConnectionManager.createConnection(
+            hbaseConfiguration(conf, webPageSnapshotUri));
+        RandomAccessDataset<WebPageSnapshotModel> webPageSnapshotModels =
+            Datasets.load(webPageSnapshotUri, WebPageSnapshotModel.class);
+        RandomAccessDataset<WebPageRedirectModel> webPageRedirectModels =
+            Datasets.load(webPageRedirectUri, WebPageRedirectModel.class);
+        RandomAccessDataset<WebPageContentModel> webPageContentModels =
+            Datasets.load(webPageContentUri, WebPageContentModel.class);
+        kiteConnections = kiteConnections(conf);
+        // read the table the way Kite writes it, salted or not
+        SnapshotRowKeys rowKeys = SnapshotRowKeys.forDescriptor(
+            webPageSnapshotModels.getDescriptor());
+        UserDatasets datasets = new UserDatasets(connection, kiteConnections,
+            webPageSnapshotModels, webPageRedirectModels, webPageContentModels,
+            new WebPageSnapshotTable(connection, webPageSnapshotTableName,
+                rowKeys, snapshotMetrics),
+            new WebPageContentTable(connection, webPageContentTableName,
+                snapshotMetrics));
+        loaded = true;
+        return datasets;
+      } finally {
+        DefaultConfiguration.set(previous);
+        if (!loaded) {
+          close(user, connection, kiteConnections);
+        }
+      }
+    }
+  }
+
+  /**
+   * Look up the shared HBase connections Kite loaded the user's datasets
+   * with. Kite gets them from HConnectionManager with the configuration it
+   * builds from the global configuration and the dataset URI, and the
+   * connections are keyed by that configuration and the current user, so
+   * this has to run on the loading thread, as the proxy user.
+   */
+  private List<HConnection> kiteConnections(Configuration conf)
+      throws IOException {
+    List<HConnection> connections = new ArrayList<HConnection>();
+    for (String uri : new String[] {
+        webPageSnapshotUri, webPageRedirectUri, webPageContentUri }) {
+      HConnection connection = HConnectionManager.getConnection(
+          hbaseConfiguration(conf, uri));
+      // the datasets normally share a single connection
+      if (!containsInstance(connections, connection)) {
+        connections.add(connection);
+      }
+    }
+    return connections;
+  }
+
+  private static boolean containsInstance(List<HConnection> connections,
+      HConnection connection) {
+    for (HConnection existing : connections) {
+      if (existing == connection) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Drop a reference to a user's datasets, and close them if it was the
+   * last one.
+   */
+  private void release(String user, UserDatasets datasets) {
+    if (datasets == null || !datasets.release()) {
+      return;
+    }
+    LOG.debug("Closing datasets for user {}", user);
+    close(user, datasets.connection, datasets.kiteConnections);
+  }
+
+  /**
+   * Close a user's own connection and the shared connections Kite used.
+   * The HTables Kite pools keep references to the shared connections, so
+   * they are closed outright rather than just decrementing their reference
+   * counts. They are deleted by instance, so this can run on any thread as
+   * any user.
+   */
+  @SuppressWarnings("deprecation")
+  private static void close(String user, HConnection connection,
+      List<HConnection> kiteConnections) {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (IOException ex) {
+        LOG.warn("Error closing HBase connection for user " + user, ex);
+      }
+    }
+    for (HConnection kiteConnection : kiteConnections) {
+      try {
+        HConnectionManager.deleteStaleConnection(kiteConnection);
+      } catch (Exception ex) {
+        LOG.warn("Error closing HBase connection for user " + user, ex);
+      }
+    }
+  }
+
+  /**
+   * Build an HBase configuration that points at the ZooKeeper quorum in a
+   * dataset URI like dataset:hbase:host1,host2:port/table.Entity
+   */
+  static Configuration hbaseConfiguration(Configuration conf,
+      String datasetUri) {
+    Configuration hbaseConf = HBaseConfiguration.create(conf);
+    String zk = datasetUri.substring(HBASE_URI_PREFIX.length(),
+        datasetUri.lastIndexOf('/'));
+    int portSeparator = zk.lastIndexOf(':');
+    if (portSeparator >= 0) {
+      hbaseConf.set("hbase.zookeeper.property.clientPort",
+          zk.substring(portSeparator + 1));
+      zk = zk.substring(0, portSeparator);
+    }
+    hbaseConf.set("hbase.zookeeper.quorum", zk.replaceAll(":[0-9]+", ""));
+    return hbaseConf;
+  }
+
+  /**
+   * Get the HBase table name out of a dataset URI like
+   * dataset:hbase:zk:port/table.Entity
+   */
+  static String tableName(String datasetUri) {
+    String name = datasetUri.substring(datasetUri.lastIndexOf('/') + 1);
+    int entitySeparator = name.indexOf('.');
+    return entitySeparator < 0 ? name : name.substring(0, entitySeparator);
+  }
+
+  /**
+   * The datasets loaded for a single user, the shared HBase connections Kite
+   * loaded them with, and the user's own HBase connection for projected
+   * reads.
+   */
+  private static class UserDatasets {
+
+    // the cache's reference, until the datasets are evicted
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private final HConnection connection;
+    private final List<HConnection> kiteConnections;
+    private final RandomAccessDataset<WebPageSnapshotModel> webPageSnapshotModels;
+    private final RandomAccessDataset<WebPageRedirectModel> webPageRedirectModels;
+    private final RandomAccessDataset<WebPageContentModel> webPageContentModels;
+    private final WebPageSnapshotTable webPageSnapshotTable;
+    private final WebPageContentTable webPageContentTable;
+
+    private UserDatasets(HConnection connection,
+        List<HConnection> kiteConnections,
+        RandomAccessDataset<WebPageSnapshotModel> webPageSnapshotModels,
+        RandomAccessDataset<WebPageRedirectModel> webPageRedirectModels,
+        RandomAccessDataset<WebPageContentModel> webPageContentModels,
+        WebPageSnapshotTable webPageSnapshotTable,
+        WebPageContentTable webPageContentTable) {
+      this.connection = connection;
+      this.kiteConnections = kiteConnections;
+      this.webPageSnapshotModels = webPageSnapshotModels;
+      this.webPageRedirectModels = webPageRedirectModels;
+      this.webPageContentModels = webPageContentModels;
+      this.webPageSnapshotTable = webPageSnapshotTable;
+      this.webPageContentTable = webPageContentTable;
+    }
+
+    /**
+     * Add a reference, unless the datasets have already been released by
+     * everything that referenced them.
+     *
+     * @return true if the reference was added
+     */
+    private boolean retain() {
+      while (true) {
+        int count = references.get();
+        if (count == 0) {
+          return false;
+        }
+        if (references.compareAndSet(count, count + 1)) {
+          return true;
+        }
+      }
+    }
+
+    /**
+     * Drop a reference.
+     *
+     * @return true if it was the last reference
+     */
+    private boolean release() {
+      return references.decrementAndGet() == 0;
+    }
+  }
+
+  /**
+   * Datasets acquired by a thread, and how many times the thread acquired
+   * them.
+   */
+  private static class Acquired {
+
+    private final UserDatasets datasets;
+    private int depth = 1;
+
+    private Acquired(UserDatasets datasets) {
+      this.datasets = datasets;
+    }
+  }
+}
@@ -0,0 +1,333 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * The in-memory schedule of watched URLs, ordered by when each is due for its
+ * next snapshot.
+ *
+ * The schedule is a priority queue, so taking the next due watch and adding a
+ * watch are O(log n), and a watch costs a small object plus its URL. The
+ * persistent copy of the schedule is the WatchedUrlModel dataset, which the
+ * SnapshotWatchService loads into the schedule on startup and updates after
+ * every snapshot.
+ *
+ * Each URL's interval adapts to how often its content changes: it's halved
+ * when a snapshot's content differs from the previous snapshot's, and grown by
+ * half when it's the same, within the minimum and maximum intervals.
+ */
+@ManagedResource(objectName = "kite.spring.hbase.example:name=WatchSchedule",
+    description = "Recurring snapshot schedule")
+public class WatchSchedule {
+
+  private final int initialIntervalSeconds;
+  private final int minIntervalSeconds;
+  private final int maxIntervalSeconds;
+
+  private final DelayQueue<Watch> queue = new DelayQueue<Watch>();
+
+  /**
+   * The current watch of each user and URL. Watches that are replaced or
+   * removed are cancelled, and dropped when they come up in the queue.
+   */
+  private final ConcurrentMap<Watch, Watch> watches =
+      new ConcurrentHashMap<Watch, Watch>();
+
+  /**
+   * Shared copies of the user names, so watches don't each hold their own.
+   */
+  private final ConcurrentMap<String, String> users =
+      new ConcurrentHashMap<String, String>();
+
+  private final AtomicLong snapshotCount = new AtomicLong();
+  private final AtomicLong changeCount = new AtomicLong();
+  private final AtomicLong failureCount = new AtomicLong();
+
+  /**
+   * @param initialIntervalSeconds The interval of newly watched URLs
+   * @param minIntervalSeconds The shortest interval an URL can adapt to
+   * @param maxIntervalSeconds The longest interval an URL can adapt to
+   */
+  public WatchSchedule(int initialIntervalSeconds, int minIntervalSeconds,
+      int maxIntervalSeconds) {
+    if (minIntervalSeconds < 1 || maxIntervalSeconds < minIntervalSeconds) {
+      throw new IllegalArgumentException("Invalid watch interval range: "
+          + minIntervalSeconds + " to " + maxIntervalSeconds);
+    }
+    this.minIntervalSeconds = minIntervalSeconds;
+    this.maxIntervalSeconds = maxIntervalSeconds;
+    this.initialIntervalSeconds = clamp(initialIntervalSeconds);
+  }
+
+  /**
+   * Add a watch to the schedule, replacing the user's existing watch of the
+   * URL.
+   *
+   * @param user The user that watches the URL
+   * @param url The URL
+   * @param isPublic Whether the snapshots are public
+   * @param intervalSeconds The current interval of the URL
+   * @param nextSnapshotAt When the next snapshot is due
+   * @param lastDigest The content digest of the last snapshot, or an empty
+   * string
+   * @return The new Watch
+   */
+  Watch add(String user, String url, boolean isPublic, int intervalSeconds,
+      long nextSnapshotAt, String lastDigest) {
+    Watch watch = newWatch(user, url, isPublic, intervalSeconds,
+        nextSnapshotAt, lastDigest);
+    Watch replaced = watches.put(watch, watch);
+    if (replaced != null) {
+      replaced.cancelled = true;
+    }
+    queue.add(watch);
+    return watch;
+  }
+
+  /**
+   * Add a watch that was loaded from the dataset to the schedule, unless the
+   * user watched the URL again while the schedule was loading.
+   *
+   * @param user The user that watches the URL
+   * @param url The URL
+   * @param isPublic Whether the snapshots are public
+   * @param intervalSeconds The current interval of the URL
+   * @param nextSnapshotAt When the next snapshot is due
+   * @param lastDigest The content digest of the last snapshot, or an empty
+   * string
+   */
+  void restore(String user, String url, boolean isPublic, int intervalSeconds,
+      long nextSnapshotAt, String lastDigest) {
+    Watch watch = newWatch(user, url, isPublic, intervalSeconds,
+        nextSnapshotAt, lastDigest);
+    if (watches.putIfAbsent(watch, watch) == null) {
+      queue.add(watch);
+    }
+  }
+
+  private Watch newWatch(String user, String url, boolean isPublic,
+      int intervalSeconds, long nextSnapshotAt, String lastDigest) {
+    String sharedUser = users.putIfAbsent(user, user);
+    Watch watch = new Watch(sharedUser != null ? sharedUser : user, url);
+    watch.isPublic = isPublic;
+    watch.intervalSeconds = clamp(intervalSeconds);
+    watch.nextSnapshotAt = nextSnapshotAt;
+    watch.digestHash = digestHash(lastDigest);
+    return watch;
+  }
+
+  /**
+   * Remove a user's watch of an URL.
+   *
+   * @param user The user that watches the URL
+   * @param url The URL
+   * @return true if the URL was watched
+   */
+  boolean remove(String user, String url) {
+    Watch removed = watches.remove(new Watch(user, url));
+    if (removed == null) {
+      return false;
+    }
+    removed.cancelled = true;
+    return true;
+  }
+
+  /**
+   * Wait for the next watch that's due.
+   *
+   * @return The Watch, which is out of the schedule until it's rescheduled
+   * @throws InterruptedException if interrupted while waiting
+   */
+  Watch take() throws InterruptedException {
+    while (true) {
+      Watch watch = queue.take();
+      if (!watch.cancelled) {
+        return watch;
+      }
+    }
+  }
+
+  /**
+   * Put a watch that was taken back in the schedule, unless it was removed
+   * while its snapshot was being taken.
+   *
+   * @param watch The Watch
+   * @param nextSnapshotAt When its next snapshot is due
+   */
+  void reschedule(Watch watch, long nextSnapshotAt) {
+    watch.nextSnapshotAt = nextSnapshotAt;
+    if (!watch.cancelled) {
+      queue.add(watch);
+    }
+  }
+
+  /**
+   * Record a snapshot of a watched URL, and adapt its interval to whether
+   * the content changed.
+   *
+   * @param watch The Watch
+   * @param digest The content digest of the snapshot
+   * @return true if the content changed since the last snapshot
+   */
+  boolean recordSnapshot(Watch watch, String digest) {
+    snapshotCount.incrementAndGet();
+    int hash = digestHash(digest);
+    if (watch.digestHash == 0 || hash == 0) {
+      // nothing to compare with, so keep the interval
+      watch.digestHash = hash;
+      return false;
+    }
+    boolean changed = hash != watch.digestHash;
+    watch.digestHash = hash;
+    if (changed) {
+      changeCount.incrementAndGet();
+      watch.intervalSeconds = clamp(watch.intervalSeconds / 2);
+    } else {
+      watch.intervalSeconds = clamp(
+          (int) Math.min(Integer.MAX_VALUE, watch.intervalSeconds * 3L / 2));
+    }
+    return changed;
+  }
+
+  void recordFailure() {
+    failureCount.incrementAndGet();
+  }
+
+  int getInitialIntervalSeconds() {
+    return initialIntervalSeconds;
+  }
+
+  private int clamp(int intervalSeconds) {
+    return Math.max(minIntervalSeconds,
+        Math.min(maxIntervalSeconds, intervalSeconds));
+  }
+
+  private static int digestHash(String digest) {
+    if (digest == null || digest.isEmpty()) {
+      return 0;
+    }
+    // 0 means no digest, so move a hash of 0 out of the way
+    int hash = digest.hashCode();
+    return hash != 0 ? hash : 1;
+  }
+
+  @ManagedAttribute(description = "Number of watched URLs")
+  public int getSize() {
+    return watches.size();
+  }
+
+  @ManagedAttribute(description = "Number of watches in the queue")
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  @ManagedAttribute(description = "Shortest interval in seconds")
+  public int getMinIntervalSeconds() {
+    return minIntervalSeconds;
+  }
+
+  @ManagedAttribute(description = "Longest interval in seconds")
+  public int getMaxIntervalSeconds() {
+    return maxIntervalSeconds;
+  }
+
+  @ManagedAttribute(description = "Number of scheduled snapshots taken")
+  public long getSnapshotCount() {
+    return snapshotCount.get();
+  }
+
+  @ManagedAttribute(description = "Number of scheduled snapshots that changed")
+  public long getChangeCount() {
+    return changeCount.get();
+  }
+
+  @ManagedAttribute(description = "Number of scheduled snapshots that failed")
+  public long getFailureCount() {
+    return failureCount.get();
+  }
+
+  /**
+   * A user's watch of an URL. Watches are equal when their user and URL are.
+   *
+   * A watch is only modified by the thread that took it from the schedule,
+   * until it's rescheduled.
+   */
+  static final class Watch implements Delayed {
+
+    final String user;
+    final String url;
+    boolean isPublic;
+    int intervalSeconds;
+    long nextSnapshotAt;
+
+    /**
+     * The hash of the last content digest, or 0 if there's no snapshot yet.
+     * Keeping the hash rather than the digest keeps watches small, and a
+     * collision only makes a change look like an unchanged snapshot.
+     */
+    private int digestHash;
+
+    private volatile boolean cancelled = false;
+
+    private Watch(String user, String url) {
+      this.user = user;
+      this.url = url;
+    }
+
+    /**
+     * @return true if the watch was removed or replaced
+     */
+    boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(nextSnapshotAt - System.currentTimeMillis(),
+          TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      long otherAt = ((Watch) other).nextSnapshotAt;
+      return nextSnapshotAt < otherAt ? -1
+          : (nextSnapshotAt == otherAt ? 0 : 1);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Watch)) {
+        return false;
+      }
+      Watch other = (Watch) obj;
+      return user.equals(other.user) && url.equals(other.url);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * user.hashCode() + url.hashCode();
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.io.IOException;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.kitesdk.spring.hbase.example.model.WebPageContentModel;
+import org.kitesdk.spring.hbase.example.service.AvroColumnMapping.Column;
+import org.kitesdk.spring.hbase.example.service.SnapshotMetrics.Stage;
+
+/**
+ * Projected reads of the content-addressed WebPageContentModel table through
+ * the HBase client.
+ *
+ * A content row holds one cell per content key that stored a page with the
+ * row's digest, so reads only fetch the cell for the reader's content key.
+ * That keeps the per-qualifier grants on the content family in effect, the
+ * same as in the WebPageSnapshotModel table. Contents that are stored on
+ * HDFS have a pointer cell in the blob family instead, under the same
+ * qualifier.
+ */
+class WebPageContentTable {
+
+  private static final AvroColumnMapping MAPPING =
+      new AvroColumnMapping(WebPageContentModel.SCHEMA$);
+
+  private static final Column CONTENT_CODEC_COLUMN =
+      MAPPING.column("contentCodec");
+  private static final Column CONTENT_COLUMN = MAPPING.column("content");
+  private static final Column BLOBS_COLUMN = MAPPING.column("blobs");
+
+  private static final int DIGEST_FIELD =
+      WebPageContentModel.SCHEMA$.getField("digest").pos();
+
+  private final HConnection connection;
+  private final String tableName;
+  private final SnapshotMetrics metrics;
+
+  WebPageContentTable(HConnection connection, String tableName,
+      SnapshotMetrics metrics) {
+    this.connection = connection;
+    this.tableName = tableName;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Get the content stored under a digest for a single content key.
+   *
+   * @param digest The content digest
+   * @param contentKey The content key to read the content of
+   * @return The WebPageContentModel with the codec set, and the content or
+   * blobs map holding the content or its pointer for the content key if it
+   * has been stored, or null if nothing has been stored with this digest.
+   */
+  WebPageContentModel get(String digest, String contentKey)
+      throws IOException {
+    Get get = new Get(SnapshotRowKeys.stringKey(digest));
+    get.addColumn(CONTENT_CODEC_COLUMN.family, CONTENT_CODEC_COLUMN.qualifier);
+    get.addColumn(CONTENT_COLUMN.family, Bytes.toBytes(contentKey));
+    get.addColumn(BLOBS_COLUMN.family, Bytes.toBytes(contentKey));
+    HTableInterface table = connection.getTable(tableName);
+    try {
+      long start = System.nanoTime();
+      Result result = table.get(get);
+      metrics.record(Stage.HBASE_GET, start,
+          WebPageSnapshotTable.valueBytes(result));
+      if (result.isEmpty()) {
+        return null;
+      }
+      WebPageContentModel model = new WebPageContentModel();
+      model.put(DIGEST_FIELD, digest);
+      MAPPING.decode(result, model);
+      return model;
+    } finally {
+      table.close();
+    }
+  }
+}
@@ -15,36 +15,49 @@
  */
 package org.kitesdk.spring.hbase.example.service;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 import java.io.IOException;
-import java.security.PrivilegedAction;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import org.apache.hadoop.conf.Configuration;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import org.apache.hadoop.security.UserGroupInformation;
+import org.jsoup.HttpStatusException;
 
-import org.jsoup.Connection;
-import org.jsoup.Connection.Response;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 import org.kitesdk.data.DatasetReader;
-import org.kitesdk.data.Datasets;
+import org.kitesdk.data.DatasetWriter;
 import org.kitesdk.data.Key;
 import org.kitesdk.data.RandomAccessDataset;
-import org.kitesdk.data.spi.DefaultConfiguration;
+import org.kitesdk.spring.hbase.example.model.ContentCodec;
+import org.kitesdk.spring.hbase.example.model.WebPageContentModel;
 import org.kitesdk.spring.hbase.example.model.WebPageRedirectModel;
 import org.kitesdk.spring.hbase.example.model.WebPageSnapshotModel;
+import org.kitesdk.spring.hbase.example.model.frontend.SnapshotRequest;
+import org.kitesdk.spring.hbase.example.model.frontend.SnapshotResult;
 import org.kitesdk.spring.hbase.example.model.frontend.WebPageSnapshotContent;
 import org.kitesdk.spring.hbase.example.model.frontend.WebPageSnapshotMeta;
+import org.kitesdk.spring.hbase.example.service.SnapshotMetrics.Stage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.convert.ConversionService;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.stereotype.Component;
 
 /**
@@ -57,20 +70,38 @@ public class WebPageSnapshotService {
       LoggerFactory.getLogger(WebPageSnapshotService.class);
 
   @Autowired
-  private String webPageSnapshotUri;
-
-  private final Map<String, RandomAccessDataset<WebPageSnapshotModel>>
-      webPageSnapshotModelMap = Maps.newHashMap();
+  private UserDatasetCache userDatasetCache;
 
   @Autowired
-  private String webPageRedirectUri;
+  private ProxyUserCache proxyUserCache;
 
-  private final Map<String, RandomAccessDataset<WebPageRedirectModel>>
-      webPageRedirectModelMap = Maps.newHashMap();
+  @Autowired
+  private RedirectCache redirectCache;
 
   @Autowired
   private ConversionService conversionService;
 
+  @Autowired
+  private AsyncTaskExecutor snapshotFetchExecutor;
+
+  @Autowired
+  private ContentCodec contentCodec;
+
+  @Autowired
+  private SnapshotDeltas snapshotDeltas;
+
+  @Autowired
+  private PageFetcher pageFetcher;
+
+  @Autowired
+  private SnapshotUrlFilter snapshotUrlFilter;
+
+  @Autowired
+  private ContentBlobStore contentBlobStore;
+
+  @Autowired
+  private SnapshotMetrics snapshotMetrics;
+
   /**
    * Take a snapshot of an URL. This WebPageSnapshot is stored in HBase. Returns
    * the WebPageSnapshotMeta
@@ -79,6 +110,17 @@ public class WebPageSnapshotService {
    * destination. A WebPageRedirectModel is stored in the redirect table so when
    * fetching snapshots, we can follow the proper redirect path.
    *
+   * The content is stored in the content table under its digest, and only if
+   * the same content hasn't already been stored under the content key, so
+   * snapshots of an unchanged page only add a meta row. Contents over the
+   * blob threshold are stored on HDFS, and the content table only holds a
+   * pointer to them.
+   *
+   * If the last snapshot of the page recorded an ETag or Last-Modified
+   * header, the fetch is conditional. When the origin answers 304 Not
+   * Modified, no new snapshot is stored, and the last snapshot's
+   * lastCheckedAt time is updated instead.
+   *
    * @param url The URL to take a snapshot of
    * @param contentKey The key used to store the content
    * @param user The user taking a snapshot
@@ -87,41 +129,158 @@ public class WebPageSnapshotService {
    */
   public WebPageSnapshotMeta takeSnapshot(final String url, final String contentKey,
       final String user) throws IOException {
-    WebPageSnapshotMeta meta = null;
-    UserGroupInformation ugi = UserGroupInformation.createProxyUser(user,
-        UserGroupInformation.getLoginUser());
-    try {
-      meta = ugi.doAs(new PrivilegedExceptionAction<WebPageSnapshotMeta>() {
+    return doAs(user, new PrivilegedExceptionAction<WebPageSnapshotMeta>() {
 
-        @Override
-        public WebPageSnapshotMeta run() throws Exception {
-          WebPageSnapshotModel webPageSnapshotModel = fetchWebPage(url, contentKey);
-          if (!webPageSnapshotModel.getUrl().equals(url)) {
-            // Url is different, so must have redirected. Store the redirect model
-            WebPageRedirectModel redirectModel = WebPageRedirectModel.newBuilder()
-                .setUrl(url).setDestinationUrl(webPageSnapshotModel.getUrl()).build();
-            webPageRedirectModels(user).put(redirectModel);
-          } else {
-            // If redirect exists, remove it since this URL no longer redirects
-            Key key = new Key.Builder(webPageRedirectModels(user)).add("url", url).build();
-            WebPageRedirectModel redirectModel = webPageRedirectModels(user).get(key);
-            if (redirectModel != null) {
-              webPageRedirectModels(user).delete(key);
-            }
+      @Override
+      public WebPageSnapshotMeta run() throws Exception {
+        FetchedPage page = fetchWebPage(url, contentKey,
+            previousSnapshot(url, contentKey, user));
+        WebPageSnapshotModel webPageSnapshotModel = page.model;
+        snapshotUrlFilter.put(url);
+        snapshotUrlFilter.put(webPageSnapshotModel.getUrl());
+        if (!webPageSnapshotModel.getUrl().equals(url)) {
+          // Url is different, so must have redirected. Store the redirect model
+          WebPageRedirectModel redirectModel = WebPageRedirectModel.newBuilder()
+              .setUrl(url).setDestinationUrl(webPageSnapshotModel.getUrl()).build();
+          long start = System.nanoTime();
+          webPageRedirectModels(user).put(redirectModel);
+          snapshotMetrics.record(Stage.HBASE_PUT, start);
+          redirectCache.update(user, url, webPageSnapshotModel.getUrl());
+        } else {
+          removeRedirect(url, user);
+        }
+        if (page.unchanged) {
+          webPageSnapshotTable(user).setLastCheckedAt(
+              webPageSnapshotModel.getUrl(),
+              webPageSnapshotModel.getFetchedAtRevTs(),
+              webPageSnapshotModel.getLastCheckedAt());
+        } else {
+          WebPageContentModel content = newContent(webPageSnapshotModel, user);
+          long start = System.nanoTime();
+          if (content != null) {
+            webPageContentModels(user).put(content);
           }
           webPageSnapshotModels(user).put(webPageSnapshotModel);
-          return conversionService.convert(webPageSnapshotModel,
-              WebPageSnapshotMeta.class);
+          snapshotMetrics.record(Stage.HBASE_PUT, start);
         }
-      });
-    } catch (InterruptedException ex) {
-      Thread.currentThread().interrupt();
-      if (meta == null) {
-        throw new IOException("Interrupted trying to save the snapshot", ex);
+        return convert(webPageSnapshotModel, WebPageSnapshotMeta.class);
+      }
+    });
+  }
+
+  /**
+   * Take snapshots of a batch of URLs.
+   *
+   * The pages are fetched and parsed in parallel on the snapshot fetch
+   * executor, conditionally if possible, like takeSnapshot. The snapshots and
+   * redirects of every page that was fetched are
+   * then written to HBase in batches rather than one put at a time.
+   *
+   * @param requests The URLs to take snapshots of, and their visibility
+   * @param user The user taking the snapshots
+   * @return A result for each request, in the same order, holding either the
+   * WebPageSnapshotMeta or the reason the snapshot failed.
+   * @throws IOException
+   */
+  public List<SnapshotResult> takeSnapshots(final List<SnapshotRequest> requests,
+      final String user) throws IOException {
+    List<Future<FetchedPage>> fetches =
+        new ArrayList<Future<FetchedPage>>(requests.size());
+    // the fetches are part of this request's trace
+    final RequestTrace trace = RequestTrace.current();
+    for (SnapshotRequest request : requests) {
+      final String url = request.getUrl();
+      final String contentKey = contentKey(request.isPublic(), user);
+      try {
+        fetches.add(snapshotFetchExecutor.submit(
+            new Callable<FetchedPage>() {
+
+              @Override
+              public FetchedPage call() throws IOException {
+                RequestTrace previousTrace = RequestTrace.attach(trace);
+                try {
+                  WebPageSnapshotModel previous = doAs(user,
+                      new PrivilegedExceptionAction<WebPageSnapshotModel>() {
+
+                        @Override
+                        public WebPageSnapshotModel run() throws IOException {
+                          return previousSnapshot(url, contentKey, user);
+                        }
+                      });
+                  return fetchWebPage(url, contentKey, previous);
+                } finally {
+                  RequestTrace.attach(previousTrace);
+                }
+              }
+            }));
+      } catch (TaskRejectedException ex) {
+        fetches.add(null);
       }
     }
 
-    return meta;
+    final List<SnapshotResult> results =
+        new ArrayList<SnapshotResult>(requests.size());
+    final List<FetchedPage> fetched =
+        new ArrayList<FetchedPage>(requests.size());
+    for (int i = 0; i < requests.size(); i++) {
+      String url = requests.get(i).getUrl();
+      Future<FetchedPage> fetch = fetches.get(i);
+      if (fetch == null) {
+        results.add(new SnapshotResult(url, null, "Too many pending fetches"));
+        fetched.add(null);
+        continue;
+      }
+      try {
+        fetched.add(fetch.get());
+        results.add(new SnapshotResult(url, null, null));
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted waiting for fetches", ex);
+      } catch (ExecutionException ex) {
+        results.add(new SnapshotResult(url, null,
+            String.valueOf(ex.getCause().getMessage())));
+        fetched.add(null);
+      }
+    }
+
+    doAs(user, new PrivilegedExceptionAction<Void>() {
+
+      @Override
+      public Void run() {
+        try {
+          writeSnapshots(requests, fetched, user);
+          for (int i = 0; i < fetched.size(); i++) {
+            if (fetched.get(i) != null) {
+              results.get(i).setMeta(convert(fetched.get(i).model,
+                  WebPageSnapshotMeta.class));
+            }
+          }
+        } catch (Exception ex) {
+          LOG.warn("Failed to write batch of snapshots", ex);
+          for (int i = 0; i < fetched.size(); i++) {
+            if (fetched.get(i) != null) {
+              results.get(i).setError("Failed to store snapshot: "
+                  + ex.getMessage());
+            }
+          }
+        }
+        return null;
+      }
+    });
+
+    return results;
+  }
+
+  /**
+   * The key that snapshot content is stored under. Public content is stored
+   * under "public", and private content under the user that owns it.
+   *
+   * @param isPublic Whether the content is public
+   * @param user The user taking the snapshot
+   * @return The content key
+   */
+  public static String contentKey(boolean isPublic, String user) {
+    return isPublic ? "public" : user;
   }
 
   /**
@@ -133,12 +292,22 @@ public class WebPageSnapshotService {
    */
   public WebPageSnapshotMeta getWebPageSnapshotMeta(final String url, final String user)
       throws IOException {
-    WebPageSnapshotModel model = getMostRecentWebPageSnapshot(url, user);
-    if (model != null) {
-      return conversionService.convert(model, WebPageSnapshotMeta.class);
-    } else {
+    if (!snapshotUrlFilter.mightContain(url)) {
       return null;
     }
+    return doAs(user, new PrivilegedExceptionAction<WebPageSnapshotMeta>() {
+
+      @Override
+      public WebPageSnapshotMeta run() throws Exception {
+        WebPageSnapshotModel model = webPageSnapshotTable(user)
+            .getMostRecentMeta(normalizeUrl(url, user));
+        if (model != null) {
+          return convert(model, WebPageSnapshotMeta.class);
+        } else {
+          return null;
+        }
+      }
+    });
   }
 
   /**
@@ -153,26 +322,125 @@ public class WebPageSnapshotService {
    */
   public WebPageSnapshotMeta getWebPageSnapshotMeta(final String url,
       final long ts, final String user) throws IOException {
-    WebPageSnapshotModel model = getWebPageSnapshot(url, ts, user);
-    if (model != null) {
-      return conversionService.convert(model, WebPageSnapshotMeta.class);
-    } else {
+    if (!snapshotUrlFilter.mightContain(url)) {
       return null;
     }
+    return doAs(user, new PrivilegedExceptionAction<WebPageSnapshotMeta>() {
+
+      @Override
+      public WebPageSnapshotMeta run() throws Exception {
+        WebPageSnapshotModel model = webPageSnapshotTable(user)
+            .getMeta(normalizeUrl(url, user), Long.MAX_VALUE - ts);
+        if (model != null) {
+          return convert(model, WebPageSnapshotMeta.class);
+        } else {
+          return null;
+        }
+      }
+    });
   }
 
   /**
-   * Get all WebPageSnapshotMeta from an URL that have been snapshotted since
-   * the "since" param.
+   * Check whether an URL has been snapshotted since a point in time, or its
+   * most recent snapshot was found to be unchanged since then. Only the meta
+   * family of the most recent snapshot is read.
+   *
+   * @param url The URL, which may be a redirect
+   * @param since The epoch timestamp
+   * @param user The user checking for the snapshot
+   * @return true if the URL has a snapshot fetched at or after since
+   */
+  public boolean hasSnapshotSince(final String url, final long since,
+      final String user) throws IOException {
+    if (!snapshotUrlFilter.mightContain(url)) {
+      return false;
+    }
+    return doAs(user, new PrivilegedExceptionAction<Boolean>() {
+
+      @Override
+      public Boolean run() throws Exception {
+        WebPageSnapshotModel model = webPageSnapshotTable(user)
+            .getMostRecentMeta(normalizeUrl(url, user));
+        return model != null
+            && Math.max(model.getFetchedAt(), model.getLastCheckedAt()) >= since;
+      }
+    });
+  }
+
+  /**
+   * Check which of a batch of URLs have been snapshotted since a point in
+   * time, like hasSnapshotSince, under a single doAs.
+   *
+   * @param urls The URLs, which may be redirects
+   * @param since The epoch timestamp
+   * @param user The user checking for the snapshots
+   * @return The URLs that have a snapshot fetched at or after since
+   */
+  public Set<String> snapshottedSince(Collection<String> urls,
+      final long since, final String user) throws IOException {
+    final List<String> candidates = new ArrayList<String>(urls.size());
+    for (String url : urls) {
+      if (snapshotUrlFilter.mightContain(url)) {
+        candidates.add(url);
+      }
+    }
+    if (candidates.isEmpty()) {
+      return Collections.emptySet();
+    }
+    return doAs(user, new PrivilegedExceptionAction<Set<String>>() {
+
+      @Override
+      public Set<String> run() throws Exception {
+        Set<String> snapshotted = new HashSet<String>();
+        for (String url : candidates) {
+          WebPageSnapshotModel model = webPageSnapshotTable(user)
+              .getMostRecentMeta(normalizeUrl(url, user));
+          if (model != null && Math.max(model.getFetchedAt(),
+              model.getLastCheckedAt()) >= since) {
+            snapshotted.add(url);
+          }
+        }
+        return snapshotted;
+      }
+    });
+  }
+
+  /**
+   * Stream a page of the WebPageSnapshotMeta from an URL that have been
+   * snapshotted since the "since" param, most recent first. Only the meta
+   * family is read.
    *
    * @param url The URL to get WebPageSnapshotMeta instances from
    * @param since The epoch timestamp
-   * @return The list of WebPageSnapshotMeta instances.
+   * @param cursor The cursor returned with the previous page, or null to start
+   * with the most recent snapshot
+   * @param limit The maximum number of snapshots in the page
+   * @param user The user retrieving the snapshots
+   * @param handler The handler each WebPageSnapshotMeta is passed to
+   * @return The cursor for the next page, or null if this was the last page
    */
-  public List<WebPageSnapshotMeta> getWebPageSnapshotMetaSince(String url,
-      long since, final String user) throws IOException {
-    return convertList(getWebPageSnapshotsSince(url, since, user),
-        WebPageSnapshotMeta.class);
+  public String getWebPageSnapshotMetaSince(final String url, final long since,
+      final String cursor, final int limit, final String user,
+      final SnapshotHandler<WebPageSnapshotMeta> handler) throws IOException {
+    if (!snapshotUrlFilter.mightContain(url)) {
+      return null;
+    }
+    return doAs(user, new PrivilegedExceptionAction<String>() {
+
+      @Override
+      public String run() throws Exception {
+        Long next = webPageSnapshotTable(user).scanMeta(normalizeUrl(url, user),
+            startRevTs(cursor), Long.MAX_VALUE - since, limit,
+            new SnapshotHandler<WebPageSnapshotModel>() {
+
+              @Override
+              public void handle(WebPageSnapshotModel model) throws IOException {
+                handler.handle(convert(model, WebPageSnapshotMeta.class));
+              }
+            });
+        return toCursor(next);
+      }
+    });
   }
 
   /**
@@ -182,14 +450,25 @@ public class WebPageSnapshotService {
    * @return The WebPageSnapshotContent, or null if one doesn't exists for this
    * URL.
    */
-  public WebPageSnapshotContent getWebPageSnapshotContent(String url,
+  public WebPageSnapshotContent getWebPageSnapshotContent(final String url,
       final String user) throws IOException {
-    WebPageSnapshotModel model = getMostRecentWebPageSnapshot(url, user);
-    if (model != null) {
-      return conversionService.convert(model, WebPageSnapshotContent.class);
-    } else {
+    if (!snapshotUrlFilter.mightContain(url)) {
       return null;
     }
+    return doAs(user, new PrivilegedExceptionAction<WebPageSnapshotContent>() {
+
+      @Override
+      public WebPageSnapshotContent run() throws Exception {
+        WebPageSnapshotModel model = webPageSnapshotTable(user)
+            .getMostRecentContent(normalizeUrl(url, user));
+        if (model != null) {
+          return convert(resolveContent(model, user),
+              WebPageSnapshotContent.class);
+        } else {
+          return null;
+        }
+      }
+    });
   }
 
   /**
@@ -202,28 +481,63 @@ public class WebPageSnapshotService {
    * @return The WebPageSnapshotContent, or null if one doesn't exist for this
    * URL at this timestamp.
    */
-  public WebPageSnapshotContent getWebPageSnapshotContent(String url, long ts,
-      final String user) throws IOException {
-    WebPageSnapshotModel model = getWebPageSnapshot(url, ts, user);
-    if (model != null) {
-      return conversionService.convert(model, WebPageSnapshotContent.class);
-    } else {
+  public WebPageSnapshotContent getWebPageSnapshotContent(final String url,
+      final long ts, final String user) throws IOException {
+    if (!snapshotUrlFilter.mightContain(url)) {
       return null;
     }
+    return doAs(user, new PrivilegedExceptionAction<WebPageSnapshotContent>() {
+
+      @Override
+      public WebPageSnapshotContent run() throws Exception {
+        WebPageSnapshotModel model = webPageSnapshotTable(user)
+            .getContent(normalizeUrl(url, user), Long.MAX_VALUE - ts);
+        if (model != null) {
+          return convert(resolveContent(model, user),
+              WebPageSnapshotContent.class);
+        } else {
+          return null;
+        }
+      }
+    });
   }
 
   /**
-   * Get all WebPageSnapshotContent from an URL that have been snapshotted since
-   * the "since" param.
+   * Stream a page of the WebPageSnapshotContent from an URL that have been
+   * snapshotted since the "since" param, most recent first.
    *
    * @param url The URL to get WebPageSnapshotContent instances from
    * @param since The epoch timestamp
-   * @return The list of WebPageSnapshotContent instances.
+   * @param cursor The cursor returned with the previous page, or null to start
+   * with the most recent snapshot
+   * @param limit The maximum number of snapshots in the page
+   * @param user The user retrieving the snapshots
+   * @param handler The handler each WebPageSnapshotContent is passed to
+   * @return The cursor for the next page, or null if this was the last page
    */
-  public List<WebPageSnapshotContent> getWebPageSnapshotContentSince(
-      String url, long since, final String user) throws IOException {
-    return convertList(getWebPageSnapshotsSince(url, since, user),
-        WebPageSnapshotContent.class);
+  public String getWebPageSnapshotContentSince(final String url,
+      final long since, final String cursor, final int limit, final String user,
+      final SnapshotHandler<WebPageSnapshotContent> handler) throws IOException {
+    if (!snapshotUrlFilter.mightContain(url)) {
+      return null;
+    }
+    return doAs(user, new PrivilegedExceptionAction<String>() {
+
+      @Override
+      public String run() throws Exception {
+        Long next = readWebPageSnapshotsSince(normalizeUrl(url, user),
+            startRevTs(cursor), Long.MAX_VALUE - since, limit, user,
+            new SnapshotHandler<WebPageSnapshotModel>() {
+
+              @Override
+              public void handle(WebPageSnapshotModel model) throws IOException {
+                handler.handle(convert(resolveContent(model, user),
+                    WebPageSnapshotContent.class));
+              }
+            });
+        return toCursor(next);
+      }
+    });
   }
 
   /**
@@ -232,155 +546,252 @@ public class WebPageSnapshotService {
    * @param url The URL of the page to get snapshot timestamps for
    * @return The list of timestamps
    */
-  public List<Long> getSnapshotTimestamps(String url, final String user)
+  public List<Long> getSnapshotTimestamps(final String url, final String user)
       throws IOException {
-    List<Long> snapshotTimestamps = null;
-    final String normalizedUrl = normalizeUrl(url, user);
-    LOG.error("Getting snapshot timestamps: url = {}, user = {}, normalized url = {}",
-        new Object[] { url, user, normalizedUrl });
-    UserGroupInformation ugi = UserGroupInformation.createProxyUser(user,
-        UserGroupInformation.getLoginUser());
-
-    snapshotTimestamps = ugi.doAs(new PrivilegedAction<List<Long>>() {
+    if (!snapshotUrlFilter.mightContain(url)) {
+      return new ArrayList<Long>();
+    }
+    return doAs(user, new PrivilegedExceptionAction<List<Long>>() {
 
       @Override
-      public List<Long> run() {
-        List<Long> snapshotTimestamps = new ArrayList<Long>();
-        DatasetReader<WebPageSnapshotModel> reader = null;
-        try {
-          reader = webPageSnapshotModels(user).from("url", normalizedUrl)
-              .from("fetchedAtRevTs", 0L).to("url", normalizedUrl)
-              .to("fetchedAtRevTs", Long.MAX_VALUE).newReader();
-          while (reader.hasNext()) {
-            snapshotTimestamps.add(reader.next().getFetchedAt());
-          }
-        } finally {
-          if (reader != null) {
-            reader.close();
-          }
-        }
-        return snapshotTimestamps;
+      public List<Long> run() throws Exception {
+        String normalizedUrl = normalizeUrl(url, user);
+        LOG.debug("Getting snapshot timestamps: url = {}, user = {}, normalized url = {}",
+            new Object[] { url, user, normalizedUrl });
+
+        return webPageSnapshotTable(user).getSnapshotTimestamps(normalizedUrl);
       }
     });
-
-    return snapshotTimestamps;
   }
 
   /**
-   * Get the most recent WebPageSnapshotModel from HBase
+   * Run an action as the proxy user for a user. Every public method of this
+   * service runs its HBase operations under a single doAs, so the private
+   * helpers below expect to already be running as the proxy user. The user's
+   * datasets are held open for the duration of the action.
    *
-   * @param url The URL to get the snapshotted page from HBase
-   * @return The WebPageSnapshotModel, or null if there are no fetches for this
-   * URL
+   * @param user The user to run the action as
+   * @param action The action to run
+   * @return The result of the action
+   * @throws IOException
    */
-  private WebPageSnapshotModel getMostRecentWebPageSnapshot(String url,
-      final String user) throws IOException {
-    WebPageSnapshotModel snapshot = null;
-    final String normalizedUrl = normalizeUrl(url, user);
-
-
-    UserGroupInformation ugi = UserGroupInformation.createProxyUser(user,
-        UserGroupInformation.getLoginUser());
-
-    LOG.error("Created proxy user " + ugi.getShortUserName() + " ugi: "
-      + ugi);
-
-    snapshot = ugi.doAs(new PrivilegedAction<WebPageSnapshotModel>() {
+  private <T> T doAs(final String user,
+      final PrivilegedExceptionAction<T> action) throws IOException {
+    long start = System.nanoTime();
+    UserGroupInformation ugi = proxyUserCache.get(user);
+    snapshotMetrics.record(Stage.PROXY_USER, start);
+    try {
+      return ugi.doAs(new PrivilegedExceptionAction<T>() {
 
-      @Override
-      public WebPageSnapshotModel run() {
-        DatasetReader<WebPageSnapshotModel> reader = null;
-        try {
-          // we don't know the exact timestamp in the key, but we know since keys
-          // are in timestamp descending order that the first row for an URL will be
-          // the most recent.
-          reader = webPageSnapshotModels(user).from("url", normalizedUrl)
-              .from("fetchedAtRevTs", 0L).to("url", normalizedUrl)
-              .to("fetchedAtRevTs", Long.MAX_VALUE).newReader();
-          if (reader.hasNext()) {
-            return reader.next();
-          } else {
-            return null;
-          }
-        } finally {
-          if (reader != null) {
-            reader.close();
+        @Override
+        public T run() throws Exception {
+          // acquired as the proxy user, since that's who loads them
+          userDatasetCache.acquire(user);
+          try {
+            return action.run();
+          } finally {
+            userDatasetCache.release(user);
           }
         }
-      }
-
-    });
+      });
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted running as user " + user, ex);
+    }
+  }
 
-    return snapshot;
+  /**
+   * Convert a model to its frontend type, and record the conversion.
+   */
+  private <T> T convert(Object model, Class<T> type) {
+    long start = System.nanoTime();
+    T converted = conversionService.convert(model, type);
+    snapshotMetrics.record(Stage.CONVERT, start);
+    return converted;
   }
 
   /**
-   * Get the WebPageSnapshotModel from HBase
+   * Stream up to limit WebPageSnapshotModels for an URL from HBase, in
+   * timestamp descending order, to a handler.
    *
-   * @param url The URL of the WebPageSnapshotModel
-   * @param ts The snapshot timestamp of the WebPageSnapshotModel
-   * @return The WebPageSnapshotModel, or null if there is no snapshot for the
-   * URL at this timestamp.
+   * @param normalizedUrl The normalized URL of the page
+   * @param startRevTs The fetchedAtRevTs to start at, inclusive
+   * @param stopRevTs The fetchedAtRevTs to stop at, inclusive
+   * @param limit The maximum number of models to read
+   * @param handler The handler each model is passed to
+   * @return The fetchedAtRevTs of the next model after the limit, or null if
+   * there are no more models in the range.
    */
-  private WebPageSnapshotModel getWebPageSnapshot(String url,
-      final long ts, final String user) throws IOException {
-    WebPageSnapshotModel snapshot = null;
-    final String normalizedUrl = normalizeUrl(url, user);
-
-    UserGroupInformation ugi = UserGroupInformation.createProxyUser(user,
-        UserGroupInformation.getLoginUser());
-    snapshot = ugi.doAs(new PrivilegedAction<WebPageSnapshotModel>() {
-
-      @Override
-      public WebPageSnapshotModel run() {
-        Key key = new Key.Builder(webPageSnapshotModels(user)).add("url", normalizedUrl)
-            .add("fetchedAtRevTs", Long.MAX_VALUE - ts).build();
-        return webPageSnapshotModels(user).get(key);
+  private Long readWebPageSnapshotsSince(String normalizedUrl, long startRevTs,
+      long stopRevTs, int limit, String user,
+      SnapshotHandler<WebPageSnapshotModel> handler) throws IOException {
+    DatasetReader<WebPageSnapshotModel> reader = null;
+    // the time spent in the handler isn't part of the scan
+    long start = System.nanoTime();
+    try {
+      // an exact url lets Kite compute a salted table's hash bucket, so the
+      // read stays one contiguous scan
+      reader = webPageSnapshotModels(user).with("url", normalizedUrl)
+          .from("fetchedAtRevTs", startRevTs)
+          .to("fetchedAtRevTs", stopRevTs).newReader();
+      int count = 0;
+      while (reader.hasNext()) {
+        WebPageSnapshotModel model = reader.next();
+        if (count == limit) {
+          return model.getFetchedAtRevTs();
+        }
+        long handlerStart = System.nanoTime();
+        handler.handle(model);
+        start += System.nanoTime() - handlerStart;
+        count++;
       }
-    });
-
-    return snapshot;
+      return null;
+    } finally {
+      if (reader != null) {
+        reader.close();
+      }
+      snapshotMetrics.record(Stage.HBASE_SCAN, start);
+    }
   }
 
   /**
-   * Get WebPageSnapshotModels for an URL from HBase since the since param.
+   * Check whether a page cursor passed in by a client is one this service
+   * could have returned, so it can be rejected before a page is started.
    *
-   * @param url The URL of the page to fetch
-   * @param since The models to fetch since
-   * @return The list of models that have been fetched for an URL since the
-   * since param.
+   * @param cursor The cursor, or null for the first page
+   * @return True if the cursor is null or well formed
    */
-  private List<WebPageSnapshotModel> getWebPageSnapshotsSince(String url,
-      final long since, final String user) throws IOException {
-    List<WebPageSnapshotModel> snapshots = null;
-    final String normalizedUrl = normalizeUrl(url, user);
+  public static boolean isValidCursor(String cursor) {
+    if (cursor == null) {
+      return true;
+    }
+    try {
+      return startRevTs(cursor) >= 0;
+    } catch (NumberFormatException ex) {
+      return false;
+    }
+  }
 
-    UserGroupInformation ugi = UserGroupInformation.createProxyUser(user,
-        UserGroupInformation.getLoginUser());
+  /**
+   * Decode a page cursor into the fetchedAtRevTs to start reading at.
+   *
+   * @param cursor The cursor, or null for the first page
+   * @return The fetchedAtRevTs
+   * @throws IllegalArgumentException if the cursor is malformed
+   */
+  private static long startRevTs(String cursor) {
+    return cursor == null ? 0L : Long.parseLong(cursor, Character.MAX_RADIX);
+  }
 
-    ugi.doAs(new PrivilegedAction<List<WebPageSnapshotModel>>() {
+  /**
+   * Encode the fetchedAtRevTs the next page starts at into a cursor.
+   */
+  private static String toCursor(Long nextRevTs) {
+    return nextRevTs == null ? null
+        : Long.toString(nextRevTs, Character.MAX_RADIX);
+  }
 
-      @Override
-      public List<WebPageSnapshotModel> run() {
-        List<WebPageSnapshotModel> models = new ArrayList<WebPageSnapshotModel>();
-        DatasetReader<WebPageSnapshotModel> reader = null;
-        try {
-          reader = webPageSnapshotModels(user).from("url", normalizedUrl)
-              .from("fetchedAtRevTs", 0L).to("url", normalizedUrl)
-              .to("fetchedAtRevTs", since).newReader();
-          while (reader.hasNext()) {
-            models.add(reader.next());
+  /**
+   * Write the snapshots, redirects and new content of a batch of fetched pages
+   * with one DatasetWriter per dataset, so the puts are sent to HBase in
+   * batches.
+   *
+   * @param requests The batch of requests
+   * @param fetched The page fetched for each request, or null if the fetch
+   * failed
+   * @param user The user taking the snapshots
+   */
+  private void writeSnapshots(List<SnapshotRequest> requests,
+      List<FetchedPage> fetched, String user) throws IOException {
+    long start = System.nanoTime();
+    DatasetWriter<WebPageRedirectModel> redirectWriter = null;
+    try {
+      for (int i = 0; i < fetched.size(); i++) {
+        if (fetched.get(i) == null) {
+          continue;
+        }
+        WebPageSnapshotModel model = fetched.get(i).model;
+        String url = requests.get(i).getUrl();
+        snapshotUrlFilter.put(url);
+        snapshotUrlFilter.put(model.getUrl());
+        if (!model.getUrl().equals(url)) {
+          if (redirectWriter == null) {
+            redirectWriter = webPageRedirectModels(user).newWriter();
           }
-        } finally {
-          if (reader != null) {
-            reader.close();
+          redirectWriter.write(WebPageRedirectModel.newBuilder().setUrl(url)
+              .setDestinationUrl(model.getUrl()).build());
+          redirectCache.update(user, url, model.getUrl());
+        } else {
+          removeRedirect(url, user);
+        }
+      }
+    } finally {
+      if (redirectWriter != null) {
+        redirectWriter.close();
+      }
+    }
+
+    DatasetWriter<WebPageContentModel> contentWriter = null;
+    try {
+      for (FetchedPage page : fetched) {
+        if (page == null) {
+          continue;
+        } else if (page.unchanged) {
+          webPageSnapshotTable(user).setLastCheckedAt(page.model.getUrl(),
+              page.model.getFetchedAtRevTs(), page.model.getLastCheckedAt());
+          continue;
+        }
+        WebPageContentModel content = newContent(page.model, user);
+        if (content != null) {
+          if (contentWriter == null) {
+            contentWriter = webPageContentModels(user).newWriter();
           }
+          contentWriter.write(content);
         }
-        return models;
       }
-    });
+    } finally {
+      if (contentWriter != null) {
+        contentWriter.close();
+      }
+    }
 
-    return snapshots;
+    DatasetWriter<WebPageSnapshotModel> snapshotWriter =
+        webPageSnapshotModels(user).newWriter();
+    try {
+      for (FetchedPage page : fetched) {
+        if (page != null && !page.unchanged) {
+          snapshotWriter.write(page.model);
+        }
+      }
+    } finally {
+      snapshotWriter.close();
+    }
+    snapshotMetrics.record(Stage.HBASE_PUT, start);
+  }
+
+  /**
+   * Remove the redirect for an URL if one exists, since the URL no longer
+   * redirects.
+   *
+   * @param url The URL
+   * @param user The user taking the snapshot
+   */
+  private void removeRedirect(String url, String user) {
+    Optional<String> cached = redirectCache.getIfPresent(user, url);
+    if (cached != null && !cached.isPresent()) {
+      // already known not to redirect
+      return;
+    }
+    long start = System.nanoTime();
+    Key key = new Key.Builder(webPageRedirectModels(user)).add("url", url).build();
+    WebPageRedirectModel redirectModel = webPageRedirectModels(user).get(key);
+    snapshotMetrics.record(Stage.REDIRECT_LOOKUP, start);
+    if (redirectModel != null) {
+      webPageRedirectModels(user).delete(key);
+      redirectCache.update(user, url, null);
+    } else {
+      redirectCache.put(user, url, null);
+    }
   }
 
   /**
@@ -390,16 +801,20 @@ public class WebPageSnapshotService {
    * @param url The url to normalize
    * @return The normalized URL;
    */
-  private String normalizeUrl(String url, final String user) throws IOException {
+  private String normalizeUrl(String url, final String user) {
     // If this url is a redirect, get it's destination URL to fetch from our
     // HBase store since we store all snapshots under the final destination the
     // page lives at.
-    WebPageRedirectModel redirectModel = getRedirect(url, user);
-    if (redirectModel != null) {
-      return redirectModel.getDestinationUrl();
-    } else {
-      return url;
+    long start = System.nanoTime();
+    Optional<String> destinationUrl = redirectCache.getIfPresent(user, url);
+    if (destinationUrl == null) {
+      WebPageRedirectModel redirectModel = getRedirect(url, user);
+      destinationUrl = Optional.fromNullable(redirectModel != null
+          ? redirectModel.getDestinationUrl() : null);
+      redirectCache.put(user, url, destinationUrl.orNull());
     }
+    snapshotMetrics.record(Stage.REDIRECT_LOOKUP, start);
+    return destinationUrl.or(url);
   }
 
   /**
@@ -408,18 +823,30 @@ public class WebPageSnapshotService {
    *
    * @return The WebPageRedirectModel
    */
-  private WebPageRedirectModel getRedirect(final String url, final String user) throws IOException {
-    UserGroupInformation ugi = UserGroupInformation.createProxyUser(user,
-        UserGroupInformation.getLoginUser());
-
-    return ugi.doAs(new PrivilegedAction<WebPageRedirectModel>() {
+  private WebPageRedirectModel getRedirect(final String url, final String user) {
+    Key key = new Key.Builder(webPageRedirectModels(user)).add("url", url).build();
+    return webPageRedirectModels(user).get(key);
+  }
 
-      @Override
-      public WebPageRedirectModel run() {
-        Key key = new Key.Builder(webPageRedirectModels(user)).add("url", url).build();
-        return webPageRedirectModels(user).get(key);
-      }
-    });
+  /**
+   * Get the most recent snapshot of an URL under a content key, to make the
+   * next fetch of the URL conditional on it.
+   *
+   * @param url The URL
+   * @param contentKey The content key
+   * @param user The user taking the snapshot
+   * @return The WebPageSnapshotModel without content, or null if there's no
+   * snapshot with an ETag or Last-Modified time.
+   */
+  private WebPageSnapshotModel previousSnapshot(String url, String contentKey,
+      String user) throws IOException {
+    WebPageSnapshotModel previous = webPageSnapshotTable(user)
+        .getMostRecentMeta(normalizeUrl(url, user), contentKey);
+    if (previous == null || (isEmpty(previous.getEtag())
+        && isEmpty(previous.getLastModified()))) {
+      return null;
+    }
+    return previous;
   }
 
   /**
@@ -427,125 +854,392 @@ public class WebPageSnapshotService {
    * required by WebPageSnapshotModel, and return the constructed
    * WebPageSnapshotModel.
    *
+   * If there's a previous snapshot of the page, the request is sent with its
+   * validators. If the origin answers 304 Not Modified, the body isn't
+   * downloaded or parsed, and the previous snapshot is returned with its
+   * lastCheckedAt time set to now. If the page redirected somewhere else, the
+   * previous snapshot isn't of the same page, so the page is fetched once
+   * more without validators.
+   *
    * @param url The URL to fetch the web page from
-   * @return The WebPageSnapshotModel
-   * @throws IOException Thrown if there's an issue fetching the web page.
+   * @param contentKey The key used to store the content
+   * @param previous The previous snapshot of the page, or null to fetch
+   * unconditionally
+   * @return The FetchedPage
+   * @throws IOException Thrown if there's an issue fetching the web page,
+   * including a 304 to a request without validators.
    */
-  private WebPageSnapshotModel fetchWebPage(String url, String contentKey) throws IOException {
+  private FetchedPage fetchWebPage(String url, String contentKey,
+      WebPageSnapshotModel previous) throws IOException {
     long fetchTime = System.currentTimeMillis();
-    Connection connection = Jsoup.connect(url);
-    Response response = connection.execute();
+    Map<String, String> headers = new HashMap<String, String>();
+    if (previous != null) {
+      if (!isEmpty(previous.getEtag())) {
+        headers.put("If-None-Match", previous.getEtag());
+      }
+      if (!isEmpty(previous.getLastModified())) {
+        headers.put("If-Modified-Since", previous.getLastModified());
+      }
+    }
+    long fetchStart = System.nanoTime();
+    PageFetcher.Response response = pageFetcher.fetch(url, headers);
+    byte[] body = response.getBody();
+    snapshotMetrics.record(Stage.FETCH, fetchStart, body.length);
     long postFetchTime = System.currentTimeMillis();
     int timeToFetch = (int) (postFetchTime - fetchTime);
 
-    Document doc = response.parse();
-    String destinationUrl = response.url().toString();
-    String title = doc.title();
-    String description = getDescriptionFromDocument(doc);
-    List<String> keywords = getKeywordsFromDocument(doc);
-    List<String> outlinks = getOutlinksFromDocument(doc);
+    if (response.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+      if (previous == null) {
+        // nothing was sent that the origin could have matched
+        throw new HttpStatusException("Not Modified without validators",
+            HttpURLConnection.HTTP_NOT_MODIFIED, response.getUrl().toString());
+      }
+      if (response.getUrl().toString().equals(previous.getUrl())) {
+        previous.setLastCheckedAt(postFetchTime);
+        return new FetchedPage(previous, true);
+      }
+      // the page moved, so the previous snapshot isn't of the same page
+      return fetchWebPage(url, contentKey, null);
+    }
+
+    long parseStart = System.nanoTime();
+    HtmlExtractor page = HtmlExtractor.extract(body, response.getCharset());
+    snapshotMetrics.record(Stage.PARSE, parseStart, body.length);
+    String destinationUrl = response.getUrl().toString();
 
-    return WebPageSnapshotModel.newBuilder().setUrl(destinationUrl)
+    WebPageSnapshotModel.Builder builder = WebPageSnapshotModel.newBuilder()
+        .setUrl(destinationUrl)
         .setFetchedAtRevTs(Long.MAX_VALUE - fetchTime)
-        .setSize(doc.html().length()).setFetchedAt(fetchTime)
-        .setFetchTimeMs(timeToFetch).setTitle(title)
-        .setDescription(description).setKeywords(keywords)
-        .setOutlinks(outlinks).setContentKey(contentKey)
-        .setContent(ImmutableMap.of(contentKey, doc.html()))
-        .build();
+        .setSize(body.length).setFetchedAt(fetchTime)
+        .setFetchTimeMs(timeToFetch).setTitle(page.getTitle())
+        .setDescription(page.getDescription())
+        .setKeywords(page.getKeywords())
+        .setOutlinks(page.getOutlinks()).setContentKey(contentKey)
+        .setContentCharset(page.getCharset())
+        .setLastCheckedAt(fetchTime)
+        .setEtag(Strings.nullToEmpty(response.header("ETag")))
+        .setLastModified(Strings.nullToEmpty(response.header("Last-Modified")));
+    setContent(builder, contentKey, body);
+    return new FetchedPage(builder.build(), false);
+  }
+
+  private static boolean isEmpty(String value) {
+    return value == null || value.isEmpty();
   }
 
   /**
-   * Parse the description out of the meta tag if one exists. Otherwise, return
-   * null
+   * Set the digest of a snapshot's content, and the content compressed with
+   * the configured ContentCodec. The content is carried in the compressed
+   * content map until it's moved to the content table by newContent.
    *
-   * @param doc The Document to parse
-   * @return The description if it exists in the HTML, otherwise null.
+   * @param builder The builder of the snapshot
+   * @param contentKey The key used to store the content
+   * @param bytes The response body
+   * @throws IOException Thrown if the content can't be compressed
    */
-  private String getDescriptionFromDocument(Document doc) {
-    Elements metaDescriptionElements = doc.select("meta[name=description]");
-    return metaDescriptionElements.size() > 0 ? metaDescriptionElements
-        .attr("content") : "";
+  private void setContent(WebPageSnapshotModel.Builder builder,
+      String contentKey, byte[] bytes) throws IOException {
+    builder.setContentDigest(Hashing.sha256().hashBytes(bytes).toString())
+        .setContent(ImmutableMap.<String, String>of())
+        .setContentCodec(contentCodec.getName())
+        .setCompressedContent(ImmutableMap.of(contentKey,
+            ByteBuffer.wrap(contentCodec.compress(bytes))));
   }
 
   /**
-   * Parse the keywords out of the meta tag if one exists. Otherwise, return an
-   * empty list.
+   * Move the content of a fetched snapshot out of the snapshot, so the
+   * snapshot row only references it by digest. The content only needs to be
+   * written if nothing has been stored under its digest for the snapshot's
+   * content key yet, and if delta encoding is enabled, the snapshot may be
+   * stored as a delta in its own row instead. Content that's too large to
+   * store in HBase is written to the ContentBlobStore, which stores its
+   * pointer itself.
    *
-   * @param doc The Document ot parse
-   * @return The list of keywords.
+   * @param model The fetched snapshot
+   * @param user The user taking the snapshot
+   * @return The WebPageContentModel to write, or null if the content is
+   * already stored, was stored by the ContentBlobStore, or the snapshot was
+   * delta encoded.
+   * @throws IOException
    */
-  private List<String> getKeywordsFromDocument(Document doc) {
-    List<String> keywords = new ArrayList<String>();
-    Elements keywordsElements = doc.select("meta[name=keywords]");
-    for (Element keywordsElement : keywordsElements) {
-      for (String keyword : keywordsElement.attr("content").split(",")) {
-        keywords.add(keyword.trim());
+  private WebPageContentModel newContent(WebPageSnapshotModel model,
+      String user) throws IOException {
+    String contentKey = model.getContentKey();
+    byte[] bytes = toBytes(model.getCompressedContent().get(contentKey));
+    model.setContent(new HashMap<String, String>());
+    model.setCompressedContent(new HashMap<String, ByteBuffer>());
+
+    WebPageContentModel stored = webPageContentTable(user).get(
+        model.getContentDigest(), contentKey);
+    if (stored != null && (stored.getContent().containsKey(contentKey)
+        || stored.getBlobs().containsKey(contentKey))) {
+      return null;
+    }
+    ContentCodec codec = ContentCodec.forName(model.getContentCodec());
+    if (snapshotDeltas.isEnabled()
+        && setDelta(model, codec.decompress(bytes), bytes.length, user)) {
+      return null;
+    }
+    snapshotDeltas.recordKeyframe();
+    if (stored != null) {
+      // every content key in a row shares the row's codec
+      ContentCodec storedCodec = ContentCodec.forName(stored.getContentCodec());
+      if (storedCodec != codec) {
+        bytes = storedCodec.compress(codec.decompress(bytes));
+        codec = storedCodec;
       }
     }
-    return keywords;
+    if (contentBlobStore.shouldStore(bytes.length)) {
+      contentBlobStore.store(model.getContentDigest(), contentKey,
+          codec.getName(), bytes);
+      return null;
+    }
+    return WebPageContentModel.newBuilder()
+        .setDigest(model.getContentDigest())
+        .setContentCodec(codec.getName())
+        .setContent(ImmutableMap.of(contentKey, ByteBuffer.wrap(bytes)))
+        .setBlobs(ImmutableMap.<String, String>of())
+        .build();
   }
 
   /**
-   * Parse the outlinks from a href tags in the document, and return them as a
-   * list
+   * Delta encode a snapshot against the previous snapshot of its URL under
+   * the same content key. The snapshot is left alone if there's no previous
+   * snapshot, the previous snapshot ends a full chain, or the delta wouldn't
+   * be smaller than the stored content.
    *
-   * @param doc The document to parse
-   * @return The list of outlinks as URL strings.
+   * @param model The fetched snapshot
+   * @param content The uncompressed content of the snapshot
+   * @param storedLength The length of the content as it would be stored
+   * @param user The user taking the snapshot
+   * @return true if the snapshot was delta encoded
+   * @throws IOException
+   */
+  private boolean setDelta(WebPageSnapshotModel model, byte[] content,
+      int storedLength, String user) throws IOException {
+    // the next snapshot of the page will most likely be encoded against this
+    snapshotDeltas.putContent(model.getContentKey(), model.getContentDigest(),
+        content);
+    WebPageSnapshotModel base = webPageSnapshotTable(user).getMostRecentMeta(
+        model.getUrl(), model.getContentKey());
+    if (base == null || base.getContentDigest() == null
+        || base.getContentDigest().isEmpty()
+        || !snapshotDeltas.canExtend(base.getDeltaChainLength())) {
+      return false;
+    }
+    byte[] baseContent = contentBytes(base, user);
+    if (baseContent == null) {
+      return false;
+    }
+    byte[] delta = BlockDelta.encode(baseContent, content);
+    if (delta.length >= storedLength) {
+      return false;
+    }
+    model.setDeltaChainLength(base.getDeltaChainLength() + 1);
+    model.setDeltaBaseRevTs(base.getFetchedAtRevTs());
+    model.setDelta(ImmutableMap.of(model.getContentKey(),
+        ByteBuffer.wrap(delta)));
+    snapshotDeltas.recordDelta(delta.length);
+    return true;
+  }
+
+  /**
+   * Read the content of a snapshot that references it by digest into the
+   * snapshot. Snapshots taken before content was deduplicated already hold
+   * their content.
+   *
+   * @param model The snapshot
+   * @param user The user reading the snapshot
+   * @return The snapshot
+   * @throws IOException
    */
-  private List<String> getOutlinksFromDocument(Document doc) {
-    List<String> outlinks = new ArrayList<String>();
-    Elements linkElements = doc.select("a[href]");
-    for (Element linkElement : linkElements) {
-      outlinks.add(linkElement.attr("href").trim());
+  private WebPageSnapshotModel resolveContent(WebPageSnapshotModel model,
+      String user) throws IOException {
+    String digest = model.getContentDigest();
+    if (digest == null || digest.isEmpty()) {
+      return model;
+    }
+    byte[] content = contentBytes(model, user);
+    Map<String, String> uncompressed = new HashMap<String, String>();
+    if (content != null) {
+      uncompressed.put(model.getContentKey(),
+          new String(content, contentCharset(model)));
     }
-    return outlinks;
+    model.setContentCodec(ContentCodec.NONE.getName());
+    model.setContent(uncompressed);
+    model.setCompressedContent(new HashMap<String, ByteBuffer>());
+    return model;
   }
 
   /**
-   * Use the conversionService to convert a list of objects to clazz
+   * Get the uncompressed content of a snapshot that references its content by
+   * digest, from the content cache if possible. The cache is only used for
+   * content keys the user can read, so other users' private content is
+   * always read through HBase and its cell ACLs.
    *
-   * @param list The list of objects to convert
-   * @param clazz The class to convert those objects to
-   * @return The list of converted objects.
+   * @param model The snapshot, with at least its key, contentKey,
+   * contentDigest and delta fields set
+   * @param user The user reading the snapshot
+   * @return The content, or null if no content is stored for the snapshot's
+   * content key
+   * @throws IOException
    */
-  private <T> List<T> convertList(List<?> list, Class<T> clazz) {
-    List<T> returnList = new ArrayList<T>();
-    for (Object o : list) {
-      returnList.add(conversionService.convert(o, clazz));
+  private byte[] contentBytes(WebPageSnapshotModel model, String user)
+      throws IOException {
+    String digest = model.getContentDigest();
+    String contentKey = model.getContentKey();
+    boolean cacheable = canRead(contentKey, user);
+    byte[] content = cacheable
+        ? snapshotDeltas.getContent(contentKey, digest) : null;
+    if (content != null) {
+      return content;
     }
-    return returnList;
+    if (model.getDeltaChainLength() == 0) {
+      content = keyframeBytes(digest, model.getContentKey(), user);
+    } else {
+      content = reconstruct(model, user, cacheable);
+    }
+    if (content != null && cacheable) {
+      snapshotDeltas.putContent(contentKey, digest, content);
+    }
+    return content;
+  }
+
+  /**
+   * Check whether content stored under a content key belongs to a user or is
+   * public.
+   */
+  private static boolean canRead(String contentKey, String user) {
+    return contentKey(true, user).equals(contentKey)
+        || contentKey(false, user).equals(contentKey);
   }
 
-  private synchronized RandomAccessDataset<WebPageSnapshotModel> webPageSnapshotModels(String user) {
-    RandomAccessDataset<WebPageSnapshotModel> dataset =
-        webPageSnapshotModelMap.get(user);
+  /**
+   * Read content from the content table, or from HDFS if the content table
+   * holds a pointer to it, and decompress it.
+   */
+  private byte[] keyframeBytes(String digest, String contentKey, String user)
+      throws IOException {
+    WebPageContentModel content = webPageContentTable(user).get(digest,
+        contentKey);
+    if (content == null) {
+      return null;
+    }
+    byte[] bytes;
+    ByteBuffer buffer = content.getContent().get(contentKey);
+    CharSequence pointer = content.getBlobs().get(contentKey);
+    if (buffer != null) {
+      bytes = toBytes(buffer);
+    } else if (pointer != null) {
+      bytes = contentBlobStore.read(contentKey, pointer.toString());
+    } else {
+      return null;
+    }
+    return ContentCodec.forName(content.getContentCodec()).decompress(bytes);
+  }
 
-    if (dataset == null) {
-      Configuration conf = new Configuration(DefaultConfiguration.get());
-      conf.set("hbase.client.instance.id", user);
-      DefaultConfiguration.set(conf);
+  /**
+   * Reconstruct the content of a delta encoded snapshot. The deltas are
+   * applied starting from the newest version in the chain that's cached, or
+   * from the keyframe if none are.
+   *
+   * @param model The delta encoded snapshot
+   * @param user The user reading the snapshot
+   * @param cacheable Whether the user can read the chain's content key, and
+   * so may start from cached content
+   * @return The content, or null if the keyframe's content isn't stored
+   * @throws IOException if the chain is broken or doesn't reproduce the
+   * snapshot's digest
+   */
+  private byte[] reconstruct(WebPageSnapshotModel model, String user,
+      boolean cacheable) throws IOException {
+    snapshotDeltas.recordReconstruction();
+    List<WebPageSnapshotModel> chain = webPageSnapshotTable(user)
+        .scanDeltaChain(model.getUrl(), model.getFetchedAtRevTs(),
+            model.getContentKey(), model.getDeltaChainLength());
+    byte[] content = null;
+    int start = chain.size() - 1;
+    for (int i = 1; cacheable && i < chain.size() && content == null; i++) {
+      content = snapshotDeltas.getContent(model.getContentKey(),
+          chain.get(i).getContentDigest());
+      start = i;
+    }
+    if (content == null) {
+      WebPageSnapshotModel keyframe = chain.get(start);
+      content = keyframeBytes(keyframe.getContentDigest(),
+          keyframe.getContentKey(), user);
+      if (content == null) {
+        return null;
+      }
+    }
+    for (int i = start - 1; i >= 0; i--) {
+      WebPageSnapshotModel version = chain.get(i);
+      ByteBuffer delta = version.getDelta().get(version.getContentKey());
+      if (delta == null) {
+        throw new IOException("Missing delta for " + version.getUrl()
+            + " at " + version.getFetchedAtRevTs());
+      }
+      content = BlockDelta.decode(content, toBytes(delta));
+    }
+    if (!Hashing.sha256().hashBytes(content).toString()
+        .equals(model.getContentDigest())) {
+      throw new IOException("Delta chain for " + model.getUrl() + " at "
+          + model.getFetchedAtRevTs() + " doesn't match its digest");
+    }
+    return content;
+  }
 
-      dataset = Datasets.load(webPageSnapshotUri, WebPageSnapshotModel.class);
-      webPageSnapshotModelMap.put(user, dataset);
+  /**
+   * Get the charset a snapshot's content is encoded in. Content is stored as
+   * the response body. Snapshots from before that stored the parsed page
+   * re-serialized as UTF-8.
+   */
+  private static Charset contentCharset(WebPageSnapshotModel model) {
+    String charset = model.getContentCharset();
+    if (charset == null || charset.isEmpty()
+        || !Charset.isSupported(charset)) {
+      return Charsets.UTF_8;
     }
+    return Charset.forName(charset);
+  }
 
-    return dataset;
+  private static byte[] toBytes(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
   }
 
-  private synchronized RandomAccessDataset<WebPageRedirectModel> webPageRedirectModels(String user) {
-    RandomAccessDataset<WebPageRedirectModel> dataset =
-        webPageRedirectModelMap.get(user);
+  private RandomAccessDataset<WebPageSnapshotModel> webPageSnapshotModels(String user) {
+    return userDatasetCache.webPageSnapshotModels(user);
+  }
 
-    if (dataset == null) {
-      Configuration conf = new Configuration(DefaultConfiguration.get());
-      conf.set("hbase.client.instance.id", user);
-      DefaultConfiguration.set(conf);
+  private RandomAccessDataset<WebPageRedirectModel> webPageRedirectModels(String user) {
+    return userDatasetCache.webPageRedirectModels(user);
+  }
 
-      dataset = Datasets.load(webPageRedirectUri, WebPageRedirectModel.class);
-      webPageRedirectModelMap.put(user, dataset);
-    }
+  private RandomAccessDataset<WebPageContentModel> webPageContentModels(String user) {
+    return userDatasetCache.webPageContentModels(user);
+  }
 
-    return dataset;
+  private WebPageSnapshotTable webPageSnapshotTable(String user) {
+    return userDatasetCache.webPageSnapshotTable(user);
+  }
+
+  private WebPageContentTable webPageContentTable(String user) {
+    return userDatasetCache.webPageContentTable(user);
+  }
+
+  /**
+   * A fetched page, or the previous snapshot of the page if it's unchanged.
+   */
+  private static class FetchedPage {
+
+    private final WebPageSnapshotModel model;
+    private final boolean unchanged;
+
+    private FetchedPage(WebPageSnapshotModel model, boolean unchanged) {
+      this.model = model;
+      this.unchanged = unchanged;
+    }
   }
 }
@@ -0,0 +1,619 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.CompareFilter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.PageFilter;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.kitesdk.spring.hbase.example.model.ContentCodec;
+import org.kitesdk.spring.hbase.example.service.AvroColumnMapping.Column;
+import org.kitesdk.spring.hbase.example.service.SnapshotMetrics.Stage;
+import org.kitesdk.spring.hbase.example.model.WebPageSnapshotModel;
+
+/**
+ * Projected reads of the WebPageSnapshotModel table through the HBase client,
+ * and updates of single cells.
+ *
+ * Kite always reads every column a model maps, which for WebPageSnapshotModel
+ * includes the full HTML in the content family. The reads here only fetch the
+ * columns that are asked for, and decode them using the column mappings in
+ * the model's Avro schema. Fields that weren't read are left empty.
+ *
+ * Every get, scan and put is recorded in the SnapshotMetrics with the value
+ * bytes it read.
+ */
+class WebPageSnapshotTable {
+
+  static final byte[] META_FAMILY = Bytes.toBytes("meta");
+
+  private static final AvroColumnMapping MAPPING =
+      new AvroColumnMapping(WebPageSnapshotModel.SCHEMA$);
+
+  private static final Column CONTENT_KEY_COLUMN =
+      MAPPING.column("contentKey");
+  private static final Column FETCHED_AT_COLUMN = MAPPING.column("fetchedAt");
+  private static final Column CONTENT_COLUMN = MAPPING.column("content");
+  private static final Column CONTENT_CODEC_COLUMN =
+      MAPPING.column("contentCodec");
+  private static final Column COMPRESSED_CONTENT_COLUMN =
+      MAPPING.column("compressedContent");
+  private static final Column CONTENT_DIGEST_COLUMN =
+      MAPPING.column("contentDigest");
+  private static final Column DELTA_CHAIN_LENGTH_COLUMN =
+      MAPPING.column("deltaChainLength");
+  private static final Column DELTA_BASE_REV_TS_COLUMN =
+      MAPPING.column("deltaBaseRevTs");
+  private static final Column DELTA_COLUMN = MAPPING.column("delta");
+  private static final Column LAST_CHECKED_AT_COLUMN =
+      MAPPING.column("lastCheckedAt");
+  private static final Column CONTENT_CHARSET_COLUMN =
+      MAPPING.column("contentCharset");
+
+  private static final int URL_FIELD =
+      WebPageSnapshotModel.SCHEMA$.getField("url").pos();
+  private static final int FETCHED_AT_REV_TS_FIELD =
+      WebPageSnapshotModel.SCHEMA$.getField("fetchedAtRevTs").pos();
+
+  /**
+   * Rows in a key-only scan are tiny, so fetch many per RPC.
+   */
+  private static final int KEY_ONLY_SCAN_CACHING = 1000;
+
+  /**
+   * The most rows with meta columns to fetch per RPC.
+   */
+  private static final int MAX_SCAN_CACHING = 100;
+
+  private final HConnection connection;
+  private final String tableName;
+  private final SnapshotRowKeys rowKeys;
+  private final SnapshotMetrics metrics;
+
+  WebPageSnapshotTable(HConnection connection, String tableName,
+      SnapshotRowKeys rowKeys, SnapshotMetrics metrics) {
+    this.connection = connection;
+    this.tableName = tableName;
+    this.rowKeys = rowKeys;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Get the meta columns of a single snapshot.
+   *
+   * @param url The URL of the snapshot
+   * @param fetchedAtRevTs The reversed fetch timestamp of the snapshot
+   * @return The WebPageSnapshotModel without content, or null if there's no
+   * such snapshot.
+   */
+  WebPageSnapshotModel getMeta(String url, long fetchedAtRevTs)
+      throws IOException {
+    Get get = new Get(rowKeys.rowKey(url, fetchedAtRevTs));
+    get.addFamily(META_FAMILY);
+    HTableInterface table = connection.getTable(tableName);
+    try {
+      long start = System.nanoTime();
+      Result result = table.get(get);
+      metrics.record(Stage.HBASE_GET, start, valueBytes(result));
+      return result.isEmpty() ? null : toModel(result);
+    } finally {
+      table.close();
+    }
+  }
+
+  /**
+   * Get the meta columns of the most recent snapshot of an URL.
+   *
+   * @param url The URL
+   * @return The WebPageSnapshotModel without content, or null if the URL has
+   * never been snapshotted.
+   */
+  WebPageSnapshotModel getMostRecentMeta(String url) throws IOException {
+    Scan scan = latestScan(url);
+    scan.addFamily(META_FAMILY);
+    HTableInterface table = connection.getTable(tableName);
+    try {
+      Result result = scanLatest(table, scan);
+      return result != null ? toModel(result) : null;
+    } finally {
+      table.close();
+    }
+  }
+
+  /**
+   * Get the meta columns of the most recent snapshot of an URL that was
+   * stored under a content key.
+   *
+   * @param url The URL
+   * @param contentKey The content key
+   * @return The WebPageSnapshotModel without content, or null if the URL has
+   * never been snapshotted under the content key.
+   */
+  WebPageSnapshotModel getMostRecentMeta(String url, String contentKey)
+      throws IOException {
+    Scan scan = latestScan(url);
+    scan.addFamily(META_FAMILY);
+    scan.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ALL,
+        contentKeyFilter(contentKey), new PageFilter(1)));
+    HTableInterface table = connection.getTable(tableName);
+    try {
+      Result result = scanLatest(table, scan);
+      return result != null ? toModel(result) : null;
+    } finally {
+      table.close();
+    }
+  }
+
+  /**
+   * Read the delta chain of a snapshot, from the snapshot back to the
+   * keyframe it was encoded against.
+   *
+   * Older snapshots of an URL sort after newer ones, so the whole chain is
+   * read with a single scan that starts at the snapshot. Only the rows of the
+   * snapshot's content key are returned by the region servers, and only with
+   * the delta cell for that content key.
+   *
+   * @param url The URL of the snapshot
+   * @param fetchedAtRevTs The reversed fetch timestamp of the snapshot
+   * @param contentKey The content key of the snapshot
+   * @param chainLength The delta chain length of the snapshot
+   * @return The snapshots in the chain, starting with the requested snapshot
+   * and ending with the keyframe. The snapshots have contentDigest, the delta
+   * fields and the delta for the content key set.
+   * @throws IOException if the chain is broken
+   */
+  List<WebPageSnapshotModel> scanDeltaChain(String url, long fetchedAtRevTs,
+      String contentKey, int chainLength) throws IOException {
+    List<WebPageSnapshotModel> chain = new ArrayList<WebPageSnapshotModel>();
+    Scan scan = new Scan(rowKeys.rowKey(url, fetchedAtRevTs),
+        rowKeys.urlStopRow(url));
+    scan.addColumn(CONTENT_KEY_COLUMN.family, CONTENT_KEY_COLUMN.qualifier);
+    scan.addColumn(CONTENT_DIGEST_COLUMN.family,
+        CONTENT_DIGEST_COLUMN.qualifier);
+    scan.addColumn(DELTA_CHAIN_LENGTH_COLUMN.family,
+        DELTA_CHAIN_LENGTH_COLUMN.qualifier);
+    scan.addColumn(DELTA_BASE_REV_TS_COLUMN.family,
+        DELTA_BASE_REV_TS_COLUMN.qualifier);
+    scan.addColumn(DELTA_COLUMN.family, Bytes.toBytes(contentKey));
+    scan.setFilter(contentKeyFilter(contentKey));
+    scan.setCaching(Math.min(chainLength + 1, MAX_SCAN_CACHING));
+    HTableInterface table = connection.getTable(tableName);
+    try {
+      long start = System.nanoTime();
+      long bytes = 0;
+      ResultScanner scanner = table.getScanner(scan);
+      try {
+        long next = fetchedAtRevTs;
+        for (Result result : scanner) {
+          bytes += valueBytes(result);
+          if (SnapshotRowKeys.fetchedAtRevTs(result.getRow()) != next) {
+            // a snapshot that was written concurrently with the chain
+            continue;
+          }
+          WebPageSnapshotModel model = toModel(result);
+          chain.add(model);
+          if (model.getDeltaChainLength() == 0) {
+            metrics.record(Stage.HBASE_SCAN, start, bytes);
+            return chain;
+          } else if (chain.size() > chainLength) {
+            break;
+          }
+          next = model.getDeltaBaseRevTs();
+        }
+      } finally {
+        scanner.close();
+      }
+    } finally {
+      table.close();
+    }
+    throw new IOException("Broken delta chain for " + url + " at "
+        + fetchedAtRevTs);
+  }
+
+  /**
+   * Record that a snapshot's page was checked and found unchanged. Only the
+   * lastCheckedAt cell is written.
+   *
+   * @param url The URL of the snapshot
+   * @param fetchedAtRevTs The reversed fetch timestamp of the snapshot
+   * @param lastCheckedAt The epoch time the page was checked at
+   */
+  void setLastCheckedAt(String url, long fetchedAtRevTs, long lastCheckedAt)
+      throws IOException {
+    Put put = new Put(rowKeys.rowKey(url, fetchedAtRevTs));
+    byte[] value = LAST_CHECKED_AT_COLUMN.encode(lastCheckedAt);
+    put.add(LAST_CHECKED_AT_COLUMN.family, LAST_CHECKED_AT_COLUMN.qualifier,
+        value);
+    HTableInterface table = connection.getTable(tableName);
+    try {
+      long start = System.nanoTime();
+      table.put(put);
+      metrics.record(Stage.HBASE_PUT, start, value.length);
+    } finally {
+      table.close();
+    }
+  }
+
+  /**
+   * Stream the meta columns of up to limit snapshots of an URL, most recent
+   * first, to a handler.
+   *
+   * @param url The URL
+   * @param startRevTs The fetchedAtRevTs to start at, inclusive
+   * @param stopRevTs The fetchedAtRevTs to stop at, inclusive
+   * @param limit The maximum number of snapshots to read
+   * @param handler The handler each WebPageSnapshotModel is passed to
+   * @return The fetchedAtRevTs of the next snapshot after the limit, or null
+   * if there are no more snapshots in the range.
+   */
+  Long scanMeta(String url, long startRevTs, long stopRevTs, int limit,
+      SnapshotHandler<WebPageSnapshotModel> handler) throws IOException {
+    Scan scan = new Scan(rowKeys.rowKey(url, startRevTs),
+        stopRevTs == Long.MAX_VALUE ? rowKeys.urlStopRow(url)
+            : rowKeys.rowKey(url, stopRevTs + 1));
+    scan.addFamily(META_FAMILY);
+    // one extra row to find where the next page starts
+    scan.setCaching(Math.min(limit + 1, MAX_SCAN_CACHING));
+    HTableInterface table = connection.getTable(tableName);
+    try {
+      // the time spent in the handler isn't part of the scan
+      long start = System.nanoTime();
+      long bytes = 0;
+      ResultScanner scanner = table.getScanner(scan);
+      try {
+        int count = 0;
+        for (Result result : scanner) {
+          bytes += valueBytes(result);
+          if (count == limit) {
+            return SnapshotRowKeys.fetchedAtRevTs(result.getRow());
+          }
+          long handlerStart = System.nanoTime();
+          handler.handle(toModel(result));
+          start += System.nanoTime() - handlerStart;
+          count++;
+        }
+        return null;
+      } finally {
+        scanner.close();
+        metrics.record(Stage.HBASE_SCAN, start, bytes);
+      }
+    } finally {
+      table.close();
+    }
+  }
+
+  /**
+   * Get the fetch timestamps of every snapshot of an URL, most recent first.
+   *
+   * The timestamps are decoded from the fetchedAtRevTs part of each row key.
+   * The scan returns a single value-less cell per row from the small meta
+   * family, so neither the metadata nor the content of a snapshot is sent
+   * back from the region server.
+   *
+   * @param url The URL
+   * @return The epoch timestamps
+   */
+  List<Long> getSnapshotTimestamps(String url) throws IOException {
+    List<Long> timestamps = new ArrayList<Long>();
+    Scan scan = urlScan(url);
+    scan.addFamily(META_FAMILY);
+    scan.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ALL,
+        new FirstKeyOnlyFilter(), new KeyOnlyFilter()));
+    scan.setCaching(KEY_ONLY_SCAN_CACHING);
+    scan.setCacheBlocks(false);
+    HTableInterface table = connection.getTable(tableName);
+    try {
+      long start = System.nanoTime();
+      ResultScanner scanner = table.getScanner(scan);
+      try {
+        for (Result result : scanner) {
+          timestamps.add(Long.MAX_VALUE
+              - SnapshotRowKeys.fetchedAtRevTs(result.getRow()));
+        }
+      } finally {
+        scanner.close();
+        metrics.record(Stage.HBASE_SCAN, start);
+      }
+    } finally {
+      table.close();
+    }
+    return timestamps;
+  }
+
+  /**
+   * Check whether an URL has any snapshot, with a scan that returns at most a
+   * single value-less cell.
+   *
+   * @param url The URL
+   * @return true if the URL has been snapshotted
+   */
+  boolean hasSnapshot(String url) throws IOException {
+    Scan scan = latestScan(url);
+    scan.addFamily(META_FAMILY);
+    scan.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ALL,
+        new PageFilter(1), new FirstKeyOnlyFilter(), new KeyOnlyFilter()));
+    HTableInterface table = connection.getTable(tableName);
+    try {
+      return scanLatest(table, scan) != null;
+    } finally {
+      table.close();
+    }
+  }
+
+  /**
+   * Stream the columns retention is decided on of every snapshot in the
+   * table to a handler. The snapshots of an URL are adjacent and most recent
+   * first. The scan doesn't fill the block cache, so a sweep of the whole
+   * table doesn't evict the blocks that serve requests.
+   *
+   * @param handler The handler each WebPageSnapshotModel is passed to, with
+   * url, fetchedAtRevTs, fetchedAt, contentKey and the delta fields set
+   */
+  void scanRetentionMeta(SnapshotHandler<WebPageSnapshotModel> handler)
+      throws IOException {
+    Scan scan = new Scan();
+    scan.addColumn(CONTENT_KEY_COLUMN.family, CONTENT_KEY_COLUMN.qualifier);
+    scan.addColumn(FETCHED_AT_COLUMN.family, FETCHED_AT_COLUMN.qualifier);
+    scan.addColumn(DELTA_CHAIN_LENGTH_COLUMN.family,
+        DELTA_CHAIN_LENGTH_COLUMN.qualifier);
+    scan.addColumn(DELTA_BASE_REV_TS_COLUMN.family,
+        DELTA_BASE_REV_TS_COLUMN.qualifier);
+    scan.setCaching(KEY_ONLY_SCAN_CACHING);
+    scan.setCacheBlocks(false);
+    HTableInterface table = connection.getTable(tableName);
+    try {
+      ResultScanner scanner = table.getScanner(scan);
+      try {
+        for (Result result : scanner) {
+          handler.handle(toModel(result));
+        }
+      } finally {
+        scanner.close();
+      }
+    } finally {
+      table.close();
+    }
+  }
+
+  /**
+   * Delete whole snapshot rows, with every user's content in them.
+   *
+   * The rows are sized first with a key-only get that returns the length of
+   * each value in place of the value, so the content isn't read back.
+   *
+   * @param snapshots The snapshots, with url and fetchedAtRevTs set
+   * @return The key and value bytes of the deleted cells
+   */
+  long delete(List<WebPageSnapshotModel> snapshots) throws IOException {
+    List<Get> gets = new ArrayList<Get>(snapshots.size());
+    List<Delete> deletes = new ArrayList<Delete>(snapshots.size());
+    for (WebPageSnapshotModel snapshot : snapshots) {
+      byte[] row = rowKeys.rowKey(snapshot.getUrl(),
+          snapshot.getFetchedAtRevTs());
+      Get get = new Get(row);
+      get.setFilter(new KeyOnlyFilter(true));
+      gets.add(get);
+      deletes.add(new Delete(row));
+    }
+    HTableInterface table = connection.getTable(tableName);
+    try {
+      long bytes = 0;
+      for (Result result : table.get(gets)) {
+        if (result.isEmpty()) {
+          continue;
+        }
+        for (Cell cell : result.rawCells()) {
+          bytes += cell.getRowLength() + cell.getFamilyLength()
+              + cell.getQualifierLength() + Bytes.toInt(cell.getValueArray(),
+                  cell.getValueOffset(), cell.getValueLength());
+        }
+      }
+      table.delete(deletes);
+      return bytes;
+    } finally {
+      table.close();
+    }
+  }
+
+  /**
+   * Get a single snapshot with only the content cell for its content key.
+   * Other users' private copies of the page, stored under other content keys
+   * in the same row, are never read. Snapshots with a content digest keep
+   * their content in the WebPageContentModel table, so they're returned with
+   * empty content for the caller to resolve.
+   *
+   * @param url The URL of the snapshot
+   * @param fetchedAtRevTs The reversed fetch timestamp of the snapshot
+   * @return The WebPageSnapshotModel with url, fetchedAt, contentKey,
+   * contentDigest and content set, or null if there's no such snapshot.
+   */
+  WebPageSnapshotModel getContent(String url, long fetchedAtRevTs)
+      throws IOException {
+    Get get = new Get(rowKeys.rowKey(url, fetchedAtRevTs));
+    get.addColumn(CONTENT_KEY_COLUMN.family, CONTENT_KEY_COLUMN.qualifier);
+    get.addColumn(FETCHED_AT_COLUMN.family, FETCHED_AT_COLUMN.qualifier);
+    get.addColumn(CONTENT_CODEC_COLUMN.family, CONTENT_CODEC_COLUMN.qualifier);
+    get.addColumn(CONTENT_DIGEST_COLUMN.family,
+        CONTENT_DIGEST_COLUMN.qualifier);
+    get.addColumn(DELTA_CHAIN_LENGTH_COLUMN.family,
+        DELTA_CHAIN_LENGTH_COLUMN.qualifier);
+    get.addColumn(DELTA_BASE_REV_TS_COLUMN.family,
+        DELTA_BASE_REV_TS_COLUMN.qualifier);
+    get.addColumn(CONTENT_CHARSET_COLUMN.family,
+        CONTENT_CHARSET_COLUMN.qualifier);
+    HTableInterface table = connection.getTable(tableName);
+    try {
+      long start = System.nanoTime();
+      Result result = table.get(get);
+      metrics.record(Stage.HBASE_GET, start, valueBytes(result));
+      return result.isEmpty() ? null : readContent(table, toModel(result));
+    } finally {
+      table.close();
+    }
+  }
+
+  /**
+   * Get the most recent snapshot of an URL with only the content cell for
+   * its content key.
+   *
+   * @param url The URL
+   * @return The WebPageSnapshotModel, or null if the URL has never been
+   * snapshotted.
+   */
+  WebPageSnapshotModel getMostRecentContent(String url) throws IOException {
+    Scan scan = latestScan(url);
+    scan.addColumn(CONTENT_KEY_COLUMN.family, CONTENT_KEY_COLUMN.qualifier);
+    scan.addColumn(FETCHED_AT_COLUMN.family, FETCHED_AT_COLUMN.qualifier);
+    scan.addColumn(CONTENT_CODEC_COLUMN.family, CONTENT_CODEC_COLUMN.qualifier);
+    scan.addColumn(CONTENT_DIGEST_COLUMN.family,
+        CONTENT_DIGEST_COLUMN.qualifier);
+    scan.addColumn(DELTA_CHAIN_LENGTH_COLUMN.family,
+        DELTA_CHAIN_LENGTH_COLUMN.qualifier);
+    scan.addColumn(DELTA_BASE_REV_TS_COLUMN.family,
+        DELTA_BASE_REV_TS_COLUMN.qualifier);
+    scan.addColumn(CONTENT_CHARSET_COLUMN.family,
+        CONTENT_CHARSET_COLUMN.qualifier);
+    HTableInterface table = connection.getTable(tableName);
+    try {
+      Result result = scanLatest(table, scan);
+      return result != null ? readContent(table, toModel(result)) : null;
+    } finally {
+      table.close();
+    }
+  }
+
+  /**
+   * Read the content cell for a model's content key into the model. The
+   * content is in the compressed content family unless the snapshot was
+   * stored uncompressed, and isn't in this table at all if the snapshot has a
+   * content digest.
+   */
+  private WebPageSnapshotModel readContent(HTableInterface table,
+      WebPageSnapshotModel model) throws IOException {
+    if (model.getContentDigest() != null
+        && !model.getContentDigest().isEmpty()) {
+      model.setContent(new HashMap<String, String>());
+      model.setCompressedContent(new HashMap<String, ByteBuffer>());
+      return model;
+    }
+    Get get = new Get(rowKeys.rowKey(model.getUrl(),
+        model.getFetchedAtRevTs()));
+    byte[] contentKey = Bytes.toBytes(model.getContentKey());
+    if (ContentCodec.forName(model.getContentCodec()) == ContentCodec.NONE) {
+      get.addColumn(CONTENT_COLUMN.family, contentKey);
+    } else {
+      get.addColumn(COMPRESSED_CONTENT_COLUMN.family, contentKey);
+    }
+    long start = System.nanoTime();
+    Result result = table.get(get);
+    metrics.record(Stage.HBASE_GET, start, valueBytes(result));
+    if (result.isEmpty()) {
+      model.setContent(new HashMap<String, String>());
+      model.setCompressedContent(new HashMap<String, ByteBuffer>());
+    } else {
+      WebPageSnapshotModel content = toModel(result);
+      model.setContent(content.getContent());
+      model.setCompressedContent(content.getCompressedContent());
+    }
+    return model;
+  }
+
+  /**
+   * A scan for just the most recent row of an URL. Keys are in timestamp
+   * descending order, so that's the first row in the URL's range. The scan is
+   * a small scan that asks for a single row, so the region server doesn't
+   * prefetch rows that would be thrown away.
+   */
+  private Scan latestScan(String url) {
+    Scan scan = urlScan(url);
+    scan.setSmall(true);
+    scan.setCaching(1);
+    scan.setFilter(new PageFilter(1));
+    return scan;
+  }
+
+  /**
+   * A filter that only passes rows stored under a content key.
+   */
+  private static SingleColumnValueFilter contentKeyFilter(String contentKey) {
+    SingleColumnValueFilter filter = new SingleColumnValueFilter(
+        CONTENT_KEY_COLUMN.family, CONTENT_KEY_COLUMN.qualifier,
+        CompareFilter.CompareOp.EQUAL, CONTENT_KEY_COLUMN.encode(contentKey));
+    filter.setFilterIfMissing(true);
+    return filter;
+  }
+
+  private Result scanLatest(HTableInterface table, Scan scan)
+      throws IOException {
+    long start = System.nanoTime();
+    ResultScanner scanner = table.getScanner(scan);
+    try {
+      Result result = scanner.next();
+      metrics.record(Stage.HBASE_SCAN, start, valueBytes(result));
+      return result;
+    } finally {
+      scanner.close();
+    }
+  }
+
+  /**
+   * The total length of the values in a Result, or 0 for no Result.
+   */
+  static long valueBytes(Result result) {
+    long bytes = 0;
+    if (result != null && !result.isEmpty()) {
+      for (Cell cell : result.rawCells()) {
+        bytes += cell.getValueLength();
+      }
+    }
+    return bytes;
+  }
+
+  private Scan urlScan(String url) {
+    return new Scan(rowKeys.urlPrefix(url), rowKeys.urlStopRow(url));
+  }
+
+  /**
+   * Build a WebPageSnapshotModel out of the cells in a Result. Key fields come
+   * from the row key, and column fields from whichever cells were read.
+   */
+  private WebPageSnapshotModel toModel(Result result)
+      throws IOException {
+    WebPageSnapshotModel model = new WebPageSnapshotModel();
+    byte[] row = result.getRow();
+    model.put(URL_FIELD, rowKeys.url(row));
+    model.put(FETCHED_AT_REV_TS_FIELD, SnapshotRowKeys.fetchedAtRevTs(row));
+    MAPPING.decode(result, model);
+    return model;
+  }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import com.google.common.base.Charsets;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that BlockDelta round trips, encodes copies and inserts where
+ * expected, and rejects deltas that are truncated or don't fit the base.
+ */
+public class BlockDeltaTest {
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private static final byte[] PAGE = bytes("<html><head><title>Page</title>"
+      + "</head><body><p>The first paragraph of the page.</p><p>The second "
+      + "paragraph of the page.</p><p>The third paragraph.</p></body></html>");
+
+  @Test
+  public void testEmptyBase() throws IOException {
+    byte[] delta = roundTrip(EMPTY, PAGE);
+    // one insert of the whole target
+    assertArrayEquals(concat(varints(PAGE.length, 1, PAGE.length), PAGE),
+        delta);
+  }
+
+  @Test
+  public void testEmptyTarget() throws IOException {
+    byte[] delta = roundTrip(PAGE, EMPTY);
+    assertArrayEquals(new byte[] { 0 }, delta);
+  }
+
+  @Test
+  public void testBothEmpty() throws IOException {
+    assertArrayEquals(new byte[] { 0 }, roundTrip(EMPTY, EMPTY));
+  }
+
+  @Test
+  public void testTargetShorterThanBlock() throws IOException {
+    byte[] target = Arrays.copyOf(PAGE, 10);
+    byte[] delta = roundTrip(PAGE, target);
+    assertArrayEquals(concat(varints(10, 1, 10), target), delta);
+  }
+
+  @Test
+  public void testInsertOnly() throws IOException {
+    byte[] target = bytes("Nothing in common with the previous version, at "
+        + "all, in any block of sixteen bytes");
+    byte[] delta = roundTrip(PAGE, target);
+    assertArrayEquals(concat(varints(target.length, 1, target.length),
+        target), delta);
+  }
+
+  @Test
+  public void testCopyOnly() throws IOException {
+    byte[] delta = roundTrip(PAGE, PAGE);
+    // one copy of the whole base
+    assertArrayEquals(varints(PAGE.length, 0, 0, PAGE.length), delta);
+  }
+
+  @Test
+  public void testUnalignedCopyOnly() throws IOException {
+    // a copy that doesn't start on a block boundary of the base
+    byte[] target = Arrays.copyOfRange(PAGE, 5, PAGE.length - 3);
+    byte[] delta = roundTrip(PAGE, target);
+    assertArrayEquals(varints(target.length, 0, 5, target.length), delta);
+  }
+
+  @Test
+  public void testEdits() throws IOException {
+    String page = new String(PAGE, Charsets.UTF_8);
+    byte[] target = bytes(page
+        .replace("second", "2nd")
+        .replace("<p>The third paragraph.</p>", "")
+        .replace("<body>", "<body><h1>A new heading</h1>"));
+    byte[] delta = roundTrip(PAGE, target);
+    assertTrue("Delta should be mostly copies", delta.length < 60);
+  }
+
+  @Test
+  public void testRandomEdits() throws IOException {
+    Random random = new Random(42);
+    for (int i = 0; i < 200; i++) {
+      byte[] base = new byte[random.nextInt(2000)];
+      random.nextBytes(base);
+      byte[] target = base;
+      for (int edits = random.nextInt(5); edits > 0; edits--) {
+        target = edit(random, target);
+      }
+      roundTrip(base, target);
+    }
+  }
+
+  @Test
+  public void testTruncatedDelta() throws IOException {
+    byte[] target = bytes(new String(PAGE, Charsets.UTF_8)
+        .replace("second", "2nd"));
+    byte[] delta = BlockDelta.encode(PAGE, target);
+    for (int length = 0; length < delta.length; length++) {
+      try {
+        BlockDelta.decode(PAGE, Arrays.copyOf(delta, length));
+        fail("Decoded a delta truncated to " + length + " bytes");
+      } catch (IOException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void testCopyOutOfRange() {
+    // a copy past the end of the base
+    assertCorrupt(varints(10, 0, PAGE.length - 5, 10));
+    // an offset and length that overflow an int when added
+    assertCorrupt(varints(10, 0, Integer.MAX_VALUE, 10));
+  }
+
+  @Test
+  public void testInsertPastTarget() {
+    assertCorrupt(concat(varints(2, 1, 3), bytes("abc")));
+  }
+
+  @Test
+  public void testNegativeLength() {
+    assertCorrupt(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+        (byte) 0xFF, 0x0F });
+  }
+
+  @Test
+  public void testUnknownOp() {
+    assertCorrupt(concat(varints(1, 2), bytes("a")));
+  }
+
+  private static byte[] roundTrip(byte[] base, byte[] target)
+      throws IOException {
+    byte[] delta = BlockDelta.encode(base, target);
+    assertArrayEquals(target, BlockDelta.decode(base, delta));
+    return delta;
+  }
+
+  private static void assertCorrupt(byte[] delta) {
+    try {
+      BlockDelta.decode(PAGE, delta);
+      fail("Decoded a corrupt delta");
+    } catch (IOException expected) {
+    }
+  }
+
+  /**
+   * Insert, delete or move a random range of bytes.
+   */
+  private static byte[] edit(Random random, byte[] bytes) {
+    int start = random.nextInt(bytes.length + 1);
+    int end = start + random.nextInt(bytes.length - start + 1);
+    byte[] range = Arrays.copyOfRange(bytes, start, end);
+    byte[] rest = concat(Arrays.copyOf(bytes, start),
+        Arrays.copyOfRange(bytes, end, bytes.length));
+    switch (random.nextInt(3)) {
+      case 0:
+        byte[] inserted = new byte[random.nextInt(100)];
+        random.nextBytes(inserted);
+        return concat(concat(Arrays.copyOf(bytes, start), inserted),
+            Arrays.copyOfRange(bytes, start, bytes.length));
+      case 1:
+        return rest;
+      default:
+        int at = random.nextInt(rest.length + 1);
+        return concat(concat(Arrays.copyOf(rest, at), range),
+            Arrays.copyOfRange(rest, at, rest.length));
+    }
+  }
+
+  /**
+   * Encode numbers the way deltas do, as unsigned varints. The ops are one
+   * byte, so this also encodes those.
+   */
+  private static byte[] varints(int... values) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int value : values) {
+      while ((value & ~0x7F) != 0) {
+        out.write((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, bytes, first.length, second.length);
+    return bytes;
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(Charsets.UTF_8);
+  }
+}
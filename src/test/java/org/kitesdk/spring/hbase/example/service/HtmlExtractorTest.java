@@ -0,0 +1,120 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Checks that HtmlExtractor extracts the same metadata as the Jsoup DOM and
+ * selectors that WebPageSnapshotService used before it, for every page in
+ * the html-extractor corpus.
+ */
+public class HtmlExtractorTest {
+
+  private static final String CORPUS = "/html-extractor/";
+
+  private static final List<String> PAGES = Arrays.asList(
+      "attributes.html", "basic.html", "bom.html", "comments.html",
+      "empty.html", "entities.html", "fragment.html", "latin1.html",
+      "meta.html", "raw-text.html", "title-in-body.html", "title-markup.html",
+      "titles.html");
+
+  @Test
+  public void testCorpusMatchesJsoup() throws IOException {
+    for (String page : PAGES) {
+      byte[] body = read(page);
+      HtmlExtractor extractor = HtmlExtractor.extract(body, null);
+      // the response was parsed with the charset the extractor decoded with
+      Document doc = Jsoup.parse(new ByteArrayInputStream(body),
+          extractor.getCharset(), "");
+
+      assertEquals(page + " title", doc.title(), extractor.getTitle());
+      assertEquals(page + " description", description(doc),
+          extractor.getDescription());
+      assertEquals(page + " keywords", keywords(doc), extractor.getKeywords());
+      assertEquals(page + " outlinks", outlinks(doc), extractor.getOutlinks());
+    }
+  }
+
+  @Test
+  public void testResponseCharsetWins() throws IOException {
+    byte[] body = read("latin1.html");
+    assertEquals("ISO-8859-1",
+        HtmlExtractor.extract(body, null).getCharset());
+    assertEquals("UTF-8",
+        HtmlExtractor.extract(body, "utf-8").getCharset());
+    assertEquals("ISO-8859-1",
+        HtmlExtractor.extract(body, "not-a-charset").getCharset());
+  }
+
+  @Test
+  public void testLatin1() throws IOException {
+    HtmlExtractor extractor = HtmlExtractor.extract(read("latin1.html"), null);
+    assertEquals("Caf\u00e9 cr\u00e8me", extractor.getTitle());
+    assertEquals("\u00e9t\u00e9", extractor.getDescription());
+    assertEquals(Arrays.asList("/caf\u00e9"), extractor.getOutlinks());
+  }
+
+  private static byte[] read(String page) throws IOException {
+    InputStream in = HtmlExtractorTest.class.getResourceAsStream(
+        CORPUS + page);
+    assertNotNull("Missing corpus page " + page, in);
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  // the DOM based extraction HtmlExtractor replaced
+
+  private static String description(Document doc) {
+    Elements elements = doc.select("meta[name=description]");
+    return elements.size() > 0 ? elements.attr("content") : "";
+  }
+
+  private static List<String> keywords(Document doc) {
+    List<String> keywords = new ArrayList<String>();
+    for (Element element : doc.select("meta[name=keywords]")) {
+      for (String keyword : element.attr("content").split(",")) {
+        keywords.add(keyword.trim());
+      }
+    }
+    return keywords;
+  }
+
+  private static List<String> outlinks(Document doc) {
+    List<String> outlinks = new ArrayList<String>();
+    for (Element element : doc.select("a[href]")) {
+      outlinks.add(element.attr("href").trim());
+    }
+    return outlinks;
+  }
+}
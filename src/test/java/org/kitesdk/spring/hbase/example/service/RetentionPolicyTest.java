@@ -0,0 +1,152 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.kitesdk.spring.hbase.example.model.WebPageSnapshotModel;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks each rule of RetentionPolicy.expired on its own.
+ */
+public class RetentionPolicyTest {
+
+  private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+  private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+  private static final long WEEK_MS = 7 * DAY_MS;
+
+  /**
+   * The start of a UTC week, so that ages in whole days and weeks fall on
+   * day and week bucket boundaries.
+   */
+  private static final long NOW = 2300 * WEEK_MS;
+
+  private static final String PUBLIC = "public";
+  private static final String PRIVATE = "alice";
+
+  @Test
+  public void testKeepLastPerContentKey() {
+    // nothing is kept for its age, since everything is older than a day
+    RetentionPolicy policy = new RetentionPolicy(2, 0, 0, 1);
+    WebPageSnapshotModel public1 = snapshot(PUBLIC, 10 * DAY_MS);
+    WebPageSnapshotModel private1 = snapshot(PRIVATE, 10 * DAY_MS + HOUR_MS);
+    WebPageSnapshotModel public2 = snapshot(PUBLIC, 11 * DAY_MS);
+    WebPageSnapshotModel public3 = snapshot(PUBLIC, 12 * DAY_MS);
+    WebPageSnapshotModel private2 = snapshot(PRIVATE, 12 * DAY_MS + HOUR_MS);
+    WebPageSnapshotModel private3 = snapshot(PRIVATE, 13 * DAY_MS + HOUR_MS);
+    WebPageSnapshotModel public4 = snapshot(PUBLIC, 14 * DAY_MS);
+
+    assertEquals(Arrays.asList(public3, private3, public4),
+        policy.expired(Arrays.asList(public1, private1, public2, public3,
+            private2, private3, public4), NOW));
+  }
+
+  @Test
+  public void testKeepAll() {
+    RetentionPolicy policy = new RetentionPolicy(1, 2, 2, 2);
+    WebPageSnapshotModel recent1 = snapshot(PUBLIC, HOUR_MS);
+    WebPageSnapshotModel recent2 = snapshot(PUBLIC, 2 * HOUR_MS);
+    WebPageSnapshotModel recent3 = snapshot(PUBLIC, 2 * DAY_MS - HOUR_MS);
+    WebPageSnapshotModel old = snapshot(PUBLIC, 2 * DAY_MS + HOUR_MS);
+
+    assertEquals(Arrays.asList(old), policy.expired(
+        Arrays.asList(recent1, recent2, recent3, old), NOW));
+  }
+
+  @Test
+  public void testDailyBuckets() {
+    RetentionPolicy policy = new RetentionPolicy(1, 1, 7, 7);
+    WebPageSnapshotModel recent = snapshot(PUBLIC, HOUR_MS);
+    // two snapshots late in the same UTC day
+    WebPageSnapshotModel day2Late = snapshot(PUBLIC, 2 * DAY_MS + HOUR_MS);
+    WebPageSnapshotModel day2Early = snapshot(PUBLIC, 2 * DAY_MS + 2 * HOUR_MS);
+    // one early in that day, and two in the day before
+    WebPageSnapshotModel day2First = snapshot(PUBLIC, 3 * DAY_MS - HOUR_MS);
+    WebPageSnapshotModel day3Last = snapshot(PUBLIC, 3 * DAY_MS + HOUR_MS);
+    WebPageSnapshotModel day3Early = snapshot(PUBLIC, 3 * DAY_MS + 5 * HOUR_MS);
+    WebPageSnapshotModel tooOld = snapshot(PUBLIC, 8 * DAY_MS);
+
+    assertEquals(Arrays.asList(day2Early, day2First, day3Early, tooOld),
+        policy.expired(Arrays.asList(recent, day2Late, day2Early, day2First,
+            day3Last, day3Early, tooOld), NOW));
+  }
+
+  @Test
+  public void testWeeklyBuckets() {
+    RetentionPolicy policy = new RetentionPolicy(1, 0, 1, 28);
+    WebPageSnapshotModel recent = snapshot(PUBLIC, HOUR_MS);
+    WebPageSnapshotModel week1Late = snapshot(PUBLIC, 2 * DAY_MS);
+    WebPageSnapshotModel week1Early = snapshot(PUBLIC, 6 * DAY_MS);
+    WebPageSnapshotModel week2Late = snapshot(PUBLIC, 8 * DAY_MS);
+    WebPageSnapshotModel week2Early = snapshot(PUBLIC, 13 * DAY_MS);
+    WebPageSnapshotModel week3 = snapshot(PUBLIC, 20 * DAY_MS);
+    WebPageSnapshotModel tooOld = snapshot(PUBLIC, 29 * DAY_MS);
+
+    assertEquals(Arrays.asList(week1Early, week2Early, tooOld),
+        policy.expired(Arrays.asList(recent, week1Late, week1Early, week2Late,
+            week2Early, week3, tooOld), NOW));
+  }
+
+  @Test
+  public void testKeepWeeklyForever() {
+    RetentionPolicy policy = new RetentionPolicy(1, 0, 1, 0);
+    WebPageSnapshotModel recent = snapshot(PUBLIC, HOUR_MS);
+    WebPageSnapshotModel week1 = snapshot(PUBLIC, 2 * DAY_MS);
+    WebPageSnapshotModel yearOld = snapshot(PUBLIC, 52 * WEEK_MS + DAY_MS);
+    WebPageSnapshotModel sameWeek = snapshot(PUBLIC, 52 * WEEK_MS + 2 * DAY_MS);
+    WebPageSnapshotModel ancient = snapshot(PUBLIC, 1000 * WEEK_MS + DAY_MS);
+
+    assertEquals(Arrays.asList(sameWeek), policy.expired(
+        Arrays.asList(recent, week1, yearOld, sameWeek, ancient), NOW));
+  }
+
+  @Test
+  public void testKeptDeltaKeepsItsBases() {
+    // only the most recent snapshot is kept for itself
+    RetentionPolicy policy = new RetentionPolicy(1, 0, 0, 1);
+    WebPageSnapshotModel full = snapshot(PUBLIC, 5 * DAY_MS);
+    WebPageSnapshotModel unusedBase = snapshot(PUBLIC, 6 * DAY_MS);
+    WebPageSnapshotModel base = delta(snapshot(PUBLIC, 4 * DAY_MS), full, 1);
+    WebPageSnapshotModel expiredDelta = delta(snapshot(PUBLIC, 3 * DAY_MS),
+        unusedBase, 1);
+    WebPageSnapshotModel kept = delta(snapshot(PUBLIC, 2 * DAY_MS), base, 2);
+
+    // the base of the expired delta isn't kept for it
+    assertEquals(Arrays.asList(expiredDelta, unusedBase), policy.expired(
+        Arrays.asList(kept, expiredDelta, base, full, unusedBase), NOW));
+  }
+
+  private static WebPageSnapshotModel snapshot(String contentKey, long age) {
+    WebPageSnapshotModel snapshot = new WebPageSnapshotModel();
+    snapshot.setUrl("http://example.com/");
+    snapshot.setFetchedAt(NOW - age);
+    snapshot.setFetchedAtRevTs(Long.MAX_VALUE - (NOW - age));
+    snapshot.setContentKey(contentKey);
+    snapshot.setDeltaChainLength(0);
+    snapshot.setDeltaBaseRevTs(0L);
+    return snapshot;
+  }
+
+  private static WebPageSnapshotModel delta(WebPageSnapshotModel snapshot,
+      WebPageSnapshotModel base, int chainLength) {
+    snapshot.setDeltaChainLength(chainLength);
+    snapshot.setDeltaBaseRevTs(base.getFetchedAtRevTs());
+    return snapshot;
+  }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.kitesdk.minicluster.HBaseService;
+import org.kitesdk.minicluster.HdfsService;
+import org.kitesdk.minicluster.MiniCluster;
+import org.kitesdk.minicluster.ZookeeperService;
+import org.kitesdk.spring.hbase.example.helper.DevHelper;
+
+/**
+ * A local HDFS, ZooKeeper and HBase cluster for tests, started the same way
+ * the dev profile starts one, with the snapshot datasets created by
+ * DevHelper.
+ */
+class TestCluster {
+
+  static final String ZK_HOST = "localhost";
+
+  static final String SNAPSHOTS = "webpagesnapshots.WebPageSnapshotModel";
+  static final String REDIRECTS = "webpageredirects.WebPageRedirectModel";
+  static final String CONTENTS = "webpagecontents.WebPageContentModel";
+
+  private final MiniCluster cluster;
+  private final String zkPort;
+
+  private TestCluster(MiniCluster cluster, String zkPort) {
+    this.cluster = cluster;
+    this.zkPort = zkPort;
+  }
+
+  /**
+   * Start a clean cluster, and create the snapshot, redirect and content
+   * datasets on it.
+   *
+   * @param name The name of the cluster's work directory under target
+   * @param zkPort The ZooKeeper client port
+   * @param saltBuckets The number of buckets to salt the snapshot and
+   * redirect datasets with, or 0 to not salt them
+   * @return The started cluster
+   */
+  static TestCluster start(String name, int zkPort, int saltBuckets)
+      throws Exception {
+    MiniCluster cluster = new MiniCluster.Builder()
+        .workDir(new File("target", name).getAbsolutePath())
+        .zkPort(zkPort)
+        .clean(true)
+        .addService(HdfsService.class)
+        .addService(ZookeeperService.class)
+        .addService(HBaseService.class)
+        .build();
+    cluster.start();
+    TestCluster testCluster = new TestCluster(cluster, String.valueOf(zkPort));
+    try {
+      Map<String, String> schemas = new HashMap<String, String>();
+      schemas.put(SNAPSHOTS, "classpath:hbase-models/WebPageSnapshotModel.avsc");
+      schemas.put(REDIRECTS, "classpath:hbase-models/WebPageRedirectModel.avsc");
+      schemas.put(CONTENTS, "classpath:hbase-models/WebPageContentModel.avsc");
+      testCluster.createDatasets(schemas, saltBuckets > 0
+          ? Arrays.asList(SNAPSHOTS, REDIRECTS)
+          : Collections.<String> emptyList(), saltBuckets);
+    } catch (Exception ex) {
+      testCluster.stop();
+      throw ex;
+    }
+    return testCluster;
+  }
+
+  /**
+   * Create datasets on this cluster with DevHelper.
+   *
+   * @param schemas The schema locations of the datasets, by dataset name
+   * @param salted The names of the datasets to salt
+   * @param saltBuckets The number of buckets to salt with
+   */
+  void createDatasets(Map<String, String> schemas, List<String> salted,
+      int saltBuckets) throws Exception {
+    DevHelper.createOrUpdateDatasets(ZK_HOST, zkPort, schemas, salted,
+        saltBuckets);
+  }
+
+  /**
+   * Get the URI of a dataset on this cluster.
+   *
+   * @param datasetName The dataset name, like table.Entity
+   * @return The dataset URI
+   */
+  String datasetUri(String datasetName) {
+    return "dataset:hbase:" + ZK_HOST + ":" + zkPort + "/" + datasetName;
+  }
+
+  void stop() throws Exception {
+    cluster.stop();
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.lang.reflect.Field;
+import java.security.PrivilegedExceptionAction;
+import java.util.Map;
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HConnectionManager;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the shared HBase connections Kite opens for a user are closed
+ * when the user's datasets are evicted and no longer in use.
+ */
+public class UserDatasetCacheTest {
+
+  private static TestCluster cluster;
+
+  @BeforeClass
+  public static void startCluster() throws Exception {
+    cluster = TestCluster.start("user-dataset-cache-test", 28283, 0);
+  }
+
+  @AfterClass
+  public static void stopCluster() throws Exception {
+    if (cluster != null) {
+      cluster.stop();
+    }
+  }
+
+  @Test
+  public void testEvictionClosesConnections() throws Exception {
+    UserDatasetCache cache = newCache();
+    try {
+      load(cache, "alice");
+      assertEquals(1, openConnections("alice"));
+
+      // only one user fits, so this evicts alice
+      load(cache, "bob");
+      assertEquals(1, cache.getEvictionCount());
+      assertEquals(0, openConnections("alice"));
+      assertEquals(1, openConnections("bob"));
+    } finally {
+      cache.close();
+    }
+    assertEquals(0, openConnections("bob"));
+  }
+
+  @Test
+  public void testEvictionWaitsForRelease() throws Exception {
+    final UserDatasetCache cache = newCache();
+    try {
+      as("carol", new PrivilegedExceptionAction<Void>() {
+
+        @Override
+        public Void run() throws Exception {
+          cache.acquire("carol");
+          try {
+            load(cache, "dave");
+            // evicted, but still held by this thread
+            assertEquals(1, openConnections("carol"));
+          } finally {
+            cache.release("carol");
+          }
+          assertEquals(0, openConnections("carol"));
+          return null;
+        }
+      });
+    } finally {
+      cache.close();
+    }
+    assertEquals(0, openConnections("dave"));
+  }
+
+  private static UserDatasetCache newCache() {
+    return new UserDatasetCache(
+        cluster.datasetUri(TestCluster.SNAPSHOTS),
+        cluster.datasetUri(TestCluster.REDIRECTS),
+        cluster.datasetUri(TestCluster.CONTENTS),
+        1, 30, SnapshotMetrics.DISABLED);
+  }
+
+  /**
+   * Load a user's datasets as the user, the way WebPageSnapshotService does.
+   */
+  private static void load(final UserDatasetCache cache, final String user)
+      throws Exception {
+    as(user, new PrivilegedExceptionAction<Void>() {
+
+      @Override
+      public Void run() throws Exception {
+        cache.acquire(user);
+        try {
+          cache.webPageSnapshotTable(user).hasSnapshot("http://example.com/");
+        } finally {
+          cache.release(user);
+        }
+        return null;
+      }
+    });
+  }
+
+  private static <T> T as(String user, PrivilegedExceptionAction<T> action)
+      throws Exception {
+    return UserGroupInformation.createRemoteUser(user).doAs(action);
+  }
+
+  /**
+   * Count the shared HBase connections open for a user's client instance.
+   */
+  private static int openConnections(String user) throws Exception {
+    Field field = HConnectionManager.class.getDeclaredField(
+        "CONNECTION_INSTANCES");
+    field.setAccessible(true);
+    Map<?, ?> connections = (Map<?, ?>) field.get(null);
+    int count = 0;
+    synchronized (connections) {
+      for (Object connection : connections.values()) {
+        if (user.equals(((HConnection) connection).getConfiguration().get(
+            "hbase.client.instance.id"))) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+}
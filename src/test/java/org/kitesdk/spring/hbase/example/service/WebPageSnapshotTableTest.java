@@ -0,0 +1,182 @@
+/**
+ * Copyright 2014 Cloudera Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.kitesdk.spring.hbase.example.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HConnectionManager;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.kitesdk.data.Datasets;
+import org.kitesdk.data.RandomAccessDataset;
+import org.kitesdk.spring.hbase.example.model.WebPageSnapshotModel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that SnapshotRowKeys and AvroColumnMapping encode row keys and cells
+ * the way Kite does, by writing snapshots through Kite and reading them back
+ * through WebPageSnapshotTable, from an unsalted and a salted table.
+ */
+public class WebPageSnapshotTableTest {
+
+  private static final String SALTED_SNAPSHOTS =
+      "saltedsnapshots.WebPageSnapshotModel";
+  private static final int SALT_BUCKETS = 4;
+
+  /**
+   * URLs with escaped and multi-byte characters, and URLs that are prefixes
+   * of each other.
+   */
+  private static final List<String> URLS = Arrays.asList(
+      "http://example.com/",
+      "http://example.com/a",
+      "http://example.com/a\u0000",
+      "http://example.com/a\u0000b",
+      "http://example.com/ab",
+      "http://example.com/caf\u00e9?q=cr\u00e8me",
+      "http://\u4f8b\u3048.jp/\u30d1\u30b9",
+      "http://example.com/\ud83d\ude00");
+
+  private static final long[] FETCHED_AT = { 1000L, 3000L, 2000L };
+
+  private static TestCluster cluster;
+  private static HConnection connection;
+
+  @BeforeClass
+  public static void startCluster() throws Exception {
+    cluster = TestCluster.start("web-page-snapshot-table-test", 28284, 0);
+    cluster.createDatasets(Collections.singletonMap(SALTED_SNAPSHOTS,
+        "classpath:hbase-models/WebPageSnapshotModel.avsc"),
+        Arrays.asList(SALTED_SNAPSHOTS), SALT_BUCKETS);
+    connection = HConnectionManager.createConnection(
+        UserDatasetCache.hbaseConfiguration(new Configuration(),
+            cluster.datasetUri(TestCluster.SNAPSHOTS)));
+  }
+
+  @AfterClass
+  public static void stopCluster() throws Exception {
+    if (connection != null) {
+      connection.close();
+    }
+    if (cluster != null) {
+      cluster.stop();
+    }
+  }
+
+  @Test
+  public void testUnsalted() throws Exception {
+    WebPageSnapshotTable table = writeThroughKite(TestCluster.SNAPSHOTS);
+    checkReads(table);
+  }
+
+  @Test
+  public void testSalted() throws Exception {
+    WebPageSnapshotTable table = writeThroughKite(SALTED_SNAPSHOTS);
+    checkReads(table);
+
+    // DevHelper created the table with one region per bucket
+    HBaseAdmin admin = new HBaseAdmin(connection);
+    try {
+      assertEquals(SALT_BUCKETS, admin.getTableRegions(TableName.valueOf(
+          UserDatasetCache.tableName(cluster.datasetUri(SALTED_SNAPSHOTS))))
+          .size());
+    } finally {
+      admin.close();
+    }
+  }
+
+  /**
+   * Write every URL's snapshots through Kite, except for the bare
+   * "http://example.com/a" prefix, and open the table the way
+   * UserDatasetCache does.
+   */
+  private static WebPageSnapshotTable writeThroughKite(String datasetName) {
+    RandomAccessDataset<WebPageSnapshotModel> dataset = Datasets.load(
+        cluster.datasetUri(datasetName), WebPageSnapshotModel.class);
+    for (String url : URLS) {
+      if (url.equals("http://example.com/a")) {
+        continue;
+      }
+      for (long fetchedAt : FETCHED_AT) {
+        dataset.put(snapshot(url, fetchedAt));
+      }
+    }
+    SnapshotRowKeys rowKeys = SnapshotRowKeys.forDescriptor(
+        dataset.getDescriptor());
+    return new WebPageSnapshotTable(connection,
+        UserDatasetCache.tableName(cluster.datasetUri(datasetName)), rowKeys,
+        SnapshotMetrics.DISABLED);
+  }
+
+  private static void checkReads(WebPageSnapshotTable table)
+      throws Exception {
+    for (String url : URLS) {
+      if (url.equals("http://example.com/a")) {
+        assertFalse(table.hasSnapshot(url));
+        assertNull(table.getMostRecentMeta(url));
+        assertTrue(table.getSnapshotTimestamps(url).isEmpty());
+        continue;
+      }
+      assertTrue(url, table.hasSnapshot(url));
+
+      WebPageSnapshotModel latest = table.getMostRecentMeta(url);
+      assertNotNull(url, latest);
+      assertEquals(url, latest.getUrl());
+      assertEquals(url, 3000L, (long) latest.getFetchedAt());
+
+      WebPageSnapshotModel meta = table.getMeta(url, Long.MAX_VALUE - 1000L);
+      assertNotNull(url, meta);
+      assertEquals(url, meta.getUrl());
+      assertEquals(url, 1000L, (long) meta.getFetchedAt());
+
+      assertEquals(url, Arrays.asList(3000L, 2000L, 1000L),
+          table.getSnapshotTimestamps(url));
+
+      WebPageSnapshotModel content = table.getMostRecentContent(url);
+      assertEquals(url, "<html>" + url + "</html>",
+          content.getContent().get("public"));
+    }
+  }
+
+  private static WebPageSnapshotModel snapshot(String url, long fetchedAt) {
+    return WebPageSnapshotModel.newBuilder()
+        .setUrl(url)
+        .setFetchedAtRevTs(Long.MAX_VALUE - fetchedAt)
+        .setFetchedAt(fetchedAt)
+        .setFetchTimeMs(1)
+        .setSize(0)
+        .setTitle("")
+        .setDescription("")
+        .setKeywords(new ArrayList<String>())
+        .setOutlinks(new ArrayList<String>())
+        .setContentKey("public")
+        .setContent(Collections.singletonMap("public",
+            "<html>" + url + "</html>"))
+        .build();
+  }
+}